@@ -0,0 +1,400 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.time.TimeService;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+/**
+ * A size-bounded cache whose entries expire after a time-to-live, using a W-TinyLFU eviction policy.
+ * <p>
+ * New entries go into a small LRU admission window (1% of the capacity). Entries leaving the window compete with the
+ * LRU victim of the main space (a segmented LRU, split into probation and protected segments) and only the one most
+ * frequently requested, according to a count-min sketch of recent accesses, is kept. A burst of one-off keys
+ * therefore cannot flush the frequently used entries out of the cache.
+ * <p>
+ * All operations are O(1) and guarded by a single lock.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+class BoundedCache<K, V> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final int maximumSize;
+    private final int windowMaximum;
+    private final int protectedMaximum;
+    private final long defaultTtl;
+    private final TimeService time;
+
+    private final Map<K, Node<K, V>> data = new HashMap<>();
+    private final Queue<K, V> window = new Queue<>();
+    private final Queue<K, V> probation = new Queue<>();
+    private final Queue<K, V> protectedQueue = new Queue<>();
+    private final FrequencySketch sketch;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maximumSize maximum number of entries
+     * @param defaultTtl  default time-to-live of the entries, in milliseconds
+     * @param time        time source used to expire entries
+     */
+    BoundedCache(final int maximumSize, final long defaultTtl, final TimeService time) {
+        this.maximumSize = Math.max(1, maximumSize);
+        this.windowMaximum = Math.max(1, this.maximumSize / 100);
+        this.protectedMaximum = (int) ((this.maximumSize - windowMaximum) * 0.8);
+        this.defaultTtl = defaultTtl;
+        this.time = time;
+        this.sketch = new FrequencySketch(this.maximumSize);
+    }
+
+    /**
+     * Returns the value cached for the given key, or {@code null} if absent or expired.
+     *
+     * @param key key to look up
+     * @return the cached value, or {@code null}
+     */
+    synchronized V get(final K key) {
+        sketch.increment(key.hashCode());
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            misses++;
+            return null;
+        }
+        if (node.expiresAt <= time.now()) {
+            remove(node);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        onAccess(node);
+        return node.value;
+    }
+
+    /**
+     * Caches a value with the default time-to-live.
+     *
+     * @param key   key
+     * @param value value to cache
+     */
+    void put(final K key, final V value) {
+        put(key, value, defaultTtl);
+    }
+
+    /**
+     * Caches a value with the given time-to-live. Non-positive time-to-live values are ignored.
+     *
+     * @param key   key
+     * @param value value to cache
+     * @param ttl   time-to-live, in milliseconds
+     */
+    synchronized void put(final K key, final V value, final long ttl) {
+        if (ttl <= 0) {
+            return;
+        }
+        long expiresAt = time.now() + ttl;
+        Node<K, V> node = data.get(key);
+        if (node != null) {
+            node.value = value;
+            node.expiresAt = expiresAt;
+            onAccess(node);
+            return;
+        }
+
+        node = new Node<>(key, value, expiresAt);
+        data.put(key, node);
+        window.addLast(node, WINDOW);
+
+        Node<K, V> candidate = null;
+        if (window.size > windowMaximum) {
+            // The window LRU entry moves to the main space, where it competes with the main space victim
+            candidate = window.first();
+            window.remove(candidate);
+            probation.addLast(candidate, PROBATION);
+        }
+        evictIfNeeded(candidate);
+    }
+
+    /**
+     * Removes the value cached for the given key.
+     *
+     * @param key key
+     */
+    synchronized void invalidate(final K key) {
+        Node<K, V> node = data.get(key);
+        if (node != null) {
+            remove(node);
+        }
+    }
+
+    /**
+     * Removes all the cached values.
+     */
+    synchronized void invalidateAll() {
+        data.clear();
+        window.clear();
+        probation.clear();
+        protectedQueue.clear();
+    }
+
+    synchronized int size() {
+        return data.size();
+    }
+
+    synchronized long getHitCount() {
+        return hits;
+    }
+
+    synchronized long getMissCount() {
+        return misses;
+    }
+
+    synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    synchronized long getExpirationCount() {
+        return expirations;
+    }
+
+    /**
+     * Returns the cache size and hit / miss / eviction counters.
+     *
+     * @return the cache statistics
+     */
+    synchronized JsonValue getStatistics() {
+        return json(object(
+                field("size", data.size()),
+                field("maximumSize", maximumSize),
+                field("hits", hits),
+                field("misses", misses),
+                field("evictions", evictions),
+                field("expirations", expirations)));
+    }
+
+    private void onAccess(final Node<K, V> node) {
+        switch (node.queue) {
+        case WINDOW:
+            window.moveToLast(node);
+            break;
+        case PROBATION:
+            // Promote to the protected segment, demoting its LRU entry if it grows too large
+            probation.remove(node);
+            protectedQueue.addLast(node, PROTECTED);
+            if (protectedQueue.size > protectedMaximum) {
+                Node<K, V> demoted = protectedQueue.first();
+                protectedQueue.remove(demoted);
+                probation.addLast(demoted, PROBATION);
+            }
+            break;
+        default:
+            protectedQueue.moveToLast(node);
+            break;
+        }
+    }
+
+    private void evictIfNeeded(Node<K, V> candidate) {
+        while (data.size() > maximumSize) {
+            Node<K, V> victim = probation.first();
+            if (victim == null) {
+                victim = protectedQueue.first();
+            }
+            if (victim == null) {
+                victim = window.first();
+            }
+            if (candidate != null && candidate != victim
+                    && sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                // The candidate is not requested more often than the victim: reject it
+                victim = candidate;
+            }
+            if (victim == candidate) {
+                candidate = null;
+            }
+            remove(victim);
+            evictions++;
+        }
+    }
+
+    private void remove(final Node<K, V> node) {
+        data.remove(node.key);
+        switch (node.queue) {
+        case WINDOW:
+            window.remove(node);
+            break;
+        case PROBATION:
+            probation.remove(node);
+            break;
+        default:
+            protectedQueue.remove(node);
+            break;
+        }
+    }
+
+    private static final class Node<K, V> {
+        private final K key;
+        private V value;
+        private long expiresAt;
+        private int queue;
+        private Node<K, V> previous;
+        private Node<K, V> next;
+
+        Node(final K key, final V value, final long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Access-ordered doubly linked list of nodes, least recently used first.
+     */
+    private static final class Queue<K, V> {
+        private Node<K, V> head;
+        private Node<K, V> tail;
+        private int size;
+
+        Node<K, V> first() {
+            return head;
+        }
+
+        void addLast(final Node<K, V> node, final int queue) {
+            node.queue = queue;
+            node.previous = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            size++;
+        }
+
+        void remove(final Node<K, V> node) {
+            if (node.previous == null) {
+                head = node.next;
+            } else {
+                node.previous.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.previous;
+            } else {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+            size--;
+        }
+
+        void moveToLast(final Node<K, V> node) {
+            if (node != tail) {
+                int queue = node.queue;
+                remove(node);
+                addLast(node, queue);
+            }
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            size = 0;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters estimating how often a key has been requested recently. All the counters
+     * are halved once the number of recorded accesses reaches 10 times the cache capacity, so that the popularity
+     * of a key decays over time.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(final int maximumSize) {
+            int length = Integer.highestOneBit(Math.max(16, Math.min(maximumSize, 1 << 24)) - 1) << 1;
+            this.counters = new byte[length];
+            this.mask = length - 1;
+            this.sampleSize = 10 * maximumSize;
+        }
+
+        void increment(final int hashCode) {
+            int hash = spread(hashCode);
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(hash, i);
+                if (counters[index] < 15) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(final int hashCode) {
+            int hash = spread(hashCode);
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, counters[indexOf(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private void reset() {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = (byte) (counters[i] >>> 1);
+            }
+            additions /= 2;
+        }
+
+        private int indexOf(final int hash, final int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int) h & mask;
+        }
+
+        private static int spread(final int hashCode) {
+            int h = hashCode * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
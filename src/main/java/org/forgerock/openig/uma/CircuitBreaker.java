@@ -0,0 +1,319 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.header.Warning;
+import org.forgerock.http.header.WarningHeader;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.forgerock.http.header.WarningHeader.MISCELLANEOUS_WARNING;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+/**
+ * Guards the calls to one endpoint of the authorization server with a bulkhead and a circuit breaker.
+ * <p>
+ * The bulkhead caps the number of concurrent calls: calls beyond the cap are rejected immediately rather than
+ * queued. The circuit breaker records the outcome of the last {@code windowSize} calls, a call failing when the
+ * endpoint answers with a {@literal 5xx} status or takes longer than the slow call duration. Once at least
+ * {@code minimumCalls} are recorded and the failure rate reaches the threshold, the circuit opens and every call is
+ * rejected for the open duration. A single probe call is then let through (half-open): the circuit closes if it
+ * succeeds, and opens again otherwise.
+ * <p>
+ * Rejected calls complete with a {@literal 503 Service Unavailable} response carrying a {@literal Warning} header,
+ * which callers handle like any other error response of the endpoint. State changes are logged.
+ */
+class CircuitBreaker {
+
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * State of a circuit breaker.
+     */
+    enum State {
+        /** Calls go through. */
+        CLOSED,
+        /** Calls are rejected. */
+        OPEN,
+        /** A single probe call goes through. */
+        HALF_OPEN
+    }
+
+    private final String name;
+    private final Semaphore bulkhead;
+    private final int maxConcurrentCalls;
+    private final boolean[] window;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long slowCallMillis;
+    private final long openMillis;
+    private final TimeService time;
+
+    // Guarded by this
+    private State state = State.CLOSED;
+    private int position;
+    private int recorded;
+    private int failed;
+    private long openedAt;
+    private boolean probing;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong slowCalls = new AtomicLong();
+    private final AtomicLong rejectedByBulkhead = new AtomicLong();
+    private final AtomicLong rejectedByCircuit = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+
+    /**
+     * Creates a closed circuit breaker.
+     *
+     * @param name                 name of the guarded endpoint, used in logs and warnings
+     * @param maxConcurrentCalls   maximum number of concurrent calls, {@code 0} for no limit
+     * @param windowSize           number of recent calls whose outcome is recorded
+     * @param minimumCalls         minimum number of recorded calls before the circuit can open
+     * @param failureRateThreshold failure rate, between {@code 0} and {@code 1}, opening the circuit
+     * @param slowCallMillis       duration after which a call counts as failed, in milliseconds, {@code 0} to ignore
+     *                             latency
+     * @param openMillis           duration calls are rejected once the circuit opens, in milliseconds
+     * @param time                 time source
+     */
+    CircuitBreaker(final String name,
+                   final int maxConcurrentCalls,
+                   final int windowSize,
+                   final int minimumCalls,
+                   final double failureRateThreshold,
+                   final long slowCallMillis,
+                   final long openMillis,
+                   final TimeService time) {
+        this.name = name;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.bulkhead = maxConcurrentCalls > 0 ? new Semaphore(maxConcurrentCalls) : null;
+        this.window = new boolean[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, window.length));
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallMillis = slowCallMillis;
+        this.openMillis = openMillis;
+        this.time = time;
+    }
+
+    /**
+     * Sends the request with the given handler, unless the bulkhead is full or the circuit is open.
+     *
+     * @param handler handler used to call the endpoint
+     * @param context request context
+     * @param request request to the guarded endpoint
+     * @return the endpoint response, or a {@literal 503 Service Unavailable} response if the call is rejected
+     */
+    Promise<Response, NeverThrowsException> handle(final Handler handler,
+                                                   final Context context,
+                                                   final Request request) {
+        if (!acquirePermission()) {
+            rejectedByCircuit.incrementAndGet();
+            return newResponsePromise(rejected("circuit open"));
+        }
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            rejectedByBulkhead.incrementAndGet();
+            releaseProbe();
+            return newResponsePromise(rejected("too many concurrent calls"));
+        }
+
+        calls.incrementAndGet();
+        final long start = time.now();
+        try {
+            return handler.handle(context, request)
+                    .thenOnResult(new ResultHandler<Response>() {
+                        @Override
+                        public void handleResult(final Response response) {
+                            release();
+                            long elapsed = time.now() - start;
+                            boolean slow = slowCallMillis > 0 && elapsed > slowCallMillis;
+                            if (slow) {
+                                slowCalls.incrementAndGet();
+                            }
+                            record(slow || response.getStatus().isServerError());
+                        }
+                    })
+                    .thenOnRuntimeException(new RuntimeExceptionHandler() {
+                        @Override
+                        public void handleRuntimeException(final RuntimeException e) {
+                            release();
+                            record(true);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            release();
+            record(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the current state of the circuit.
+     *
+     * @return the circuit state
+     */
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the circuit state and the call counters.
+     *
+     * @return the circuit breaker statistics
+     */
+    JsonValue getStatistics() {
+        State current;
+        int rate;
+        synchronized (this) {
+            current = state;
+            rate = recorded > 0 ? failed * 100 / recorded : 0;
+        }
+        return json(object(
+                field("state", current.name()),
+                field("failureRate", rate),
+                field("calls", calls.get()),
+                field("failures", failures.get()),
+                field("slowCalls", slowCalls.get()),
+                field("inFlight", bulkhead != null ? maxConcurrentCalls - bulkhead.availablePermits() : -1),
+                field("rejectedByBulkhead", rejectedByBulkhead.get()),
+                field("rejectedByCircuit", rejectedByCircuit.get()),
+                field("opened", opened.get())));
+    }
+
+    private synchronized boolean acquirePermission() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (time.now() - openedAt < openMillis) {
+                return false;
+            }
+            transitionTo(State.HALF_OPEN);
+            probing = true;
+            return true;
+        default:
+            // Only one probe at a time
+            if (probing) {
+                return false;
+            }
+            probing = true;
+            return true;
+        }
+    }
+
+    private synchronized void releaseProbe() {
+        if (state == State.HALF_OPEN) {
+            probing = false;
+        }
+    }
+
+    private void release() {
+        if (bulkhead != null) {
+            bulkhead.release();
+        }
+    }
+
+    private synchronized void record(final boolean failure) {
+        if (failure) {
+            failures.incrementAndGet();
+        }
+        switch (state) {
+        case HALF_OPEN:
+            probing = false;
+            if (failure) {
+                open();
+            } else {
+                resetWindow();
+                transitionTo(State.CLOSED);
+            }
+            break;
+        case CLOSED:
+            if (recorded == window.length) {
+                if (window[position]) {
+                    failed--;
+                }
+            } else {
+                recorded++;
+            }
+            window[position] = failure;
+            if (failure) {
+                failed++;
+            }
+            position = (position + 1) % window.length;
+            if (recorded >= minimumCalls && failed >= failureRateThreshold * recorded) {
+                open();
+            }
+            break;
+        default:
+            // Calls started before the circuit opened
+            break;
+        }
+    }
+
+    private void open() {
+        openedAt = time.now();
+        opened.incrementAndGet();
+        resetWindow();
+        transitionTo(State.OPEN);
+    }
+
+    private void resetWindow() {
+        position = 0;
+        recorded = 0;
+        failed = 0;
+    }
+
+    private void transitionTo(final State newState) {
+        if (state != newState) {
+            if (newState == State.OPEN) {
+                logger.warn("Circuit breaker of the {} endpoint is now {}, calls are rejected for {} ms",
+                        name, newState, openMillis);
+            } else {
+                logger.info("Circuit breaker of the {} endpoint is now {}", name, newState);
+            }
+            state = newState;
+        }
+    }
+
+    private Response rejected(final String reason) {
+        Response response = new Response(Status.SERVICE_UNAVAILABLE);
+        response.getHeaders().put(new WarningHeader(new Warning(MISCELLANEOUS_WARNING,
+                "-",
+                "Call to the " + name + " endpoint rejected: " + reason)));
+        response.setEntity("Call to the " + name + " endpoint rejected: " + reason);
+        return response;
+    }
+}
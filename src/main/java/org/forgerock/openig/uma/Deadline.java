@@ -0,0 +1,136 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+import org.forgerock.util.time.TimeService;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The deadline of one request, shared by the successive phases of its processing: each phase gets its own budget,
+ * capped by the time left before the deadline.
+ * <p>
+ * A phase still running when its budget is used up is completed with the outcome of a timeout function instead. The
+ * phase itself is left running: its promise may be shared with other requests, as coalesced introspections are, so
+ * only the owner of the underlying operation may abandon it.
+ */
+final class Deadline {
+
+    private final ScheduledExecutorService executor;
+    private final TimeService time;
+    private final long expiresAt;
+
+    /**
+     * Starts a new deadline.
+     *
+     * @param executor      executor used to time out the phases
+     * @param time          time source
+     * @param timeoutMillis time allowed to the whole request, in milliseconds, {@link Long#MAX_VALUE} for no deadline
+     */
+    Deadline(final ScheduledExecutorService executor, final TimeService time, final long timeoutMillis) {
+        this.executor = executor;
+        this.time = time;
+        long now = time.now();
+        this.expiresAt = timeoutMillis >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeoutMillis;
+    }
+
+    /**
+     * Returns the time allowed to a phase: its own budget, capped by the time left before the deadline.
+     *
+     * @param budgetMillis budget of the phase, in milliseconds, {@link Long#MAX_VALUE} for no budget
+     * @return the time allowed to the phase, in milliseconds, {@code 0} if the deadline has passed
+     */
+    long budget(final long budgetMillis) {
+        if (expiresAt == Long.MAX_VALUE) {
+            return budgetMillis;
+        }
+        return Math.max(0L, Math.min(budgetMillis, expiresAt - time.now()));
+    }
+
+    /**
+     * Limits the given phase to the given time. The phase is not cancelled when it times out, only no longer waited
+     * for.
+     *
+     * @param phase     promise of the running phase
+     * @param timeout   time allowed to the phase, in milliseconds, as returned by {@link #budget(long)}
+     * @param onTimeout gives the outcome of the phase when it times out, either a result or an exception
+     * @param <V>       type of the phase result
+     * @param <E>       type of the phase failure
+     * @return a promise completed with the outcome of the phase, or of the timeout function
+     */
+    <V, E extends Exception> Promise<V, E> limit(final Promise<V, E> phase,
+                                                 final long timeout,
+                                                 final Function<TimeoutException, V, E> onTimeout) {
+        if (timeout == Long.MAX_VALUE || phase.isDone()) {
+            return phase;
+        }
+        final PromiseImpl<V, E> limited = PromiseImpl.create();
+        final ScheduledFuture<?> timer = executor.schedule(new Runnable() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run() {
+                if (limited.isDone()) {
+                    return;
+                }
+                TimeoutException timeoutException = new TimeoutException("Timed out after " + timeout + " ms");
+                try {
+                    limited.tryHandleResult(onTimeout.apply(timeoutException));
+                } catch (RuntimeException e) {
+                    limited.handleRuntimeException(e);
+                } catch (Exception e) {
+                    // Only E can be thrown by the timeout function
+                    limited.tryHandleException((E) e);
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        phase.thenOnResult(new ResultHandler<V>() {
+            @Override
+            public void handleResult(final V result) {
+                if (limited.tryHandleResult(result)) {
+                    timer.cancel(false);
+                }
+            }
+        }).thenOnException(new ExceptionHandler<E>() {
+            @Override
+            public void handleException(final E exception) {
+                if (limited.tryHandleException(exception)) {
+                    timer.cancel(false);
+                }
+            }
+        }).thenOnRuntimeException(new RuntimeExceptionHandler() {
+            @Override
+            public void handleRuntimeException(final RuntimeException exception) {
+                // Ignored if the phase already timed out
+                limited.handleRuntimeException(exception);
+                timer.cancel(false);
+            }
+        });
+        return limited;
+    }
+}
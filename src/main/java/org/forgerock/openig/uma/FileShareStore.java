@@ -0,0 +1,350 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.opendj.ldap.ResultCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.object;
+
+/**
+ * Share store keeping the shares and PATs in memory, like {@link MemoryShareStore}, and every change in an
+ * append-only log file, so that they survive restarts without any directory server.
+ * <p>
+ * Each change is one record appended to {@value #LOG_FILE} in the store directory: a type byte, the payload length,
+ * the payload encoded with {@link ShareCodec} and a CRC-32 of the type and payload. At startup the log is
+ * memory-mapped and replayed to rebuild the in-memory indexes; a record cut short or corrupted by a crash ends the
+ * replay and is truncated. Once the log holds more superseded records than live ones, it is compacted: the live
+ * shares and PATs are written to a new log, which then atomically replaces the old one.
+ * <p>
+ * Records are handed to the file system as part of each change, but only forced to the disk when {@code sync} is set:
+ * without it, a change may be lost if the host (not only OpenIG) crashes.
+ * <p>
+ * The log holds the PATs and refresh tokens of the users in clear: where the file system supports POSIX permissions,
+ * it is only readable and writable by its owner.
+ */
+final class FileShareStore extends MemoryShareStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileShareStore.class);
+
+    /** Name of the log file in the store directory. */
+    static final String LOG_FILE = "shares.log";
+
+    private static final byte SHARE_RECORD = 1;
+    private static final byte REMOVAL_RECORD = 2;
+    private static final byte PAT_RECORD = 3;
+
+    /** Type, payload length and CRC. */
+    private static final int RECORD_OVERHEAD = 1 + 4 + 4;
+
+    /** The log is never compacted below this number of superseded records. */
+    private static final long MIN_SUPERSEDED_RECORDS = 1000;
+
+    private static final Set<PosixFilePermission> OWNER_READ_WRITE = PosixFilePermissions.fromString("rw-------");
+
+    private final Path logFile;
+    private final boolean sync;
+    private FileChannel log;
+    private long records;
+    private long superseded;
+    private final AtomicLong compactions = new AtomicLong();
+    private final long replayMillis;
+
+    /**
+     * Opens the store kept in the given directory, replaying its log.
+     *
+     * @param directory directory of the log, created if needed
+     * @param sync      {@code true} to force every record to the disk before completing the change
+     * @throws IOException if the log cannot be read or opened
+     */
+    FileShareStore(final Path directory, final boolean sync) throws IOException {
+        this.logFile = directory.resolve(LOG_FILE);
+        this.sync = sync;
+        Files.createDirectories(directory);
+        long start = System.currentTimeMillis();
+        if (Files.exists(logFile)) {
+            // Created by a version not restricting its permissions
+            restrictToOwner(logFile);
+            replay();
+        }
+        replayMillis = System.currentTimeMillis() - start;
+        logger.info("Loaded {} UMA shares and {} PATs from {} in {} ms",
+                shares().size(), pats().size(), logFile, replayMillis);
+        synchronized (this) {
+            if (needsCompaction()) {
+                compact();
+            }
+            log = openLog();
+        }
+    }
+
+    @Override
+    void persistShare(final ShareExt share) throws LdapException {
+        append(SHARE_RECORD, share, null, 0);
+    }
+
+    @Override
+    void persistRemoval(final ShareExt share) throws LdapException {
+        // Both the share record and its removal are superseded
+        append(REMOVAL_RECORD, share, null, 2);
+    }
+
+    @Override
+    void persistPat(final SharedPat pat, final SharedPat previous) throws LdapException {
+        append(PAT_RECORD, null, pat, previous != null ? 1 : 0);
+    }
+
+    @Override
+    public JsonValue getStatistics() {
+        JsonValue statistics = super.getStatistics();
+        statistics.put("type", "file");
+        synchronized (this) {
+            statistics.put("log", object(
+                    field("records", records),
+                    field("superseded", superseded),
+                    field("compactions", compactions.get()),
+                    field("replayMillis", replayMillis)));
+        }
+        return statistics;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            log.close();
+        } catch (IOException e) {
+            logger.warn("Unable to close {}", logFile, e);
+        }
+    }
+
+    /**
+     * Appends a record to the log, compacting it first when needed. Called with the store lock held.
+     *
+     * @param supersedes number of records superseded by the appended one, including itself
+     */
+    private void append(final byte type, final ShareExt share, final SharedPat pat, final int supersedes)
+            throws LdapException {
+        try {
+            if (needsCompaction()) {
+                compact();
+                log.close();
+                log = openLog();
+            }
+            ByteBuffer record = record(type, encode(type, share, pat));
+            while (record.hasRemaining()) {
+                log.write(record);
+            }
+            if (sync) {
+                log.force(false);
+            }
+            records++;
+            superseded += supersedes;
+        } catch (IOException e) {
+            throw LdapException.newLdapException(ResultCode.UNAVAILABLE, "Unable to write " + logFile, e);
+        }
+    }
+
+    private boolean needsCompaction() {
+        return superseded >= MIN_SUPERSEDED_RECORDS && superseded > records - superseded;
+    }
+
+    /**
+     * Rewrites the log with the live shares and PATs only. Called with the store lock held.
+     */
+    private void compact() throws IOException {
+        Path compacted = logFile.resolveSibling(LOG_FILE + ".compact");
+        long written = 0;
+        // Left over by a crash: only a new file gets the owner only permissions
+        Files.deleteIfExists(compacted);
+        try (FileChannel channel = FileChannel.open(compacted,
+                EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), ownerOnly(compacted))) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            for (ShareExt share : shares()) {
+                writeRecord(out, SHARE_RECORD, encode(SHARE_RECORD, share, null));
+                written++;
+            }
+            for (SharedPat pat : pats()) {
+                writeRecord(out, PAT_RECORD, encode(PAT_RECORD, null, pat));
+                written++;
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(compacted, logFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        logger.info("Compacted {} from {} to {} records", logFile, records, written);
+        records = written;
+        superseded = 0;
+        compactions.incrementAndGet();
+    }
+
+    /**
+     * Replays the log, truncating the records that cannot be read back.
+     */
+    private void replay() throws IOException {
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(logFile + " is too large to be mapped, " + size + " bytes");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            int valid = 0;
+            while (buffer.remaining() >= RECORD_OVERHEAD) {
+                byte type = buffer.get();
+                int length = buffer.getInt();
+                if (length < 0 || buffer.remaining() < length + 4) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                crc.reset();
+                crc.update(type);
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != buffer.getInt() || !apply(type, ByteBuffer.wrap(payload))) {
+                    break;
+                }
+                records++;
+                valid = buffer.position();
+            }
+            if (valid < size) {
+                logger.warn("Truncating {} bytes of incomplete or corrupted records at the end of {}",
+                        size - valid, logFile);
+                channel.truncate(valid);
+            }
+        }
+        superseded = records - shares().size() - pats().size();
+    }
+
+    private boolean apply(final byte type, final ByteBuffer payload) {
+        try {
+            switch (type) {
+            case SHARE_RECORD:
+                putShare(ShareCodec.readShare(payload));
+                return true;
+            case REMOVAL_RECORD:
+                deleteShare(ShareCodec.readString(payload));
+                return true;
+            case PAT_RECORD:
+                putPat(ShareCodec.readPat(payload));
+                return true;
+            default:
+                return false;
+            }
+        } catch (RuntimeException e) {
+            // A payload matching its CRC but not its type, written by another version for instance
+            logger.warn("Unable to read a record of type {} from {}", type, logFile, e);
+            return false;
+        }
+    }
+
+    private FileChannel openLog() throws IOException {
+        return FileChannel.open(logFile,
+                EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND),
+                ownerOnly(logFile));
+    }
+
+    /**
+     * Returns the attributes creating the given file readable and writable by its owner only, where the file system
+     * supports POSIX permissions: the files written by OpenIG hold PATs and refresh tokens in clear.
+     *
+     * @param file file to create
+     * @return the attributes to create the file with, none if POSIX permissions are not supported
+     */
+    static FileAttribute<?>[] ownerOnly(final Path file) {
+        if (!isPosix(file)) {
+            return new FileAttribute<?>[0];
+        }
+        return new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(OWNER_READ_WRITE) };
+    }
+
+    /**
+     * Makes the given existing file readable and writable by its owner only, where the file system supports POSIX
+     * permissions.
+     *
+     * @param file existing file
+     * @throws IOException if the permissions cannot be changed
+     */
+    static void restrictToOwner(final Path file) throws IOException {
+        if (isPosix(file)) {
+            Files.setPosixFilePermissions(file, OWNER_READ_WRITE);
+        }
+    }
+
+    private static boolean isPosix(final Path file) {
+        return file.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    private static byte[] encode(final byte type, final ShareExt share, final SharedPat pat) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        switch (type) {
+        case SHARE_RECORD:
+            ShareCodec.writeShare(out, share);
+            break;
+        case REMOVAL_RECORD:
+            ShareCodec.writeString(out, share.getId());
+            break;
+        default:
+            ShareCodec.writePat(out, pat);
+            break;
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ByteBuffer record(final byte type, final byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + payload.length);
+        record.put(type).putInt(payload.length).put(payload).putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static void writeRecord(final OutputStream out, final byte type, final byte[] payload)
+            throws IOException {
+        ByteBuffer record = record(type, payload);
+        out.write(record.array(), 0, record.limit());
+    }
+}
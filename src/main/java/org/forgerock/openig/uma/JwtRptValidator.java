@@ -0,0 +1,289 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.jose.common.JwtReconstruction;
+import org.forgerock.json.jose.exceptions.JwtRuntimeException;
+import org.forgerock.json.jose.jwk.EcJWK;
+import org.forgerock.json.jose.jwk.JWK;
+import org.forgerock.json.jose.jwk.JWKSet;
+import org.forgerock.json.jose.jwk.RsaJWK;
+import org.forgerock.json.jose.jws.JwsAlgorithmType;
+import org.forgerock.json.jose.jws.SignedJwt;
+import org.forgerock.json.jose.jws.SigningManager;
+import org.forgerock.json.jose.jws.handlers.SigningHandler;
+import org.forgerock.json.jose.jwt.JwtClaimsSet;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.Utils.closeSilently;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+/**
+ * Validates signed JWT RPTs locally, without calling the introspection endpoint: the signature is verified against
+ * the RSA or EC keys of a JWK set, then the {@literal exp}, {@literal iss} and {@literal aud} claims are checked and
+ * the granted permissions are read from the {@literal permissions} claim.
+ * <p>
+ * The JWK set is either provided once, or fetched from a URI and refreshed periodically; it is also refreshed (at
+ * most once a minute) when a token is signed with an unknown key. Opaque tokens, unsigned tokens and tokens that
+ * cannot be checked because the JWK set is unavailable are left to the introspection endpoint.
+ */
+class JwtRptValidator {
+
+    private static final Logger logger = LoggerFactory.getLogger(JwtRptValidator.class);
+
+    private static final long MIN_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Handler handler;
+    private final URI jwkSetUri;
+    private final String issuer;
+    private final String audience;
+    private final long refreshMillis;
+    private final TimeService time;
+    private final SigningManager signingManager = new SigningManager();
+    private final SingleFlight<URI, JWKSet, IOException> fetches = new SingleFlight<>();
+
+    private volatile JWKSet jwkSet;
+    private volatile long lastFetchAt;
+    private volatile long nextFetchAt;
+
+    /**
+     * Creates a validator using a fixed JWK set.
+     *
+     * @param jwkSet   keys the RPTs are signed with
+     * @param issuer   expected {@literal iss} claim, {@code null} to not check it
+     * @param audience expected {@literal aud} claim value, {@code null} to not check it
+     * @param time     time source used to check the expiration of the tokens
+     */
+    JwtRptValidator(final JWKSet jwkSet, final String issuer, final String audience, final TimeService time) {
+        this(null, null, issuer, audience, Long.MAX_VALUE, time);
+        this.jwkSet = jwkSet;
+    }
+
+    /**
+     * Creates a validator using a JWK set fetched from the given URI.
+     *
+     * @param handler       handler used to fetch the JWK set
+     * @param jwkSetUri     URI of the JWK set
+     * @param issuer        expected {@literal iss} claim, {@code null} to not check it
+     * @param audience      expected {@literal aud} claim value, {@code null} to not check it
+     * @param refreshMillis delay after which the JWK set is fetched again, in milliseconds
+     * @param time          time source used to check the expiration of the tokens and refresh the JWK set
+     */
+    JwtRptValidator(final Handler handler,
+                    final URI jwkSetUri,
+                    final String issuer,
+                    final String audience,
+                    final long refreshMillis,
+                    final TimeService time) {
+        this.handler = handler;
+        this.jwkSetUri = jwkSetUri;
+        this.issuer = issuer;
+        this.audience = audience;
+        this.refreshMillis = refreshMillis;
+        this.time = time;
+    }
+
+    /**
+     * Returns {@code true} if the given token looks like a JWS compact serialization (three dot separated parts).
+     *
+     * @param token access token
+     * @return {@code true} if the token may be a signed JWT
+     */
+    static boolean isJwt(final String token) {
+        int first = token.indexOf('.');
+        int last = token.lastIndexOf('.');
+        return first > 0 && last > first && token.indexOf('.', first + 1) == last;
+    }
+
+    /**
+     * Validates the given RPT locally.
+     *
+     * @param context Context chain used to keep a relationship between requests (tracking)
+     * @param token   RPT
+     * @return a promise completed with the validation result ({@link TokenIntrospection#INACTIVE} if the token is
+     * rejected), or with {@code null} if the token cannot be validated locally and must be introspected. The promise
+     * never fails.
+     */
+    Promise<TokenIntrospection, IOException> validate(final Context context, final String token) {
+        final SignedJwt jwt;
+        try {
+            jwt = new JwtReconstruction().reconstructJwt(token, SignedJwt.class);
+        } catch (JwtRuntimeException e) {
+            logger.trace("RPT is not a signed JWT, falling back to introspection", e);
+            return newResultPromise(null);
+        }
+
+        final String keyId = jwt.getHeader().getKeyId();
+        return getJwkSet(context, false)
+                .thenAsync(new AsyncFunction<JWKSet, JWKSet, IOException>() {
+                    @Override
+                    public Promise<JWKSet, IOException> apply(final JWKSet keys) {
+                        if (keys != null && findJwk(keys, keyId) == null) {
+                            // The keys may have been rolled over
+                            return getJwkSet(context, true);
+                        }
+                        return newResultPromise(keys);
+                    }
+                })
+                .then(new Function<JWKSet, TokenIntrospection, IOException>() {
+                    @Override
+                    public TokenIntrospection apply(final JWKSet keys) {
+                        if (keys == null) {
+                            return null;
+                        }
+                        JWK jwk = findJwk(keys, keyId);
+                        if (jwk == null) {
+                            logger.debug("RPT signed with unknown key '{}'", keyId);
+                            return TokenIntrospection.INACTIVE;
+                        }
+                        return verify(jwt, jwk);
+                    }
+                });
+    }
+
+    /**
+     * Returns the key with the given identifier, or the only key of the set when the token does not name one.
+     */
+    private static JWK findJwk(final JWKSet keys, final String keyId) {
+        if (keyId == null) {
+            List<JWK> jwks = keys.getJWKsAsList();
+            return jwks.size() == 1 ? jwks.get(0) : null;
+        }
+        return keys.findJwk(keyId);
+    }
+
+    private TokenIntrospection verify(final SignedJwt jwt, final JWK jwk) {
+        SigningHandler signingHandler = signingHandler(jwt, jwk);
+        if (signingHandler == null || !jwt.verify(signingHandler)) {
+            logger.debug("Invalid RPT signature");
+            return TokenIntrospection.INACTIVE;
+        }
+
+        JwtClaimsSet claims = jwt.getClaimsSet();
+        Date expiration = claims.getExpirationTime();
+        if (expiration == null || expiration.getTime() <= time.now()) {
+            logger.debug("Expired RPT");
+            return TokenIntrospection.INACTIVE;
+        }
+        if (issuer != null && !issuer.equals(claims.getIssuer())) {
+            logger.debug("RPT issued by '{}', was expecting '{}'", claims.getIssuer(), issuer);
+            return TokenIntrospection.INACTIVE;
+        }
+        if (audience != null) {
+            List<String> audiences = claims.getAudience();
+            if (audiences == null || !audiences.contains(audience)) {
+                logger.debug("RPT audience {} does not contain '{}'", audiences, audience);
+                return TokenIntrospection.INACTIVE;
+            }
+        }
+
+        return TokenIntrospection.fromJson(json(object(
+                field("active", true),
+                field("sub", claims.getSubject()),
+                field("exp", TimeUnit.MILLISECONDS.toSeconds(expiration.getTime())),
+                field("permissions", claims.getClaim("permissions")))));
+    }
+
+    /**
+     * Returns a handler verifying the signature with the given key, only if the token algorithm matches the key
+     * type: a token must not be able to pick another algorithm (such as an HMAC keyed with the public key).
+     */
+    private SigningHandler signingHandler(final SignedJwt jwt, final JWK jwk) {
+        JwsAlgorithmType algorithmType = jwt.getHeader().getAlgorithm().getAlgorithmType();
+        if (jwk instanceof RsaJWK && algorithmType == JwsAlgorithmType.RSA) {
+            return signingManager.newRsaSigningHandler(((RsaJWK) jwk).toRSAPublicKey());
+        }
+        if (jwk instanceof EcJWK && algorithmType == JwsAlgorithmType.ECDSA) {
+            return signingManager.newEcdsaVerificationHandler(((EcJWK) jwk).toECPublicKey());
+        }
+        logger.debug("RPT algorithm {} does not match the type of key '{}'", algorithmType, jwk.getKeyId());
+        return null;
+    }
+
+    /**
+     * Returns the JWK set, fetching it again when too old. The previous JWK set is kept if it cannot be fetched.
+     *
+     * @param context Context chain used to keep a relationship between requests (tracking)
+     * @param force   {@code true} to fetch the JWK set even if not too old, at most once a minute
+     * @return a promise completed with the JWK set, or {@code null} if unavailable
+     */
+    private Promise<JWKSet, IOException> getJwkSet(final Context context, final boolean force) {
+        JWKSet keys = jwkSet;
+        if (jwkSetUri == null) {
+            return newResultPromise(keys);
+        }
+        long now = time.now();
+        if (now < nextFetchAt && !(force && now - lastFetchAt >= MIN_REFRESH_MILLIS)) {
+            return newResultPromise(keys);
+        }
+        return fetches.execute(jwkSetUri, new AsyncFunction<URI, JWKSet, IOException>() {
+            @Override
+            public Promise<JWKSet, IOException> apply(final URI uri) {
+                Request request = new Request();
+                request.setMethod("GET");
+                request.setUri(uri);
+                request.getHeaders().put("Accept", "application/json");
+                return handler.handle(context, request)
+                        .then(new Function<Response, JWKSet, IOException>() {
+                            @Override
+                            public JWKSet apply(final Response response) {
+                                long now = time.now();
+                                lastFetchAt = now;
+                                try {
+                                    if (Status.OK == response.getStatus()) {
+                                        jwkSet = JWKSet.parse(response.getEntity().getString());
+                                        nextFetchAt = now + Math.min(refreshMillis, Long.MAX_VALUE - now);
+                                        return jwkSet;
+                                    }
+                                    logger.warn("Got a {} Response from '{}' while fetching the RPT JWK set",
+                                            response.getStatus(), uri);
+                                } catch (IOException | RuntimeException e) {
+                                    logger.warn("Cannot read the RPT JWK set from '{}'", uri, e);
+                                } finally {
+                                    closeSilently(response);
+                                }
+                                // Keep the previous keys, and do not hammer the JWK set endpoint while it fails
+                                nextFetchAt = now + MIN_REFRESH_MILLIS;
+                                return jwkSet;
+                            }
+                        });
+            }
+        });
+    }
+}
@@ -20,32 +20,375 @@
 
 package org.forgerock.openig.uma;
 
+import org.forgerock.json.JsonValue;
 import org.forgerock.opendj.ldap.*;
+import org.forgerock.opendj.ldap.controls.EntryChangeNotificationResponseControl;
+import org.forgerock.opendj.ldap.controls.PersistentSearchChangeType;
+import org.forgerock.opendj.ldap.controls.PersistentSearchRequestControl;
+import org.forgerock.opendj.ldap.controls.ServerSideSortRequestControl;
+import org.forgerock.opendj.ldap.controls.SimplePagedResultsControl;
+import org.forgerock.opendj.ldap.messages.AddRequest;
+import org.forgerock.opendj.ldap.messages.ModifyRequest;
+import org.forgerock.opendj.ldap.messages.Result;
+import org.forgerock.opendj.ldap.messages.SearchRequest;
 import org.forgerock.opendj.ldap.messages.SearchResultEntry;
+import org.forgerock.opendj.ldap.messages.SearchResultReference;
 import org.forgerock.opendj.ldif.ConnectionEntryReader;
-import org.forgerock.openig.ldap.LdapClient;
-import org.forgerock.openig.ldap.LdapConnection;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Function;
+import org.forgerock.util.Options;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class LDAPManager {
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.opendj.ldap.messages.Requests.newAddRequest;
+import static org.forgerock.opendj.ldap.messages.Requests.newDeleteRequest;
+import static org.forgerock.opendj.ldap.messages.Requests.newModifyDNRequest;
+import static org.forgerock.opendj.ldap.messages.Requests.newModifyRequest;
+import static org.forgerock.opendj.ldap.messages.Requests.newSearchRequest;
+import static org.forgerock.opendj.ldap.messages.Requests.newSimpleBindRequest;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
 
-    private LdapClient ldapClient;
-    private String baseDN;
-    private String userName;
-    private String password;
-    private String hostname;
-    private int port;
+public class LDAPManager implements ShareStore {
 
-    public LDAPManager(String hostname, int port, String userName, String password, String baseDN) {
-        this.userName = userName;
-        this.password = password;
-        this.hostname = hostname;
-        this.port = port;
+    private static final Logger logger = LoggerFactory.getLogger(LDAPManager.class);
+
+    /** All the share attributes, used when the full share is returned to the user. */
+    static final String[] ALL_ATTRIBUTES = {"umaResourceId", "umaResourceSetId", "umaResourceURI", "umaResourceName",
+            "umaResoucePAT", "umaResourcePolicyURI", "umaResourceUserID", "umaResourceRealm", "umaResourceClientId",
+            "umaPATId"};
+
+    /** Share attributes required to protect a request: identifiers, PAT reference and matching criteria. */
+    static final String[] LOOKUP_ATTRIBUTES = {"umaResourceId", "umaResourceSetId", "umaResourceURI",
+            "umaResoucePAT", "umaPATId", "umaResourceUserID"};
+
+    /** All the attributes of a PAT entry. */
+    static final String[] PAT_ATTRIBUTES = {"umaPATId", "umaResoucePAT", "umaResourceRT", "umaResourcePATExpiry",
+            "umaResourceUserID", "umaResourceRealm", "umaResourceClientId"};
+
+    /** Share URI only, used to build the filter of known share URIs. */
+    static final String[] URI_ATTRIBUTES = {"umaResourceURI"};
+
+    /** No attribute at all, used for existence checks. */
+    static final String[] NO_ATTRIBUTES = {"1.1"};
+
+    private static final Filter SHARES_FILTER = Filter.equality("objectClass", "frUmaRS");
+
+    private static final Filter PATS_FILTER = Filter.equality("objectClass", "frUmaPAT");
+
+    /** Shares registered against a URI template or a path prefix, see {@link ShareUriIndex}. */
+    private static final Filter PATTERN_SHARES_FILTER = Filter.and(SHARES_FILTER, Filter.or(
+            Filter.substrings("umaResourceURI", null, Collections.singletonList("{"), null),
+            Filter.substrings("umaResourceURI", null, null, "*")));
+
+    private final ConnectionFactory connectionFactory;
+    private final ConnectionPool connectionPool;
+    private final String baseDN;
+    private final DN searchBaseDN;
+    private final ShareLayout layout;
+    private final int poolSize;
+    private final int corePoolSize;
+    private final long maxWaitMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong acquiredConnections = new AtomicLong();
+    private final AtomicLong acquireTimeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong searchOperations = new AtomicLong();
+    private final AtomicLong addOperations = new AtomicLong();
+    private final AtomicLong deleteOperations = new AtomicLong();
+    private final AtomicLong modifyOperations = new AtomicLong();
+    private final AtomicLong abandonedSearches = new AtomicLong();
+
+    /**
+     * Creates a LDAPManager backed by a pool of connections pre-authenticated with the given credentials.
+     *
+     * @param hostname     LDAP host
+     * @param port         LDAP port
+     * @param userName     bind DN used by every pooled connection
+     * @param password     bind password
+     * @param baseDN       base DN under which shares are stored
+     * @param poolSize     maximum number of pooled connections
+     * @param corePoolSize number of connections opened at startup and kept open when idle
+     * @param idleTimeout  idle time after which connections above {@code corePoolSize} are closed, unlimited for a
+     *                     fixed size pool
+     * @param maxWait      maximum time to wait for a pooled connection
+     * @param layout       layout of the share entries under the base DN
+     * @param scheduler    executor used to time out the asynchronous connection requests after {@code maxWait}
+     */
+    public LDAPManager(String hostname, int port, String userName, String password, String baseDN,
+                       int poolSize, int corePoolSize, Duration idleTimeout, Duration maxWait, ShareLayout layout,
+                       ScheduledExecutorService scheduler) {
+        // Every connection is bound once when opened and checked periodically with a heartbeat, so that stale
+        // connections are evicted from the pool before being handed to a request
+        this(new LDAPConnectionFactory(hostname, port, Options.defaultOptions()
+                        .set(LDAPConnectionFactory.AUTHN_BIND_REQUEST,
+                                newSimpleBindRequest(userName, password.toCharArray()))
+                        .set(LDAPConnectionFactory.HEARTBEAT_ENABLED, true)),
+                baseDN, poolSize, corePoolSize, idleTimeout, maxWait, layout, scheduler);
+    }
+
+    /**
+     * Creates a LDAPManager backed by a pool of connections opened by the given factory.
+     *
+     * @param connectionFactory opens the pooled connections, and the dedicated ones, already authenticated
+     * @param baseDN            base DN under which shares are stored
+     * @param poolSize          maximum number of pooled connections
+     * @param corePoolSize      number of connections opened at startup and kept open when idle
+     * @param idleTimeout       idle time after which connections above {@code corePoolSize} are closed, unlimited for
+     *                          a fixed size pool
+     * @param maxWait           maximum time to wait for a pooled connection
+     * @param layout            layout of the share entries under the base DN
+     * @param scheduler         executor used to time out the asynchronous connection requests after {@code maxWait}
+     */
+    LDAPManager(ConnectionFactory connectionFactory, String baseDN, int poolSize, int corePoolSize,
+                Duration idleTimeout, Duration maxWait, ShareLayout layout, ScheduledExecutorService scheduler) {
+        this.connectionFactory = connectionFactory;
         this.baseDN = baseDN;
+        this.searchBaseDN = DN.valueOf(baseDN);
+        this.layout = layout;
+        this.poolSize = poolSize;
+        this.corePoolSize = Math.min(corePoolSize, poolSize);
+        this.maxWaitMillis = maxWait.isUnlimited() ? Long.MAX_VALUE : maxWait.to(TimeUnit.MILLISECONDS);
+        this.scheduler = scheduler;
+
+        if (idleTimeout.isUnlimited()) {
+            this.connectionPool = Connections.newFixedConnectionPool(connectionFactory, poolSize);
+        } else {
+            this.connectionPool = Connections.newCachedConnectionPool(connectionFactory, this.corePoolSize, poolSize,
+                    idleTimeout.to(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Opens the core connections of the pool, so that the first requests do not pay the connect and bind cost.
+     * Failures are logged only: the pool will retry opening connections on demand.
+     */
+    void warmUp() {
+        List<Connection> connections = new ArrayList<>();
+        try {
+            for (int i = 0; i < corePoolSize; i++) {
+                connections.add(getConnection());
+            }
+        } catch (LdapException e) {
+            logger.warn("Unable to pre-open LDAP connections, opened {} out of {}", connections.size(), corePoolSize, e);
+        } finally {
+            for (Connection connection : connections) {
+                release(connection);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection pool and all its connections.
+     */
+    @Override
+    public void close() {
+        connectionPool.close();
+        connectionFactory.close();
+    }
 
-        this.ldapClient = LdapClient.getInstance();
+    /**
+     * Opens a dedicated, authenticated connection outside of the pool, for long running operations such as
+     * persistent searches. The caller is responsible for closing it.
+     *
+     * @return a promise completed with the opened connection
+     */
+    Promise<Connection, LdapException> openConnectionAsync() {
+        return connectionFactory.getConnectionAsync();
+    }
+
+    /**
+     * Reads all the shares stored under the base DN, one page at a time, and hands them to the given listener.
+     *
+     * @param listener receives every share read
+     * @param pageSize number of entries requested per page
+     * @throws LdapException
+     */
+    @Override
+    public void readAllShares(ShareListener listener, int pageSize) throws LdapException {
+        readShares(SHARES_FILTER, ALL_ATTRIBUTES, listener, pageSize);
+    }
+
+    /**
+     * Reads the shares registered against a URI template or a path prefix.
+     *
+     * @param listener receives every share read
+     * @param pageSize number of entries requested per page
+     * @throws LdapException
+     */
+    @Override
+    public void readPatternShares(final ShareListener listener, int pageSize) throws LdapException {
+        readShares(PATTERN_SHARES_FILTER, ALL_ATTRIBUTES, new ShareListener() {
+            @Override
+            public void shareAdded(final ShareExt share) {
+                // The filter also matches exact URIs holding a '{' or ending with a '*'
+                if (ShareUriIndex.isPattern(share.getRequestURI())) {
+                    listener.shareAdded(share);
+                }
+            }
+
+            @Override
+            public void shareRemoved(final String shareId) {
+                listener.shareRemoved(shareId);
+            }
+        }, pageSize);
+    }
+
+    /**
+     * Reads the URI of every share stored under the base DN: the shares handed to the listener only have their
+     * request URI set.
+     *
+     * @param listener receives every share read
+     * @param pageSize number of entries requested per page
+     * @throws LdapException
+     */
+    @Override
+    public void readShareUris(ShareListener listener, int pageSize) throws LdapException {
+        readShares(SHARES_FILTER, URI_ATTRIBUTES, listener, pageSize);
+    }
+
+    /**
+     * Reads the PATs holding a refresh token and expiring at or before the given time.
+     *
+     * @param expiresBefore expiration time, in milliseconds since the epoch
+     * @param pageSize      number of entries requested per page
+     * @return the expiring PATs
+     * @throws LdapException
+     */
+    @Override
+    public List<SharedPat> readExpiringPats(long expiresBefore, int pageSize) throws LdapException {
+        final List<SharedPat> pats = new ArrayList<>();
+        readEntries(Filter.and(PATS_FILTER,
+                Filter.present("umaResourceRT"),
+                Filter.lessOrEqual("umaResourcePATExpiry", GeneralizedTime.valueOf(expiresBefore).toString())),
+                PAT_ATTRIBUTES, new EntryHandler() {
+                    @Override
+                    public void handleEntry(final SearchResultEntry entry) {
+                        pats.add(toPat(entry));
+                    }
+                }, pageSize);
+        return pats;
+    }
+
+    private void readShares(Filter filter, String[] attributes, final ShareListener listener, int pageSize)
+            throws LdapException {
+        readEntries(filter, attributes, new EntryHandler() {
+            @Override
+            public void handleEntry(final SearchResultEntry entry) {
+                listener.shareAdded(toShare(entry));
+            }
+        }, pageSize);
+    }
+
+    /**
+     * Reads the entries matching the given filter under the base DN, one page at a time.
+     */
+    private void readEntries(Filter filter, String[] attributes, EntryHandler handler, int pageSize)
+            throws LdapException {
+        Connection ldapConnection = getConnection();
+        try {
+            ByteString cookie = ByteString.empty();
+            do {
+                SearchRequest request = newSearchRequest(searchBaseDN, SearchScope.WHOLE_SUBTREE, filter, attributes)
+                        .addControl(SimplePagedResultsControl.newControl(true, pageSize, cookie));
+                searchOperations.incrementAndGet();
+                ConnectionEntryReader reader = ldapConnection.search(request);
+                while (reader.hasNext()) {
+                    if (reader.isEntry()) {
+                        handler.handleEntry(reader.readEntry());
+                    } else {
+                        reader.readReference();
+                    }
+                }
+                SimplePagedResultsControl control = reader.readResult()
+                        .getControl(SimplePagedResultsControl.DECODER, new DecodeOptions());
+                cookie = control != null ? control.getCookie() : ByteString.empty();
+            } while (!cookie.isEmpty());
+        } catch (SearchResultReferenceIOException e) {
+            throw LdapException.newLdapException(ResultCode.UNAVAILABLE, e);
+        } catch (DecodeException e) {
+            throw LdapException.newLdapException(ResultCode.CLIENT_SIDE_DECODING_ERROR, e);
+        } finally {
+            release(ldapConnection);
+        }
+    }
+
+    /**
+     * Starts a persistent search on the given dedicated connection, reporting every share added, modified, renamed
+     * or removed under the base DN to the given listener. Existing shares are not returned.
+     *
+     * @param connection dedicated connection, see {@link #openConnectionAsync()}
+     * @param listener   receives the changes
+     * @return a promise completed when the persistent search ends, which only happens if it is abandoned or the
+     * connection is lost
+     */
+    Promise<Result, LdapException> persistentSearch(final Connection connection, final ShareListener listener) {
+        SearchRequest request = newSearchRequest(searchBaseDN, SearchScope.WHOLE_SUBTREE, SHARES_FILTER,
+                ALL_ATTRIBUTES)
+                .addControl(PersistentSearchRequestControl.newControl(true, true, true,
+                        PersistentSearchChangeType.ADD,
+                        PersistentSearchChangeType.DELETE,
+                        PersistentSearchChangeType.MODIFY,
+                        PersistentSearchChangeType.MODIFY_DN));
+        return connection.searchAsync(request, new SearchResultHandler() {
+            @Override
+            public boolean handleEntry(final SearchResultEntry entry) {
+                EntryChangeNotificationResponseControl change;
+                try {
+                    change = entry.getControl(EntryChangeNotificationResponseControl.DECODER, new DecodeOptions());
+                } catch (DecodeException e) {
+                    logger.warn("Ignoring persistent search notification for {}", entry.getName(), e);
+                    return true;
+                }
+                if (change == null) {
+                    return true;
+                }
+                switch (change.getChangeType()) {
+                case DELETE:
+                    listener.shareRemoved(firstValue(entry, "umaResourceId"));
+                    break;
+                case MODIFY_DN:
+                    if (change.getPreviousName() != null) {
+                        listener.shareRemoved(change.getPreviousName().rdn().getFirstAVA().getAttributeValue()
+                                .toString());
+                    }
+                    listener.shareAdded(toShare(entry));
+                    break;
+                default:
+                    listener.shareAdded(toShare(entry));
+                    break;
+                }
+                return true;
+            }
+
+            @Override
+            public boolean handleReference(final SearchResultReference reference) {
+                return true;
+            }
+        });
     }
 
     /**
@@ -54,32 +397,69 @@ public class LDAPManager {
      * @param share
      */
     void addShare(ShareExt share) throws LdapException {
-        LdapConnection ldapConnection = null;
+        Connection ldapConnection = getConnection();
         try {
-            ldapConnection = ldapClient.connect(hostname, port);
-            ldapConnection.bind(userName, password.toCharArray());
-
-            String entryDN = "umaResourceId=" + share.getId() + "," + baseDN;
-            Entry entry = new LinkedHashMapEntry(entryDN)
-                    .addAttribute("objectclass", "top")
-                    .addAttribute("objectclass", "frUmaRS")
-                    .addAttribute("umaResourceSetId", share.getResourceSetId())
-                    .addAttribute("umaResourceURI", share.getRequestURI())
-                    .addAttribute("umaResourceName", share.getResourceName())
-                    .addAttribute("umaResoucePAT", share.getPAT())
-                    .addAttribute("umaResourcePolicyURI", share.getPolicyURI())
-                    .addAttribute("umaResourceUserID", share.getUserId())
-                    .addAttribute("umaResourceRealm", share.getRealm())
-                    .addAttribute("umaResourceClientId", share.getClientId());
-
-            ldapConnection.add(entry);
-        } finally {
-            if (null != ldapConnection) {
-                ldapConnection.close();
+            addOperations.incrementAndGet();
+            try {
+                ldapConnection.add(toEntry(share));
+            } catch (LdapException e) {
+                if (!ResultCode.NO_SUCH_OBJECT.equals(e.getResult().getResultCode())) {
+                    throw e;
+                }
+                // First share of the user
+                addContainers(ldapConnection, layout.parent(searchBaseDN, share.getRealm(), share.getUserId()));
+                addOperations.incrementAndGet();
+                ldapConnection.add(toEntry(share));
             }
+        } finally {
+            release(ldapConnection);
         }
     }
 
+    /**
+     * Adds the UMA share in LDAP store, without blocking the calling thread.
+     *
+     * @param share share to add
+     * @return a promise completed with the added share
+     */
+    @Override
+    public Promise<ShareExt, LdapException> addShareAsync(final ShareExt share) {
+        return getConnectionAsync()
+                .thenAsync(new AsyncFunction<Connection, ShareExt, LdapException>() {
+                    @Override
+                    public Promise<ShareExt, LdapException> apply(final Connection connection) {
+                        addOperations.incrementAndGet();
+                        return connection.addAsync(newAddRequest(toEntry(share)))
+                                .thenCatchAsync(new AsyncFunction<LdapException, Result, LdapException>() {
+                                    @Override
+                                    public Promise<Result, LdapException> apply(final LdapException e)
+                                            throws LdapException {
+                                        if (!ResultCode.NO_SUCH_OBJECT.equals(e.getResult().getResultCode())) {
+                                            throw e;
+                                        }
+                                        // First share of the user: create its containers, then try again
+                                        return addContainersAsync(connection,
+                                                layout.parent(searchBaseDN, share.getRealm(), share.getUserId()))
+                                                .thenAsync(new AsyncFunction<Result, Result, LdapException>() {
+                                                    @Override
+                                                    public Promise<Result, LdapException> apply(final Result ignored) {
+                                                        addOperations.incrementAndGet();
+                                                        return connection.addAsync(newAddRequest(toEntry(share)));
+                                                    }
+                                                });
+                                    }
+                                })
+                                .then(new Function<Result, ShareExt, LdapException>() {
+                                    @Override
+                                    public ShareExt apply(final Result result) {
+                                        return share;
+                                    }
+                                })
+                                .thenAlways(releaser(connection));
+                    }
+                });
+    }
+
     /**
      * Gets the ShareExt matching the requestURI
      *
@@ -87,59 +467,845 @@ public class LDAPManager {
      * @throws LdapException
      */
     Set<ShareExt> getShare(ShareExt matchingShareExt) throws LdapException {
-        LdapConnection ldapConnection = null;
-        try {
-            ldapConnection = ldapClient.connect(hostname, port);
-            String filter = constructSearchFilter(matchingShareExt);
-            Set<ShareExt> shares = new HashSet<>();
-
-            ConnectionEntryReader connectionEntryReader = ldapConnection.search(baseDN, SearchScope.WHOLE_SUBTREE, filter);
-            while (connectionEntryReader.hasNext()) {
-                SearchResultEntry resultEntry = connectionEntryReader.readEntry();
-                String id = resultEntry.getAttribute("umaResourceId").firstValueAsString();
-                String rId = resultEntry.getAttribute("umaResourceSetId").firstValueAsString();
-                String requestURI = resultEntry.getAttribute("umaResourceURI").firstValueAsString();
-                String resourceName = resultEntry.getAttribute("umaResourceName").firstValueAsString();
-                String pat = resultEntry.getAttribute("umaResoucePAT").firstValueAsString();
-                String policyURI = resultEntry.getAttribute("umaResourcePolicyURI").firstValueAsString();
-                String userId = resultEntry.getAttribute("umaResourceUserID").firstValueAsString();
-                String realm = resultEntry.getAttribute("umaResourceRealm").firstValueAsString();
-                String clientId = resultEntry.getAttribute("umaResourceClientId").firstValueAsString();
-
-                ShareExt share = new ShareExt(rId, resourceName, pat, requestURI, policyURI, userId, realm, clientId);
-                share.setId(id);
+        return getShare(matchingShareExt, 0, ALL_ATTRIBUTES);
+    }
 
-                shares.add(share);
+    /**
+     * Gets the shares matching the given share, reading at most {@code sizeLimit} entries and only the requested
+     * attributes.
+     *
+     * @param matchingShareExt share holding the values to match
+     * @param sizeLimit        maximum number of entries to return, {@code 0} for no limit
+     * @param attributes       attributes to return
+     * @return the matching shares, with only the requested attributes set
+     * @throws LdapException
+     */
+    @Override
+    public Set<ShareExt> getShare(ShareExt matchingShareExt, int sizeLimit, String... attributes) throws LdapException {
+        Connection ldapConnection = getConnection();
+        Set<ShareExt> shares = new HashSet<>();
+        try {
+            searchOperations.incrementAndGet();
+            ConnectionEntryReader connectionEntryReader = ldapConnection.search(
+                    newSearchRequest(layout.searchBase(searchBaseDN, matchingShareExt),
+                            layout.searchScope(matchingShareExt), constructSearchFilter(matchingShareExt),
+                            attributes).setSizeLimit(sizeLimit));
+            while ((sizeLimit == 0 || shares.size() < sizeLimit) && connectionEntryReader.hasNext()) {
+                shares.add(toShare(connectionEntryReader.readEntry()));
             }
 
             return shares;
         } catch (SearchResultReferenceIOException e) {
             throw LdapException.newLdapException(ResultCode.UNAVAILABLE, e);
-        } finally {
-            if (null != ldapConnection) {
-                ldapConnection.close();
+        } catch (LdapException e) {
+            if (isIncomplete(e)) {
+                return shares;
             }
+            throw e;
+        } finally {
+            release(ldapConnection);
         }
     }
 
+    /**
+     * Gets the shares matching the given share, without blocking the calling thread: entries are collected as they
+     * are received from the directory.
+     *
+     * @param matchingShareExt share holding the values to match
+     * @return a promise completed with the matching shares
+     */
+    Promise<Set<ShareExt>, LdapException> getShareAsync(final ShareExt matchingShareExt) {
+        return getShareAsync(matchingShareExt, 0, ALL_ATTRIBUTES);
+    }
+
+    /**
+     * Gets the shares matching the given share, without blocking the calling thread, reading at most
+     * {@code sizeLimit} entries and only the requested attributes.
+     *
+     * @param matchingShareExt share holding the values to match
+     * @param sizeLimit        maximum number of entries to return, {@code 0} for no limit
+     * @param attributes       attributes to return
+     * @return a promise completed with the matching shares, with only the requested attributes set
+     */
+    Promise<Set<ShareExt>, LdapException> getShareAsync(final ShareExt matchingShareExt,
+                                                        final int sizeLimit,
+                                                        final String... attributes) {
+        return getShareAsync(matchingShareExt, sizeLimit, Long.MAX_VALUE, attributes);
+    }
+
+    /**
+     * Gets the shares matching the given share, without blocking the calling thread, reading at most
+     * {@code sizeLimit} entries and only the requested attributes, within {@code timeoutMillis}.
+     * <p>
+     * A search still running when the timeout expires is abandoned, so that its connection goes back to the pool.
+     * The timeout is also sent to the directory as the search time limit, rounded up to the second: only a backstop,
+     * should the abandon request be lost.
+     *
+     * @param matchingShareExt share holding the values to match
+     * @param sizeLimit        maximum number of entries to return, {@code 0} for no limit
+     * @param timeoutMillis    time allowed to the search, in milliseconds, {@link Long#MAX_VALUE} for no limit
+     * @param attributes       attributes to return
+     * @return a promise completed with the matching shares, with only the requested attributes set, or failed with a
+     * {@link ResultCode#CLIENT_SIDE_USER_CANCELLED} exception once abandoned
+     */
+    @Override
+    public Promise<Set<ShareExt>, LdapException> getShareAsync(final ShareExt matchingShareExt,
+                                                               final int sizeLimit,
+                                                               final long timeoutMillis,
+                                                               final String... attributes) {
+        SearchRequest request = newSearchRequest(layout.searchBase(searchBaseDN, matchingShareExt),
+                layout.searchScope(matchingShareExt), constructSearchFilter(matchingShareExt), attributes)
+                .setSizeLimit(sizeLimit);
+        if (timeoutMillis != Long.MAX_VALUE) {
+            request.setTimeLimit((int) Math.min(Integer.MAX_VALUE,
+                    Math.max(1L, TimeUnit.MILLISECONDS.toSeconds(timeoutMillis + 999))));
+        }
+        return searchAsync(request, timeoutMillis);
+    }
+
+    /**
+     * Streams the shares matching the given share and query filter to the listener as they are received from the
+     * directory, without collecting them. When sort keys are given, shares are sorted by the directory with the
+     * Server Side Sort control. When a page size is given, a single page is returned using the LDAP Simple Paged
+     * Results control.
+     *
+     * @param matchingShareExt share holding the values to match
+     * @param queryFilter      additional filter, {@code null} for none
+     * @param sortKeys         keys to sort shares on, empty for unsorted results
+     * @param pageSize         number of shares per page, {@code 0} to return all the matching shares at once
+     * @param cookie           cookie returned with the previous page, {@code null} for the first page
+     * @param listener         receives every share found
+     * @return a promise completed with the cookie of the next page and the estimated number of matching shares
+     */
+    @Override
+    public Promise<SharePage, LdapException> streamSharesAsync(final ShareExt matchingShareExt,
+                                                               final Filter queryFilter,
+                                                               final List<SortKey> sortKeys,
+                                                               final int pageSize,
+                                                               final ByteString cookie,
+                                                               final ShareListener listener) {
+        Filter filter = constructSearchFilter(matchingShareExt);
+        if (queryFilter != null) {
+            filter = Filter.and(filter, queryFilter);
+        }
+        final SearchRequest request = newSearchRequest(layout.searchBase(searchBaseDN, matchingShareExt),
+                layout.searchScope(matchingShareExt), filter, ALL_ATTRIBUTES);
+        if (!sortKeys.isEmpty()) {
+            request.addControl(ServerSideSortRequestControl.newControl(true, sortKeys));
+        }
+        if (pageSize > 0) {
+            request.addControl(SimplePagedResultsControl.newControl(true, pageSize,
+                    cookie != null ? cookie : ByteString.empty()));
+        }
+        return getConnectionAsync()
+                .thenAsync(new AsyncFunction<Connection, SharePage, LdapException>() {
+                    @Override
+                    public Promise<SharePage, LdapException> apply(final Connection connection) {
+                        searchOperations.incrementAndGet();
+                        return connection.searchAsync(request, new SearchResultHandler() {
+                            @Override
+                            public boolean handleEntry(final SearchResultEntry entry) {
+                                listener.shareAdded(toShare(entry));
+                                return true;
+                            }
+
+                            @Override
+                            public boolean handleReference(final SearchResultReference reference) {
+                                return true;
+                            }
+                        }).then(new Function<Result, SharePage, LdapException>() {
+                            @Override
+                            public SharePage apply(final Result result) throws LdapException {
+                                return toSharePage(result);
+                            }
+                        }, new Function<LdapException, SharePage, LdapException>() {
+                            @Override
+                            public SharePage apply(final LdapException e) throws LdapException {
+                                if (ResultCode.NO_SUCH_OBJECT.equals(e.getResult().getResultCode())) {
+                                    // No container yet: the user has no share
+                                    return new SharePage(null, -1);
+                                }
+                                throw e;
+                            }
+                        }).thenAlways(releaser(connection));
+                    }
+                });
+    }
+
+    private static SharePage toSharePage(final Result result) throws LdapException {
+        SimplePagedResultsControl control;
+        try {
+            control = result.getControl(SimplePagedResultsControl.DECODER, new DecodeOptions());
+        } catch (DecodeException e) {
+            throw LdapException.newLdapException(ResultCode.CLIENT_SIDE_DECODING_ERROR, e);
+        }
+        if (control == null) {
+            return new SharePage(null, -1);
+        }
+        // The server returns an empty cookie with the last page, and 0 when it does not know the total
+        String cookie = control.getCookie().isEmpty() ? null : control.getCookie().toBase64String();
+        return new SharePage(cookie, control.getSize() > 0 ? control.getSize() : -1);
+    }
+
+    /**
+     * Checks, with a single search, whether a share with the same name or the same URI already exists for the
+     * user / realm / OAuth Client of the given share.
+     *
+     * @param candidate share holding the name, URI, user, realm and client to match
+     * @return a promise completed with {@code true} if a similar share exists
+     */
+    @Override
+    public Promise<Boolean, LdapException> isSharedAsync(final ShareExt candidate) {
+        ShareExt scope = new ShareExt(null, null, candidate.getUserId(), candidate.getRealm(),
+                candidate.getClientId());
+        // Only the values set are compared
+        List<Filter> similar = new ArrayList<>(2);
+        if (candidate.getResourceName() != null) {
+            similar.add(Filter.equality("umaResourceName", candidate.getResourceName()));
+        }
+        if (candidate.getRequestURI() != null) {
+            similar.add(Filter.equality("umaResourceURI", candidate.getRequestURI()));
+        }
+        if (similar.isEmpty()) {
+            return newResultPromise(false);
+        }
+        Filter filter = Filter.and(constructSearchFilter(scope), Filter.or(similar));
+
+        return searchAsync(newSearchRequest(layout.searchBase(searchBaseDN, scope), layout.searchScope(scope), filter,
+                NO_ATTRIBUTES).setSizeLimit(1))
+                .then(new Function<Set<ShareExt>, Boolean, LdapException>() {
+                    @Override
+                    public Boolean apply(final Set<ShareExt> shares) {
+                        return !shares.isEmpty();
+                    }
+                });
+    }
+
+    /**
+     * Runs the given search asynchronously and collects the returned shares. A size limit set on the request is
+     * not considered an error: the entries received before reaching the limit are returned. A missing search base,
+     * the container of a user without any share, returns no share.
+     *
+     * @param request search to run
+     * @return a promise completed with the found shares
+     */
+    private Promise<Set<ShareExt>, LdapException> searchAsync(final SearchRequest request) {
+        return searchAsync(request, Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs the given search asynchronously and collects the returned shares, abandoning it if still running after
+     * the given timeout, counted from now: the time spent waiting for a connection included.
+     *
+     * @param request       search to run
+     * @param timeoutMillis time allowed to the search, in milliseconds, {@link Long#MAX_VALUE} for no limit
+     * @return a promise completed with the found shares
+     */
+    private Promise<Set<ShareExt>, LdapException> searchAsync(final SearchRequest request,
+                                                             final long timeoutMillis) {
+        final long start = System.nanoTime();
+        return getConnectionAsync()
+                .thenAsync(new AsyncFunction<Connection, Set<ShareExt>, LdapException>() {
+                    @Override
+                    public Promise<Set<ShareExt>, LdapException> apply(final Connection connection) {
+                        final long remaining = timeoutMillis == Long.MAX_VALUE
+                                ? Long.MAX_VALUE
+                                : timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                        if (remaining <= 0) {
+                            release(connection);
+                            return newExceptionPromise(LdapException.newLdapException(
+                                    ResultCode.CLIENT_SIDE_TIMEOUT, "Timed out before sending the search"));
+                        }
+                        final Set<ShareExt> shares = new HashSet<>();
+                        final int sizeLimit = request.getSizeLimit();
+                        searchOperations.incrementAndGet();
+                        final LdapPromise<Result> search = connection.searchAsync(request, new SearchResultHandler() {
+                            @Override
+                            public boolean handleEntry(final SearchResultEntry entry) {
+                                shares.add(toShare(entry));
+                                // Skip any remaining entry once the limit is reached
+                                return sizeLimit == 0 || shares.size() < sizeLimit;
+                            }
+
+                            @Override
+                            public boolean handleReference(final SearchResultReference reference) {
+                                return true;
+                            }
+                        });
+                        // Cancelling the search, not a promise derived from it, sends an abandon request
+                        final ScheduledFuture<?> abandon = remaining == Long.MAX_VALUE ? null : scheduler.schedule(
+                                new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        if (search.cancel(true)) {
+                                            abandonedSearches.incrementAndGet();
+                                        }
+                                    }
+                                }, remaining, TimeUnit.MILLISECONDS);
+                        return search.then(new Function<Result, Set<ShareExt>, LdapException>() {
+                            @Override
+                            public Set<ShareExt> apply(final Result result) {
+                                return shares;
+                            }
+                        }, new Function<LdapException, Set<ShareExt>, LdapException>() {
+                            @Override
+                            public Set<ShareExt> apply(final LdapException e) throws LdapException {
+                                if (isIncomplete(e)) {
+                                    return shares;
+                                }
+                                throw e;
+                            }
+                        }).thenAlways(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (abandon != null) {
+                                    abandon.cancel(false);
+                                }
+                                release(connection);
+                            }
+                        });
+                    }
+                });
+    }
+
     /**
      * Removes the share from LDAP
      *
-     * @return
+     * @param share share to remove, with its identifier, realm and user set
      * @throws LdapException
      */
-    void removeShare(String id) throws LdapException {
-        LdapConnection ldapConnection = null;
+    @Override
+    public void removeShare(ShareExt share) throws LdapException {
+        Connection ldapConnection = getConnection();
         try {
-            ldapConnection = ldapClient.connect(hostname, port);
-            ldapConnection.bind(userName, password.toCharArray());
+            deleteOperations.incrementAndGet();
+            ldapConnection.delete(newDeleteRequest(entryDN(share)));
+        } finally {
+            release(ldapConnection);
+        }
+    }
+
+    /**
+     * Removes the share from LDAP, without blocking the calling thread.
+     *
+     * @param share share to remove, with its identifier, realm and user set
+     * @return a promise completed once the share has been removed
+     */
+    @Override
+    public Promise<Void, LdapException> removeShareAsync(final ShareExt share) {
+        return getConnectionAsync()
+                .thenAsync(new AsyncFunction<Connection, Void, LdapException>() {
+                    @Override
+                    public Promise<Void, LdapException> apply(final Connection connection) {
+                        deleteOperations.incrementAndGet();
+                        return connection.deleteAsync(newDeleteRequest(entryDN(share)))
+                                .then(new Function<Result, Void, LdapException>() {
+                                    @Override
+                                    public Void apply(final Result result) {
+                                        return null;
+                                    }
+                                })
+                                .thenAlways(releaser(connection));
+                    }
+                });
+    }
+
+    /**
+     * Reads the PAT with the given identifier, without blocking the calling thread.
+     *
+     * @param patId PAT identifier, see {@link SharedPat#id(String, String, String)}
+     * @return a promise completed with the PAT, or {@code null} if there is no such PAT
+     */
+    @Override
+    public Promise<SharedPat, LdapException> readPatAsync(final String patId) {
+        final SearchRequest request = newSearchRequest(patEntryDN(patId), SearchScope.BASE_OBJECT, PATS_FILTER,
+                PAT_ATTRIBUTES);
+        return getConnectionAsync()
+                .thenAsync(new AsyncFunction<Connection, SharedPat, LdapException>() {
+                    @Override
+                    public Promise<SharedPat, LdapException> apply(final Connection connection) {
+                        final List<SharedPat> pats = new ArrayList<>(1);
+                        searchOperations.incrementAndGet();
+                        return connection.searchAsync(request, new SearchResultHandler() {
+                            @Override
+                            public boolean handleEntry(final SearchResultEntry entry) {
+                                pats.add(toPat(entry));
+                                return true;
+                            }
+
+                            @Override
+                            public boolean handleReference(final SearchResultReference reference) {
+                                return true;
+                            }
+                        }).then(new Function<Result, SharedPat, LdapException>() {
+                            @Override
+                            public SharedPat apply(final Result result) {
+                                return pats.isEmpty() ? null : pats.get(0);
+                            }
+                        }, new Function<LdapException, SharedPat, LdapException>() {
+                            @Override
+                            public SharedPat apply(final LdapException e) throws LdapException {
+                                if (ResultCode.NO_SUCH_OBJECT.equals(e.getResult().getResultCode())) {
+                                    return null;
+                                }
+                                throw e;
+                            }
+                        }).thenAlways(releaser(connection));
+                    }
+                });
+    }
+
+    /**
+     * Stores the given PAT, without blocking the calling thread: its entry is created, or its token, refresh token
+     * and expiration time replaced if it already exists.
+     *
+     * @param pat PAT to store
+     * @return a promise completed with the stored PAT
+     */
+    @Override
+    public Promise<SharedPat, LdapException> storePatAsync(final SharedPat pat) {
+        return getConnectionAsync()
+                .thenAsync(new AsyncFunction<Connection, SharedPat, LdapException>() {
+                    @Override
+                    public Promise<SharedPat, LdapException> apply(final Connection connection) {
+                        addOperations.incrementAndGet();
+                        return connection.addAsync(newAddRequest(toEntry(pat)))
+                                .thenCatchAsync(new AsyncFunction<LdapException, Result, LdapException>() {
+                                    @Override
+                                    public Promise<Result, LdapException> apply(final LdapException e)
+                                            throws LdapException {
+                                        if (!ResultCode.ENTRY_ALREADY_EXISTS.equals(e.getResult().getResultCode())) {
+                                            throw e;
+                                        }
+                                        // Another share of the same user: the PAT presented last wins
+                                        ModifyRequest request = newModifyRequest(patEntryDN(pat.getId()))
+                                                .addModification(ModificationType.REPLACE, "umaResoucePAT",
+                                                        pat.getToken());
+                                        replaceRefreshToken(request, pat.getRefreshToken(), pat.getExpiresAt());
+                                        modifyOperations.incrementAndGet();
+                                        return connection.modifyAsync(request);
+                                    }
+                                })
+                                .then(new Function<Result, SharedPat, LdapException>() {
+                                    @Override
+                                    public SharedPat apply(final Result result) {
+                                        return pat;
+                                    }
+                                })
+                                .thenAlways(releaser(connection));
+                    }
+                });
+    }
+
+    /**
+     * Replaces the token of the given PAT, along with its refresh token and expiration time, without blocking the
+     * calling thread: a single write whatever the number of shares using the PAT. The token is only replaced if it
+     * is still the one of the given PAT: the modification fails with {@link ResultCode#NO_SUCH_ATTRIBUTE} if it has
+     * been replaced meanwhile, by another OpenIG instance for instance.
+     *
+     * @param pat      PAT holding the token to replace
+     * @param rotated  PAT holding the new token, refresh token and expiration time
+     * @return a promise completed once the PAT has been modified
+     */
+    @Override
+    public Promise<Void, LdapException> updatePatAsync(final SharedPat pat, final SharedPat rotated) {
+        // A single modify request is atomic: removing the old value fails if it is not the current one anymore
+        final ModifyRequest request = newModifyRequest(patEntryDN(pat.getId()))
+                .addModification(ModificationType.DELETE, "umaResoucePAT", pat.getToken())
+                .addModification(ModificationType.ADD, "umaResoucePAT", rotated.getToken());
+        replaceRefreshToken(request, rotated.getRefreshToken(), rotated.getExpiresAt());
+        return getConnectionAsync()
+                .thenAsync(new AsyncFunction<Connection, Void, LdapException>() {
+                    @Override
+                    public Promise<Void, LdapException> apply(final Connection connection) {
+                        modifyOperations.incrementAndGet();
+                        return connection.modifyAsync(request)
+                                .then(new Function<Result, Void, LdapException>() {
+                                    @Override
+                                    public Void apply(final Result result) {
+                                        return null;
+                                    }
+                                })
+                                .thenAlways(releaser(connection));
+                    }
+                });
+    }
+
+    private static void replaceRefreshToken(ModifyRequest request, String refreshToken, long expiresAt) {
+        if (refreshToken != null) {
+            request.addModification(ModificationType.REPLACE, "umaResourceRT", refreshToken);
+        } else {
+            request.addModification(ModificationType.REPLACE, "umaResourceRT");
+        }
+        if (expiresAt > 0) {
+            request.addModification(ModificationType.REPLACE, "umaResourcePATExpiry",
+                    GeneralizedTime.valueOf(expiresAt).toString());
+        } else {
+            request.addModification(ModificationType.REPLACE, "umaResourcePATExpiry");
+        }
+    }
+
+    /**
+     * Moves at most {@code batchSize} shares stored directly under the base DN, as with the {@link ShareLayout#FLAT}
+     * layout, to the container of their user in the layout of this manager, creating the containers as needed.
+     * Shares are moved with a modify DN request: their identifiers and attributes are kept, and a persistent search
+     * sees them as renamed.
+     *
+     * @param batchSize maximum number of shares to move
+     * @return the number of shares moved, {@code 0} once all the shares have been moved
+     * @throws LdapException if a share cannot be read or moved
+     */
+    int migrateShares(int batchSize) throws LdapException {
+        if (layout == ShareLayout.FLAT) {
+            throw new IllegalStateException("Shares are already stored directly under " + baseDN);
+        }
+        Connection ldapConnection = getConnection();
+        try {
+            // Moved shares are not directly under the base DN anymore: each batch reads the first remaining ones
+            List<SearchResultEntry> batch = new ArrayList<>(batchSize);
+            try {
+                searchOperations.incrementAndGet();
+                ConnectionEntryReader reader = ldapConnection.search(newSearchRequest(searchBaseDN,
+                        SearchScope.SINGLE_LEVEL, SHARES_FILTER, "umaResourceId", "umaResourceUserID",
+                        "umaResourceRealm").setSizeLimit(batchSize));
+                while (batch.size() < batchSize && reader.hasNext()) {
+                    if (reader.isEntry()) {
+                        batch.add(reader.readEntry());
+                    } else {
+                        reader.readReference();
+                    }
+                }
+            } catch (SearchResultReferenceIOException e) {
+                throw LdapException.newLdapException(ResultCode.UNAVAILABLE, e);
+            } catch (LdapException e) {
+                if (!isIncomplete(e)) {
+                    throw e;
+                }
+            }
+
+            Set<DN> containers = new HashSet<>();
+            for (SearchResultEntry entry : batch) {
+                DN parent = layout.parent(searchBaseDN, firstValue(entry, "umaResourceRealm"),
+                        firstValue(entry, "umaResourceUserID"));
+                if (containers.add(parent)) {
+                    addContainers(ldapConnection, parent);
+                }
+                modifyOperations.incrementAndGet();
+                ldapConnection.modifyDN(newModifyDNRequest(entry.getName(), entry.getName().rdn())
+                        .setNewSuperior(parent));
+            }
+            return batch.size();
+        } finally {
+            release(ldapConnection);
+        }
+    }
+
+    /**
+     * Creates the given container and its parents up to the base DN, if they do not exist yet.
+     */
+    private void addContainers(Connection connection, DN container) throws LdapException {
+        for (DN dn : containers(container)) {
+            try {
+                addOperations.incrementAndGet();
+                connection.add(newContainerRequest(dn));
+            } catch (LdapException e) {
+                if (!ResultCode.ENTRY_ALREADY_EXISTS.equals(e.getResult().getResultCode())) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the given container and its parents up to the base DN, if they do not exist yet, without blocking the
+     * calling thread.
+     */
+    private Promise<Result, LdapException> addContainersAsync(final Connection connection, final DN container) {
+        Promise<Result, LdapException> promise = newResultPromise(null);
+        for (final DN dn : containers(container)) {
+            promise = promise.thenAsync(new AsyncFunction<Result, Result, LdapException>() {
+                @Override
+                public Promise<Result, LdapException> apply(final Result ignored) {
+                    addOperations.incrementAndGet();
+                    return connection.addAsync(newContainerRequest(dn))
+                            .thenCatch(new Function<LdapException, Result, LdapException>() {
+                                @Override
+                                public Result apply(final LdapException e) throws LdapException {
+                                    if (!ResultCode.ENTRY_ALREADY_EXISTS.equals(e.getResult().getResultCode())) {
+                                        throw e;
+                                    }
+                                    // Created meanwhile, by the first share of another user of the realm for instance
+                                    return e.getResult();
+                                }
+                            });
+                }
+            });
+        }
+        return promise;
+    }
+
+    /**
+     * Returns the containers between the base DN (excluded) and the given container (included), parents first.
+     */
+    private List<DN> containers(DN container) {
+        List<DN> containers = new ArrayList<>();
+        for (DN dn = container; dn != null && !dn.equals(searchBaseDN); dn = dn.parent()) {
+            containers.add(0, dn);
+        }
+        return containers;
+    }
+
+    private static AddRequest newContainerRequest(DN dn) {
+        return newAddRequest(dn)
+                .addAttribute("objectClass", "top", "organizationalUnit")
+                .addAttribute("ou", dn.rdn().getFirstAVA().getAttributeValue().toString());
+    }
+
+    /**
+     * Returns {@code true} if the given search failure only means that fewer entries than available were returned:
+     * the size limit has been reached, or the search base does not exist, such as the container of a user without
+     * any share.
+     */
+    private static boolean isIncomplete(LdapException e) {
+        ResultCode resultCode = e.getResult().getResultCode();
+        return ResultCode.SIZE_LIMIT_EXCEEDED.equals(resultCode) || ResultCode.NO_SUCH_OBJECT.equals(resultCode);
+    }
+
+    /**
+     * Returns the layout of the share entries under the base DN.
+     *
+     * @return the layout of the share entries
+     */
+    ShareLayout getLayout() {
+        return layout;
+    }
 
-            ldapConnection.delete("umaResourceId=" + id + "," + baseDN);
+    /**
+     * Returns the connection pool usage and wait time statistics, along with the number of LDAP operations run.
+     *
+     * @return the connection pool statistics
+     */
+    @Override
+    public JsonValue getStatistics() {
+        long acquired = acquiredConnections.get();
+        return json(object(
+                field("poolSize", poolSize),
+                field("corePoolSize", corePoolSize),
+                field("activeConnections", activeConnections.get()),
+                field("acquiredConnections", acquired),
+                field("acquireTimeouts", acquireTimeouts.get()),
+                field("averageWaitMillis", acquired == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / acquired)),
+                field("maxWaitMillis", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get())),
+                field("operations", object(
+                        field("search", searchOperations.get()),
+                        field("add", addOperations.get()),
+                        field("delete", deleteOperations.get()),
+                        field("modify", modifyOperations.get()),
+                        field("abandonedSearch", abandonedSearches.get())))));
+    }
+
+    /**
+     * Borrows a connection from the pool, waiting at most the configured max wait time.
+     *
+     * @return a pooled, authenticated connection
+     * @throws LdapException if no connection could be obtained in time
+     */
+    private Connection getConnection() throws LdapException {
+        long start = System.nanoTime();
+        Promise<Connection, LdapException> promise = connectionPool.getConnectionAsync();
+        try {
+            Connection connection = promise.getOrThrow(maxWaitMillis, TimeUnit.MILLISECONDS);
+            activeConnections.incrementAndGet();
+            acquiredConnections.incrementAndGet();
+            return connection;
+        } catch (TimeoutException e) {
+            acquireTimeouts.incrementAndGet();
+            closeWhenAvailable(promise);
+            throw LdapException.newLdapException(ResultCode.CLIENT_SIDE_CONNECT_ERROR,
+                    "Timed out waiting for a pooled LDAP connection", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeWhenAvailable(promise);
+            throw LdapException.newLdapException(ResultCode.CLIENT_SIDE_USER_CANCELLED, e);
         } finally {
-            if (null != ldapConnection) {
-                ldapConnection.close();
+            recordWait(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Borrows a connection from the pool without blocking the calling thread, waiting at most the configured max
+     * wait time, like {@link #getConnection()}.
+     *
+     * @return a promise completed with a pooled, authenticated connection, or failed if no connection could be
+     * obtained in time
+     */
+    private Promise<Connection, LdapException> getConnectionAsync() {
+        final long start = System.nanoTime();
+        final Promise<Connection, LdapException> pooled = connectionPool.getConnectionAsync();
+        if (maxWaitMillis == Long.MAX_VALUE || pooled.isDone()) {
+            return pooled.then(new Function<Connection, Connection, LdapException>() {
+                @Override
+                public Connection apply(final Connection connection) {
+                    acquired(start);
+                    return connection;
+                }
+            });
+        }
+        final PromiseImpl<Connection, LdapException> promise = PromiseImpl.create();
+        final ScheduledFuture<?> timer = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (promise.tryHandleException(LdapException.newLdapException(ResultCode.CLIENT_SIDE_CONNECT_ERROR,
+                        "Timed out waiting for a pooled LDAP connection"))) {
+                    acquireTimeouts.incrementAndGet();
+                    recordWait(System.nanoTime() - start);
+                }
+            }
+        }, maxWaitMillis, TimeUnit.MILLISECONDS);
+        pooled.thenOnResult(new ResultHandler<Connection>() {
+            @Override
+            public void handleResult(final Connection connection) {
+                timer.cancel(false);
+                if (promise.tryHandleResult(connection)) {
+                    acquired(start);
+                } else {
+                    // Handed out after its requester gave up waiting
+                    connection.close();
+                }
             }
+        }).thenOnException(new ExceptionHandler<LdapException>() {
+            @Override
+            public void handleException(final LdapException e) {
+                timer.cancel(false);
+                promise.tryHandleException(e);
+            }
+        });
+        return promise;
+    }
+
+    private void acquired(final long start) {
+        recordWait(System.nanoTime() - start);
+        activeConnections.incrementAndGet();
+        acquiredConnections.incrementAndGet();
+    }
+
+    /**
+     * Returns a connection to the pool.
+     *
+     * @param connection borrowed connection
+     */
+    private void release(Connection connection) {
+        activeConnections.decrementAndGet();
+        connection.close();
+    }
+
+    /**
+     * Makes sure a connection handed out after its requester gave up waiting goes back to the pool.
+     */
+    private static void closeWhenAvailable(Promise<Connection, LdapException> promise) {
+        promise.thenOnResult(new ResultHandler<Connection>() {
+            @Override
+            public void handleResult(Connection connection) {
+                connection.close();
+            }
+        });
+    }
+
+    private Runnable releaser(final Connection connection) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                release(connection);
+            }
+        };
+    }
+
+    private void recordWait(long waitNanos) {
+        totalWaitNanos.addAndGet(waitNanos);
+        long max = maxWaitNanos.get();
+        while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    private DN entryDN(ShareExt share) {
+        return layout.entryDN(searchBaseDN, share);
+    }
+
+    private String patEntryDN(String patId) {
+        return "umaPATId=" + patId + "," + baseDN;
+    }
+
+    private Entry toEntry(ShareExt share) {
+        Entry entry = new LinkedHashMapEntry(entryDN(share))
+                .addAttribute("objectclass", "top")
+                .addAttribute("objectclass", "frUmaRS")
+                .addAttribute("umaResourceSetId", share.getResourceSetId())
+                .addAttribute("umaResourceURI", share.getRequestURI())
+                .addAttribute("umaResourceName", share.getResourceName())
+                .addAttribute("umaResourcePolicyURI", share.getPolicyURI())
+                .addAttribute("umaResourceUserID", share.getUserId())
+                .addAttribute("umaResourceRealm", share.getRealm())
+                .addAttribute("umaResourceClientId", share.getClientId());
+        // The PAT itself is stored once per user, see toEntry(SharedPat)
+        if (share.getPatId() != null) {
+            entry.addAttribute("umaPATId", share.getPatId());
+        } else {
+            entry.addAttribute("umaResoucePAT", share.getPAT());
+        }
+        return entry;
+    }
+
+    private Entry toEntry(SharedPat pat) {
+        Entry entry = new LinkedHashMapEntry(patEntryDN(pat.getId()))
+                .addAttribute("objectclass", "top")
+                .addAttribute("objectclass", "frUmaPAT")
+                .addAttribute("umaPATId", pat.getId())
+                .addAttribute("umaResoucePAT", pat.getToken())
+                .addAttribute("umaResourceUserID", pat.getUserId())
+                .addAttribute("umaResourceRealm", pat.getRealm())
+                .addAttribute("umaResourceClientId", pat.getClientId());
+        if (pat.getRefreshToken() != null) {
+            entry.addAttribute("umaResourceRT", pat.getRefreshToken());
         }
+        if (pat.getExpiresAt() > 0) {
+            entry.addAttribute("umaResourcePATExpiry", GeneralizedTime.valueOf(pat.getExpiresAt()).toString());
+        }
+        return entry;
+    }
+
+    private static ShareExt toShare(SearchResultEntry resultEntry) {
+        // Only the requested attributes are returned, the others are left unset
+        String id = firstValue(resultEntry, "umaResourceId");
+        String rId = firstValue(resultEntry, "umaResourceSetId");
+        String requestURI = firstValue(resultEntry, "umaResourceURI");
+        String resourceName = firstValue(resultEntry, "umaResourceName");
+        String pat = firstValue(resultEntry, "umaResoucePAT");
+        String policyURI = firstValue(resultEntry, "umaResourcePolicyURI");
+        String userId = firstValue(resultEntry, "umaResourceUserID");
+        String realm = firstValue(resultEntry, "umaResourceRealm");
+        String clientId = firstValue(resultEntry, "umaResourceClientId");
+        String patId = firstValue(resultEntry, "umaPATId");
+
+        ShareExt share = new ShareExt(rId, resourceName, pat, requestURI, policyURI, userId, realm, clientId);
+        share.setId(id);
+        share.setPatId(patId);
+        return share;
+    }
+
+    private static SharedPat toPat(SearchResultEntry resultEntry) {
+        String expiry = firstValue(resultEntry, "umaResourcePATExpiry");
+        return new SharedPat(firstValue(resultEntry, "umaResourceUserID"),
+                firstValue(resultEntry, "umaResourceRealm"),
+                firstValue(resultEntry, "umaResourceClientId"),
+                firstValue(resultEntry, "umaResoucePAT"),
+                firstValue(resultEntry, "umaResourceRT"),
+                expiry != null ? GeneralizedTime.valueOf(expiry).getTimeInMillis() : 0L);
+    }
+
+    private static String firstValue(SearchResultEntry resultEntry, String attributeDescription) {
+        Attribute attribute = resultEntry.getAttribute(attributeDescription);
+        return attribute != null ? attribute.firstValueAsString() : null;
     }
 
     /**
@@ -148,32 +1314,36 @@ public class LDAPManager {
      * @param matchingShareExt
      * @return LDAP filter
      */
-    private String constructSearchFilter(ShareExt matchingShareExt) {
-        StringBuilder filter = new StringBuilder();
-
-        filter.append("(&");
+    private Filter constructSearchFilter(ShareExt matchingShareExt) {
+        // Assertion values are escaped by the SDK when the filter is encoded
+        List<Filter> filters = new ArrayList<>();
 
         if (matchingShareExt.getId() != null) {
-            filter.append("(umaResourceId=" + matchingShareExt.getId() + ")");
+            filters.add(Filter.equality("umaResourceId", matchingShareExt.getId()));
         }
         if (matchingShareExt.getRequestURI() != null) {
-            filter.append("(umaResourceURI=" + matchingShareExt.getRequestURI() + ")");
+            filters.add(Filter.equality("umaResourceURI", matchingShareExt.getRequestURI()));
         }
         if (matchingShareExt.getResourceName() != null) {
-            filter.append("(umaResourceName=" + matchingShareExt.getResourceName() + ")");
+            filters.add(Filter.equality("umaResourceName", matchingShareExt.getResourceName()));
         }
         if (matchingShareExt.getUserId() != null) {
-            filter.append("(umaResourceUserID=" + matchingShareExt.getUserId() + ")");
+            filters.add(Filter.equality("umaResourceUserID", matchingShareExt.getUserId()));
         }
         if (matchingShareExt.getRealm() != null) {
-            filter.append("(umaResourceRealm=" + matchingShareExt.getRealm() + ")");
+            filters.add(Filter.equality("umaResourceRealm", matchingShareExt.getRealm()));
         }
         if (matchingShareExt.getClientId() != null) {
-            filter.append("(umaResourceClientId=" + matchingShareExt.getClientId() + ")");
+            filters.add(Filter.equality("umaResourceClientId", matchingShareExt.getClientId()));
         }
 
-        filter.append(")");
+        return Filter.and(filters);
+    }
 
-        return filter.toString();
+    /**
+     * Receives the entries read by a paged search.
+     */
+    private interface EntryHandler {
+        void handleEntry(SearchResultEntry entry);
     }
 }
@@ -0,0 +1,477 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.opendj.ldap.ByteString;
+import org.forgerock.opendj.ldap.Filter;
+import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.opendj.ldap.ResultCode;
+import org.forgerock.opendj.ldap.SortKey;
+import org.forgerock.util.promise.Promise;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+/**
+ * Share store keeping the shares and PATs in memory only, for edge deployments and load tests without a directory
+ * server: the shares are lost when OpenIG stops, see {@link FileShareStore} to keep them.
+ * <p>
+ * Shares are indexed by identifier, request URI and user, and matched with the case-insensitive rules of the
+ * directory schema. Reads are lock-free; changes are serialized, so that the indexes and the durability hooks of
+ * subclasses see them in the same order. No operation ever waits: the returned promises are already completed.
+ */
+class MemoryShareStore implements ShareStore {
+
+    private static final Comparator<ShareExt> BY_ID = new Comparator<ShareExt>() {
+        @Override
+        public int compare(final ShareExt share1, final ShareExt share2) {
+            return share1.getId().compareTo(share2.getId());
+        }
+    };
+
+    private final ConcurrentMap<String, ShareExt> shares = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<ShareExt>> byUri = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<ShareExt>> byUser = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, SharedPat> pats = new ConcurrentHashMap<>();
+
+    private final AtomicLong searchOperations = new AtomicLong();
+    private final AtomicLong addOperations = new AtomicLong();
+    private final AtomicLong deleteOperations = new AtomicLong();
+    private final AtomicLong modifyOperations = new AtomicLong();
+
+    @Override
+    public Promise<ShareExt, LdapException> addShareAsync(final ShareExt share) {
+        addOperations.incrementAndGet();
+        synchronized (this) {
+            if (shares.containsKey(key(share.getId()))) {
+                return newExceptionPromise(LdapException.newLdapException(ResultCode.ENTRY_ALREADY_EXISTS,
+                        "Share " + share.getId() + " already exists"));
+            }
+            // Callers may keep modifying their share, such as setting its resolved PAT
+            ShareExt stored = copy(share);
+            try {
+                persistShare(stored);
+            } catch (LdapException e) {
+                return newExceptionPromise(e);
+            }
+            putShare(stored);
+        }
+        return newResultPromise(share);
+    }
+
+    @Override
+    public Set<ShareExt> getShare(final ShareExt matchingShareExt, final int sizeLimit, final String... attributes) {
+        searchOperations.incrementAndGet();
+        Set<ShareExt> found = new HashSet<>();
+        for (ShareExt share : candidates(matchingShareExt)) {
+            if (matches(matchingShareExt, share)) {
+                found.add(share);
+                if (found.size() == sizeLimit) {
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public Promise<Set<ShareExt>, LdapException> getShareAsync(final ShareExt matchingShareExt,
+                                                               final int sizeLimit,
+                                                               final long timeoutMillis,
+                                                               final String... attributes) {
+        return newResultPromise(getShare(matchingShareExt, sizeLimit, attributes));
+    }
+
+    @Override
+    public Promise<Boolean, LdapException> isSharedAsync(final ShareExt candidate) {
+        searchOperations.incrementAndGet();
+        ShareExt scope = new ShareExt(null, null, candidate.getUserId(), candidate.getRealm(),
+                candidate.getClientId());
+        for (ShareExt share : candidates(scope)) {
+            if (matches(scope, share)
+                    && (equal(candidate.getResourceName(), share.getResourceName())
+                    || equal(candidate.getRequestURI(), share.getRequestURI()))) {
+                return newResultPromise(true);
+            }
+        }
+        return newResultPromise(false);
+    }
+
+    @Override
+    public Promise<SharePage, LdapException> streamSharesAsync(final ShareExt matchingShareExt,
+                                                               final Filter queryFilter,
+                                                               final List<SortKey> sortKeys,
+                                                               final int pageSize,
+                                                               final ByteString cookie,
+                                                               final ShareListener listener) {
+        searchOperations.incrementAndGet();
+        int offset = 0;
+        if (cookie != null && !cookie.isEmpty()) {
+            try {
+                offset = Integer.parseInt(cookie.toString());
+            } catch (NumberFormatException e) {
+                return newExceptionPromise(LdapException.newLdapException(ResultCode.UNWILLING_TO_PERFORM,
+                        "Invalid paged results cookie", e));
+            }
+        }
+        List<ShareExt> found = new ArrayList<>();
+        for (ShareExt share : candidates(matchingShareExt)) {
+            if (matches(matchingShareExt, share)
+                    && (queryFilter == null || ShareFilterMatcher.matches(queryFilter, share))) {
+                found.add(share);
+            }
+        }
+        if (!sortKeys.isEmpty()) {
+            Collections.sort(found, ShareFilterMatcher.comparator(sortKeys));
+        } else if (pageSize > 0) {
+            // Pages of unsorted results must still follow a stable order
+            Collections.sort(found, BY_ID);
+        }
+        int end = pageSize > 0 ? Math.min(found.size(), offset + pageSize) : found.size();
+        for (int i = offset; i < end; i++) {
+            listener.shareAdded(found.get(i));
+        }
+        if (pageSize <= 0) {
+            return newResultPromise(new SharePage(null, -1));
+        }
+        String next = end < found.size() ? ByteString.valueOfUtf8(Integer.toString(end)).toBase64String() : null;
+        return newResultPromise(new SharePage(next, found.size()));
+    }
+
+    @Override
+    public void removeShare(final ShareExt share) throws LdapException {
+        deleteOperations.incrementAndGet();
+        synchronized (this) {
+            ShareExt stored = shares.get(key(share.getId()));
+            if (stored == null) {
+                throw LdapException.newLdapException(ResultCode.NO_SUCH_OBJECT,
+                        "Share " + share.getId() + " does not exist");
+            }
+            persistRemoval(stored);
+            deleteShare(stored.getId());
+        }
+    }
+
+    @Override
+    public Promise<Void, LdapException> removeShareAsync(final ShareExt share) {
+        try {
+            removeShare(share);
+            return newResultPromise(null);
+        } catch (LdapException e) {
+            return newExceptionPromise(e);
+        }
+    }
+
+    @Override
+    public void readAllShares(final ShareListener listener, final int pageSize) {
+        searchOperations.incrementAndGet();
+        for (ShareExt share : shares.values()) {
+            listener.shareAdded(share);
+        }
+    }
+
+    @Override
+    public void readPatternShares(final ShareListener listener, final int pageSize) {
+        searchOperations.incrementAndGet();
+        for (ShareExt share : shares.values()) {
+            if (ShareUriIndex.isPattern(share.getRequestURI())) {
+                listener.shareAdded(share);
+            }
+        }
+    }
+
+    @Override
+    public void readShareUris(final ShareListener listener, final int pageSize) {
+        readAllShares(listener, pageSize);
+    }
+
+    @Override
+    public Promise<SharedPat, LdapException> readPatAsync(final String patId) {
+        searchOperations.incrementAndGet();
+        SharedPat pat = pats.get(patId);
+        // Callers own the returned PAT and update it in place when rotated
+        return newResultPromise(pat != null ? copy(pat) : null);
+    }
+
+    @Override
+    public Promise<SharedPat, LdapException> storePatAsync(final SharedPat pat) {
+        addOperations.incrementAndGet();
+        synchronized (this) {
+            SharedPat stored = copy(pat);
+            try {
+                persistPat(stored, pats.get(pat.getId()));
+            } catch (LdapException e) {
+                return newExceptionPromise(e);
+            }
+            putPat(stored);
+        }
+        return newResultPromise(pat);
+    }
+
+    @Override
+    public Promise<Void, LdapException> updatePatAsync(final SharedPat pat, final SharedPat rotated) {
+        modifyOperations.incrementAndGet();
+        synchronized (this) {
+            SharedPat current = pats.get(pat.getId());
+            if (current == null) {
+                return newExceptionPromise(LdapException.newLdapException(ResultCode.NO_SUCH_OBJECT,
+                        "PAT " + pat.getId() + " does not exist"));
+            }
+            if (!current.getToken().equals(pat.getToken())) {
+                return newExceptionPromise(LdapException.newLdapException(ResultCode.NO_SUCH_ATTRIBUTE,
+                        "PAT " + pat.getId() + " has been replaced meanwhile"));
+            }
+            SharedPat updated = new SharedPat(current.getUserId(), current.getRealm(), current.getClientId(),
+                    rotated.getToken(), rotated.getRefreshToken(), rotated.getExpiresAt());
+            try {
+                persistPat(updated, current);
+            } catch (LdapException e) {
+                return newExceptionPromise(e);
+            }
+            putPat(updated);
+        }
+        return newResultPromise(null);
+    }
+
+    @Override
+    public List<SharedPat> readExpiringPats(final long expiresBefore, final int pageSize) {
+        searchOperations.incrementAndGet();
+        List<SharedPat> expiring = new ArrayList<>();
+        for (SharedPat pat : pats.values()) {
+            if (pat.getRefreshToken() != null && pat.getExpiresAt() > 0 && pat.getExpiresAt() <= expiresBefore) {
+                expiring.add(copy(pat));
+            }
+        }
+        return expiring;
+    }
+
+    @Override
+    public JsonValue getStatistics() {
+        return json(object(
+                field("type", "memory"),
+                field("shares", shares.size()),
+                field("pats", pats.size()),
+                field("operations", object(
+                        field("search", searchOperations.get()),
+                        field("add", addOperations.get()),
+                        field("delete", deleteOperations.get()),
+                        field("modify", modifyOperations.get())))));
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+
+    /**
+     * Makes the addition of the given share durable. Called with the store lock held, before the share is added in
+     * memory: an exception cancels the addition. Does nothing by default, the shares only live in memory.
+     *
+     * @param share share to add
+     * @throws LdapException if the addition cannot be made durable
+     */
+    void persistShare(final ShareExt share) throws LdapException {
+    }
+
+    /**
+     * Makes the removal of the given share durable. Called with the store lock held, before the share is removed
+     * from memory: an exception cancels the removal. Does nothing by default.
+     *
+     * @param share share to remove
+     * @throws LdapException if the removal cannot be made durable
+     */
+    void persistRemoval(final ShareExt share) throws LdapException {
+    }
+
+    /**
+     * Makes the given PAT durable. Called with the store lock held, before the PAT is stored in memory: an exception
+     * cancels the change. Does nothing by default.
+     *
+     * @param pat      PAT to store
+     * @param previous PAT replaced by the given one, {@code null} if none
+     * @throws LdapException if the PAT cannot be made durable
+     */
+    void persistPat(final SharedPat pat, final SharedPat previous) throws LdapException {
+    }
+
+    /**
+     * Adds or replaces the given share in memory, without making it durable.
+     *
+     * @param share share to add
+     */
+    final synchronized void putShare(final ShareExt share) {
+        ShareExt previous = shares.put(key(share.getId()), share);
+        if (previous != null) {
+            unindex(previous);
+        }
+        index(byUri, share.getRequestURI(), share);
+        index(byUser, share.getUserId(), share);
+    }
+
+    /**
+     * Removes the share with the given identifier from memory, without making the removal durable.
+     *
+     * @param shareId identifier of the share to remove
+     */
+    final synchronized void deleteShare(final String shareId) {
+        ShareExt previous = shares.remove(key(shareId));
+        if (previous != null) {
+            unindex(previous);
+        }
+    }
+
+    /**
+     * Adds or replaces the given PAT in memory, without making it durable.
+     *
+     * @param pat PAT to store
+     */
+    final void putPat(final SharedPat pat) {
+        pats.put(pat.getId(), pat);
+    }
+
+    /**
+     * Returns the shares held in memory.
+     *
+     * @return a live view of the shares
+     */
+    final Collection<ShareExt> shares() {
+        return shares.values();
+    }
+
+    /**
+     * Returns the PATs held in memory.
+     *
+     * @return a live view of the PATs
+     */
+    final Collection<SharedPat> pats() {
+        return pats.values();
+    }
+
+    /**
+     * Returns the shares to test against the given share: those of the most selective index it can use.
+     */
+    private Collection<ShareExt> candidates(final ShareExt matchingShareExt) {
+        if (matchingShareExt.getId() != null) {
+            ShareExt share = shares.get(key(matchingShareExt.getId()));
+            return share != null ? Collections.singleton(share) : Collections.<ShareExt>emptySet();
+        }
+        Set<ShareExt> indexed = null;
+        if (matchingShareExt.getRequestURI() != null) {
+            indexed = byUri.get(key(matchingShareExt.getRequestURI()));
+        } else if (matchingShareExt.getUserId() != null) {
+            indexed = byUser.get(key(matchingShareExt.getUserId()));
+        } else {
+            return shares.values();
+        }
+        return indexed != null ? indexed : Collections.<ShareExt>emptySet();
+    }
+
+    private static boolean matches(final ShareExt matchingShareExt, final ShareExt share) {
+        return matches(matchingShareExt.getId(), share.getId())
+                && matches(matchingShareExt.getRequestURI(), share.getRequestURI())
+                && matches(matchingShareExt.getResourceName(), share.getResourceName())
+                && matches(matchingShareExt.getUserId(), share.getUserId())
+                && matches(matchingShareExt.getRealm(), share.getRealm())
+                && matches(matchingShareExt.getClientId(), share.getClientId());
+    }
+
+    private static boolean matches(final String expected, final String value) {
+        return expected == null || equal(expected, value);
+    }
+
+    private static boolean equal(final String value1, final String value2) {
+        return value1 != null && value1.equalsIgnoreCase(value2);
+    }
+
+    private void unindex(final ShareExt share) {
+        unindex(byUri, share.getRequestURI(), share);
+        unindex(byUser, share.getUserId(), share);
+    }
+
+    private static void index(final ConcurrentMap<String, Set<ShareExt>> index,
+                              final String value,
+                              final ShareExt share) {
+        if (value == null) {
+            return;
+        }
+        String key = key(value);
+        Set<ShareExt> set = index.get(key);
+        if (set == null) {
+            set = Collections.newSetFromMap(new ConcurrentHashMap<ShareExt, Boolean>());
+            index.put(key, set);
+        }
+        set.add(share);
+    }
+
+    private static void unindex(final ConcurrentMap<String, Set<ShareExt>> index,
+                                final String value,
+                                final ShareExt share) {
+        if (value == null) {
+            return;
+        }
+        String key = key(value);
+        Set<ShareExt> set = index.get(key);
+        if (set != null) {
+            set.remove(share);
+            if (set.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static String key(final String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    private static ShareExt copy(final ShareExt share) {
+        ShareExt copy = new ShareExt(share.getId());
+        copy.setResourceSetId(share.getResourceSetId());
+        copy.setResourceName(share.getResourceName());
+        // As in the directory, a share referencing its user's PAT does not hold the token itself
+        copy.setPAT(share.getPatId() != null ? null : share.getPAT());
+        copy.setRequestURI(share.getRequestURI());
+        copy.setPolicyURI(share.getPolicyURI());
+        copy.setUserId(share.getUserId());
+        copy.setRealm(share.getRealm());
+        copy.setClientId(share.getClientId());
+        copy.setPatId(share.getPatId());
+        return copy;
+    }
+
+    private static SharedPat copy(final SharedPat pat) {
+        return new SharedPat(pat.getUserId(), pat.getRealm(), pat.getClientId(), pat.getToken(),
+                pat.getRefreshToken(), pat.getExpiresAt());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+/**
+ * Refreshes the PATs of the shares before they expire, using the refresh token stored with each PAT.
+ * <p>
+ * Every {@code interval}, the share store is searched for the PATs expiring within {@code refreshAhead} plus one
+ * interval. Each of them is refreshed after a random delay, bounded by the interval and by half of the PAT remaining
+ * lifetime, so that PATs issued together do not hit the token endpoint together. The new tokens are written back with a single
+ * modification that fails if the PAT has been refreshed meanwhile, by another OpenIG instance for instance:
+ * refreshing the same PAT on several instances is therefore harmless.
+ */
+class PatRefresher {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatRefresher.class);
+
+    private static final int PAGE_SIZE = 500;
+
+    private final UmaSharingServiceExt service;
+    private final ShareStore shareStore;
+    private final ScheduledExecutorService executor;
+    private final long interval;
+    private final long refreshAhead;
+    private final String realm;
+    private final String clientId;
+
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong scans = new AtomicLong();
+    private final AtomicLong refreshed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile ScheduledFuture<?> scan;
+
+    /**
+     * Creates a new, not yet started, refresher.
+     *
+     * @param service      service refreshing and storing the PATs
+     * @param shareStore  share store
+     * @param executor     executor running the scans and the refreshes
+     * @param interval     delay between two scans, in milliseconds
+     * @param refreshAhead how long before their expiration PATs are refreshed, in milliseconds
+     * @param realm        realm of the shares to refresh
+     * @param clientId     OAuth 2.0 client of the shares to refresh
+     */
+    PatRefresher(final UmaSharingServiceExt service,
+                 final ShareStore shareStore,
+                 final ScheduledExecutorService executor,
+                 final long interval,
+                 final long refreshAhead,
+                 final String realm,
+                 final String clientId) {
+        this.service = service;
+        this.shareStore = shareStore;
+        this.executor = executor;
+        this.interval = interval;
+        this.refreshAhead = refreshAhead;
+        this.realm = realm;
+        this.clientId = clientId;
+    }
+
+    /**
+     * Schedules the scans, the first one immediately.
+     */
+    void start() {
+        scan = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                scan();
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels the next scans; refreshes already scheduled still run.
+     */
+    void stop() {
+        ScheduledFuture<?> current = scan;
+        if (current != null) {
+            current.cancel(false);
+        }
+    }
+
+    /**
+     * Returns the scan and refresh counters.
+     *
+     * @return the refresher statistics
+     */
+    JsonValue getStatistics() {
+        return json(object(
+                field("scans", scans.get()),
+                field("pending", pending.size()),
+                field("refreshed", refreshed.get()),
+                field("failed", failed.get())));
+    }
+
+    private void scan() {
+        scans.incrementAndGet();
+        long now = System.currentTimeMillis();
+        try {
+            for (SharedPat pat : shareStore.readExpiringPats(now + refreshAhead + interval, PAGE_SIZE)) {
+                if (realm.equals(pat.getRealm()) && clientId.equals(pat.getClientId()) && pending.add(pat.getId())) {
+                    schedule(pat, now);
+                }
+            }
+        } catch (LdapException e) {
+            logger.warn("Unable to search the expiring UMA PATs", e);
+        }
+    }
+
+    private void schedule(final SharedPat pat, final long now) {
+        // Spread the refreshes, but always well before the PAT actually expires
+        long remaining = pat.getExpiresAt() - now;
+        long bound = Math.min(interval, remaining / 2);
+        long delay = bound > 0 ? ThreadLocalRandom.current().nextLong(bound) : 0L;
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh(pat);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void refresh(final SharedPat pat) {
+        service.refreshPat(pat)
+                .thenOnResult(new ResultHandler<Boolean>() {
+                    @Override
+                    public void handleResult(final Boolean result) {
+                        pending.remove(pat.getId());
+                        if (result) {
+                            refreshed.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    }
+                })
+                .thenOnRuntimeException(new RuntimeExceptionHandler() {
+                    @Override
+                    public void handleRuntimeException(final RuntimeException e) {
+                        pending.remove(pat.getId());
+                        failed.incrementAndGet();
+                        logger.warn("Unable to refresh the PAT of user {}", pat.getUserId(), e);
+                    }
+                });
+    }
+}
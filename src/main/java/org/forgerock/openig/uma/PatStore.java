@@ -0,0 +1,238 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+/**
+ * Resolves the PATs of the shares, stored once per user, realm and OAuth 2.0 client (see {@link SharedPat}), through
+ * an in-memory map holding one instance per PAT.
+ * <p>
+ * Every share of a user holds the same instance, so that rotating a PAT is a single write to the share store and a
+ * single in-memory update. A PAT is read from the share store the first time one of its shares is used, then re-read
+ * in the background once it has been in memory for longer than the configured time, to pick up rotations made by
+ * other OpenIG instances: lookups never wait for a PAT already in memory.
+ */
+class PatStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatStore.class);
+
+    private final ShareStore shareStore;
+    private final long reloadAfter;
+    private final TimeService time;
+    private final ConcurrentMap<String, SharedPat> pats = new ConcurrentHashMap<>();
+    private final SingleFlight<String, SharedPat, LdapException> loads = new SingleFlight<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
+    /**
+     * Creates an empty store.
+     *
+     * @param shareStore  store of the PATs
+     * @param reloadAfter time after which a PAT in memory is read again from the share store, in milliseconds
+     * @param time        time service
+     */
+    PatStore(final ShareStore shareStore, final long reloadAfter, final TimeService time) {
+        this.shareStore = shareStore;
+        this.reloadAfter = reloadAfter;
+        this.time = time;
+    }
+
+    /**
+     * Sets the PAT of the given share, reading it from the share store if not in memory yet. Shares holding their own PAT, created
+     * before PATs were stored once per user, are returned as is.
+     *
+     * @param share share to resolve the PAT of
+     * @return a promise completed with the given share
+     */
+    Promise<ShareExt, LdapException> resolve(final ShareExt share) {
+        String patId = share.getPatId();
+        if (patId == null || share.getSharedPat() != null && !isStale(share.getSharedPat())) {
+            return newResultPromise(share);
+        }
+        SharedPat pat = pats.get(patId);
+        if (pat != null) {
+            hits.incrementAndGet();
+            share.setSharedPat(pat);
+            if (isStale(pat)) {
+                reload(patId);
+            }
+            return newResultPromise(share);
+        }
+        return load(patId)
+                .then(new Function<SharedPat, ShareExt, LdapException>() {
+                    @Override
+                    public ShareExt apply(final SharedPat loaded) {
+                        if (loaded != null) {
+                            share.setSharedPat(loaded);
+                        }
+                        return share;
+                    }
+                });
+    }
+
+    /**
+     * Returns the PAT with the given identifier, reading it from the share store if not in memory yet.
+     *
+     * @param patId PAT identifier
+     * @return a promise completed with the PAT, or {@code null} if there is no such PAT
+     */
+    Promise<SharedPat, LdapException> get(final String patId) {
+        SharedPat pat = pats.get(patId);
+        if (pat != null) {
+            hits.incrementAndGet();
+            return newResultPromise(pat);
+        }
+        return load(patId);
+    }
+
+    /**
+     * Stores the PAT presented by a user when creating a share: it replaces the previous PAT of that user, for all
+     * their shares.
+     *
+     * @param pat PAT to store
+     * @return a promise completed with the in-memory instance of the PAT, to be set on the share
+     */
+    Promise<SharedPat, LdapException> store(final SharedPat pat) {
+        return shareStore.storePatAsync(pat)
+                .then(new Function<SharedPat, SharedPat, LdapException>() {
+                    @Override
+                    public SharedPat apply(final SharedPat stored) {
+                        return merge(stored);
+                    }
+                });
+    }
+
+    /**
+     * Replaces the token of the given PAT in the share store, then in memory. The write fails with
+     * {@link org.forgerock.opendj.ldap.ResultCode#NO_SUCH_ATTRIBUTE} if the token has been replaced meanwhile.
+     *
+     * @param pat     PAT holding the token to replace
+     * @param rotated PAT holding the new token, refresh token and expiration time
+     * @return a promise completed once the PAT has been replaced
+     */
+    Promise<Void, LdapException> rotate(final SharedPat pat, final SharedPat rotated) {
+        return shareStore.updatePatAsync(pat, rotated)
+                .then(new Function<Void, Void, LdapException>() {
+                    @Override
+                    public Void apply(final Void ignored) {
+                        merge(rotated);
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Adds PATs read from a snapshot, unless already in memory. They are considered read from the share store when
+     * the snapshot was written, and thus re-read in the background once older than the configured time.
+     *
+     * @param snapshot  PATs of the snapshot
+     * @param writtenAt when the snapshot was written, in milliseconds since the epoch
+     */
+    void preload(final Collection<SharedPat> snapshot, final long writtenAt) {
+        for (SharedPat copy : snapshot) {
+            copy.update(copy, writtenAt);
+            pats.putIfAbsent(copy.getId(), copy);
+        }
+    }
+
+    /**
+     * Returns the PATs in memory.
+     *
+     * @return an unmodifiable view of the PATs in memory
+     */
+    Collection<SharedPat> pats() {
+        return Collections.unmodifiableCollection(pats.values());
+    }
+
+    /**
+     * Returns the number of PATs in memory, the lookups served from memory and the share store reads.
+     *
+     * @return the store statistics
+     */
+    JsonValue getStatistics() {
+        return json(object(
+                field("size", pats.size()),
+                field("hits", hits.get()),
+                field("reloads", reloads.get()),
+                field("loads", loads.getStatistics().getObject())));
+    }
+
+    private boolean isStale(final SharedPat pat) {
+        return time.now() - pat.getLoadedAt() > reloadAfter;
+    }
+
+    private void reload(final String patId) {
+        reloads.incrementAndGet();
+        load(patId).thenOnException(new ExceptionHandler<LdapException>() {
+            @Override
+            public void handleException(final LdapException e) {
+                // The PAT in memory is kept until the next attempt
+                logger.warn("Unable to reload the UMA PAT {}", patId, e);
+            }
+        });
+    }
+
+    private Promise<SharedPat, LdapException> load(final String patId) {
+        return loads.execute(patId, new AsyncFunction<String, SharedPat, LdapException>() {
+            @Override
+            public Promise<SharedPat, LdapException> apply(final String id) {
+                return shareStore.readPatAsync(id)
+                        .then(new Function<SharedPat, SharedPat, LdapException>() {
+                            @Override
+                            public SharedPat apply(final SharedPat loaded) {
+                                // Not remembered when missing: the PAT may be stored by another instance
+                                return loaded != null ? merge(loaded) : null;
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * Copies the given, more recent, copy of a PAT into its in-memory instance, created if needed.
+     */
+    private SharedPat merge(final SharedPat copy) {
+        SharedPat pat = pats.putIfAbsent(copy.getId(), copy);
+        if (pat == null) {
+            pat = copy;
+        }
+        pat.update(copy, time.now());
+        return pat;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.protocol.Request;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Maps requests to the UMA scopes they require, from an ordered list of rules matching the HTTP method and the
+ * request path. The first matching rule wins.
+ * <p>
+ * Rules are compiled once: path patterns are pre-compiled regular expressions and required scopes are interned into
+ * a {@link ScopeRegistry} mask, so that the permission check does not compare scope strings.
+ */
+final class ScopePolicy {
+
+    /**
+     * A compiled rule: the methods and path it applies to, and the scopes it requires.
+     */
+    static final class Rule {
+        private final Set<String> methods;
+        private final Pattern path;
+        private final List<Object> scopes;
+        private final BitSet mask;
+        private final String key;
+
+        private Rule(final Set<String> methods, final Pattern path, final List<Object> scopes, final BitSet mask) {
+            this.methods = methods;
+            this.path = path;
+            this.scopes = scopes;
+            this.mask = mask;
+            this.key = scopes.toString();
+        }
+
+        private boolean matches(final String method, final String requestPath) {
+            return (methods == null || methods.contains(method))
+                    && (path == null || path.matcher(requestPath).find());
+        }
+
+        /**
+         * Returns the required scopes, as sent to the permission request endpoint.
+         *
+         * @return the required scopes
+         */
+        List<Object> getScopes() {
+            return scopes;
+        }
+
+        /**
+         * Returns the mask of the required scopes.
+         *
+         * @return the required scopes mask, not to be modified
+         */
+        BitSet getMask() {
+            return mask;
+        }
+
+        /**
+         * Returns a string identifying the required scopes, used to key the permission tickets.
+         *
+         * @return the required scopes key
+         */
+        String getKey() {
+            return key;
+        }
+    }
+
+    private final ScopeRegistry registry;
+    private final List<Rule> rules = new ArrayList<>();
+
+    /**
+     * Creates an empty policy, matching no request.
+     *
+     * @param registry registry of the scopes of the realm
+     */
+    ScopePolicy(final ScopeRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Appends a rule to this policy.
+     *
+     * @param methods HTTP methods the rule applies to, {@code null} or empty for any method
+     * @param path    regular expression found in the paths the rule applies to, {@code null} for any path
+     * @param scopes  scopes required by the rule
+     * @return this policy
+     */
+    ScopePolicy add(final Collection<String> methods, final String path, final List<Object> scopes) {
+        Set<String> methodSet = null;
+        if (methods != null && !methods.isEmpty()) {
+            methodSet = new HashSet<>();
+            for (String method : methods) {
+                methodSet.add(method.toUpperCase(Locale.ROOT));
+            }
+        }
+        rules.add(new Rule(methodSet,
+                path != null ? Pattern.compile(path) : null,
+                Collections.unmodifiableList(new ArrayList<>(scopes)),
+                registry.mask(scopes)));
+        return this;
+    }
+
+    /**
+     * Returns the first rule matching the given request.
+     *
+     * @param request incoming request
+     * @return the matching rule, or {@code null} if the request is not covered by this policy
+     */
+    Rule match(final Request request) {
+        String method = request.getMethod().toUpperCase(Locale.ROOT);
+        String path = request.getUri().getPath();
+        for (Rule rule : rules) {
+            if (rule.matches(method, path)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the registry the scopes of this policy are interned in.
+     *
+     * @return the scope registry
+     */
+    ScopeRegistry getRegistry() {
+        return registry;
+    }
+}
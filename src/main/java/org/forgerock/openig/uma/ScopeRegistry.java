@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns the UMA scopes of a realm into small integers, so that a set of scopes becomes a {@link BitSet} and
+ * checking that a token grants the required scopes is a mask test rather than string comparisons.
+ * <p>
+ * Indexes are only ever added, so a mask computed once stays valid for the lifetime of the registry.
+ */
+final class ScopeRegistry {
+
+    private final Map<String, Integer> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the index of the given scope, allocating a new one on first use.
+     *
+     * @param scope scope URI or name
+     * @return the index of the scope
+     */
+    int intern(final String scope) {
+        Integer index = indexes.get(scope);
+        if (index != null) {
+            return index;
+        }
+        synchronized (this) {
+            index = indexes.get(scope);
+            if (index == null) {
+                index = indexes.size();
+                indexes.put(scope, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Returns the mask of the given scopes.
+     *
+     * @param scopes scopes to intern
+     * @return a mask with the bit of each scope set
+     */
+    BitSet mask(final Collection<?> scopes) {
+        BitSet mask = new BitSet(indexes.size());
+        for (Object scope : scopes) {
+            mask.set(intern(String.valueOf(scope)));
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the number of scopes interned so far.
+     *
+     * @return the number of known scopes
+     */
+    int size() {
+        return indexes.size();
+    }
+
+    /**
+     * Returns {@code true} if every scope of the required mask is also in the granted mask. Neither mask is modified.
+     *
+     * @param granted  scopes granted by a token
+     * @param required scopes required to access a resource
+     * @return {@code true} if all the required scopes are granted
+     */
+    static boolean containsAll(final BitSet granted, final BitSet required) {
+        for (int i = required.nextSetBit(0); i >= 0; i = required.nextSetBit(i + 1)) {
+            if (!granted.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of shares and PATs, used by the files written by OpenIG itself, such as the log of the
+ * {@link FileShareStore}.
+ * <p>
+ * Strings are written as their UTF-8 length ({@code -1} for {@code null}) followed by their UTF-8 bytes; numbers are
+ * big-endian, so that records written with a {@link DataOutput} are read back from a (memory-mapped)
+ * {@link ByteBuffer}.
+ */
+final class ShareCodec {
+
+    private ShareCodec() {
+    }
+
+    /**
+     * Writes the stored attributes of a share: a share referencing the PAT of its user does not hold the token.
+     *
+     * @param out   output to write to
+     * @param share share to write
+     * @throws IOException if the output cannot be written
+     */
+    static void writeShare(final DataOutput out, final ShareExt share) throws IOException {
+        writeString(out, share.getId());
+        writeString(out, share.getResourceSetId());
+        writeString(out, share.getResourceName());
+        writeString(out, share.getPatId() != null ? null : share.getPAT());
+        writeString(out, share.getRequestURI());
+        writeString(out, share.getPolicyURI());
+        writeString(out, share.getUserId());
+        writeString(out, share.getRealm());
+        writeString(out, share.getClientId());
+        writeString(out, share.getPatId());
+    }
+
+    /**
+     * Reads a share written by {@link #writeShare(DataOutput, ShareExt)}.
+     *
+     * @param in buffer to read from, positioned on the share
+     * @return the share read
+     */
+    static ShareExt readShare(final ByteBuffer in) {
+        ShareExt share = new ShareExt(readString(in));
+        share.setResourceSetId(readString(in));
+        share.setResourceName(readString(in));
+        share.setPAT(readString(in));
+        share.setRequestURI(readString(in));
+        share.setPolicyURI(readString(in));
+        share.setUserId(readString(in));
+        share.setRealm(readString(in));
+        share.setClientId(readString(in));
+        share.setPatId(readString(in));
+        return share;
+    }
+
+    /**
+     * Writes a PAT, its identifier being derived from its user, realm and client.
+     *
+     * @param out output to write to
+     * @param pat PAT to write
+     * @throws IOException if the output cannot be written
+     */
+    static void writePat(final DataOutput out, final SharedPat pat) throws IOException {
+        writeString(out, pat.getUserId());
+        writeString(out, pat.getRealm());
+        writeString(out, pat.getClientId());
+        writeString(out, pat.getToken());
+        writeString(out, pat.getRefreshToken());
+        out.writeLong(pat.getExpiresAt());
+    }
+
+    /**
+     * Reads a PAT written by {@link #writePat(DataOutput, SharedPat)}.
+     *
+     * @param in buffer to read from, positioned on the PAT
+     * @return the PAT read
+     */
+    static SharedPat readPat(final ByteBuffer in) {
+        return new SharedPat(readString(in), readString(in), readString(in), readString(in), readString(in),
+                in.getLong());
+    }
+
+    /**
+     * Writes a nullable string.
+     *
+     * @param out   output to write to
+     * @param value string to write, may be {@code null}
+     * @throws IOException if the output cannot be written
+     */
+    static void writeString(final DataOutput out, final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutput, String)}.
+     *
+     * @param in buffer to read from, positioned on the string
+     * @return the string read, may be {@code null}
+     * @throws IllegalArgumentException if the encoded length is invalid
+     */
+    static String readString(final ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IllegalArgumentException("Truncated string of " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
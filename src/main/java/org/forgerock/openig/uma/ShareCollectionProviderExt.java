@@ -25,33 +25,29 @@ import org.forgerock.api.enums.CreateMode;
 import org.forgerock.api.enums.QueryType;
 import org.forgerock.api.enums.Stability;
 import org.forgerock.http.oauth2.OAuth2;
-import org.forgerock.http.protocol.Form;
-import org.forgerock.http.protocol.Request;
-import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.resource.*;
 import org.forgerock.json.resource.http.HttpContext;
 import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.Function;
-import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
 
 import static java.lang.String.format;
 import static org.forgerock.json.JsonValue.*;
 import static org.forgerock.json.resource.Responses.newQueryResponse;
 import static org.forgerock.json.resource.Responses.newResourceResponse;
-import static org.forgerock.util.promise.Promises.newResultPromise;
-import static org.forgerock.util.query.QueryFilter.alwaysTrue;
 
 /**
  * A {@link ShareCollectionProvider} is the CREST-based endpoint responsible for managing (creating, deleting, ...)
  * {@link Share} objects.
  * <p>
  * <p>Supported operations: {@literal CREATE}, {@literal READ}, {@literal DELETE}
- * and {@literal QUERY} (simple shares list, no filtering).
+ * and {@literal QUERY} (filtered on {@literal resourceURI}, {@literal name}, {@literal resource_set_id} or
+ * {@literal userId}, sorted with {@literal _sortKeys} and optionally paged with {@literal _pageSize} and
+ * {@literal _pagedResultsCookie}).
  */
 @CollectionProvider(details = @Handler(id = "share",
         resourceSchema = @Schema(schemaResource = "share.json", id = "share"),
@@ -60,6 +56,8 @@ import static org.forgerock.util.query.QueryFilter.alwaysTrue;
         mvccSupported = false))
 class ShareCollectionProviderExt implements CollectionResourceProvider {
 
+    private static final String INVALID_PAT = "Missing or expired PAT in request";
+
     private final UmaSharingServiceExt service;
 
     /**
@@ -74,6 +72,7 @@ class ShareCollectionProviderExt implements CollectionResourceProvider {
     private static JsonValue asJson(final ShareExt share) {
         return json(object(
                 field("resourceURI", share.getRequestURI()),
+                field("name", share.getResourceName()),
                 field("user_access_policy_uri", share.getPolicyURI()),
                 field("pat", share.getPAT()),
                 field("resource_set_id", share.getResourceSetId()),
@@ -100,21 +99,22 @@ class ShareCollectionProviderExt implements CollectionResourceProvider {
             return new NotSupportedException("Only POST-style of instance creation are supported").asPromise();
         }
 
-        final String userId = introspectToken(context);
-        if (null == userId) {
-            return new BadRequestException("Missing or expired PAT in request").asPromise();
-        }
-
-        return service.createShare(context, request, userId)
-                .then(new Function<ShareExt, ResourceResponse, ResourceException>() {
+        return resolveUserId(context)
+                .thenAsync(new AsyncFunction<String, ResourceResponse, ResourceException>() {
                     @Override
-                    public ResourceResponse apply(final ShareExt share) throws ResourceException {
-                        return newResourceResponse(share.getId(), null, asJson(share));
-                    }
-                }, new Function<UmaException, ResourceResponse, ResourceException>() {
-                    @Override
-                    public ResourceResponse apply(final UmaException exception) throws ResourceException {
-                        throw new BadRequestException("Failed to create a share, Reason: " + exception.getMessage(), exception);
+                    public Promise<ResourceResponse, ResourceException> apply(final String userId) {
+                        return service.createShare(context, request, userId)
+                                .then(new Function<ShareExt, ResourceResponse, ResourceException>() {
+                                    @Override
+                                    public ResourceResponse apply(final ShareExt share) throws ResourceException {
+                                        return newResourceResponse(share.getId(), null, asJson(share));
+                                    }
+                                }, new Function<UmaException, ResourceResponse, ResourceException>() {
+                                    @Override
+                                    public ResourceResponse apply(final UmaException exception) throws ResourceException {
+                                        throw new BadRequestException("Failed to create a share, Reason: " + exception.getMessage(), exception);
+                                    }
+                                });
                     }
                 });
     }
@@ -128,18 +128,15 @@ class ShareCollectionProviderExt implements CollectionResourceProvider {
     public Promise<ResourceResponse, ResourceException> deleteInstance(final Context context,
                                                                        final String resourceId,
                                                                        final DeleteRequest request) {
-        final String userId = introspectToken(context);
-        if (null == userId) {
-            return new BadRequestException("Missing or expired PAT in request").asPromise();
-        }
-
-        ShareExt share = service.removeShare(resourceId, userId);
-        if (share == null) {
-            return new NotFoundException(format("Share %s is unknown", resourceId)).asPromise();
-        }
-
-        //TODO Delete from OpenAM too
-        return newResultPromise(newResourceResponse(resourceId, null, asJson(share)));
+        return resolveUserId(context)
+                .thenAsync(new AsyncFunction<String, ResourceResponse, ResourceException>() {
+                    @Override
+                    public Promise<ResourceResponse, ResourceException> apply(final String userId) {
+                        //TODO Delete from OpenAM too
+                        return service.removeShareAsync(resourceId, userId)
+                                .then(new ShareResponseFunction(resourceId), new UmaExceptionFunction());
+                    }
+                });
     }
 
     @Override
@@ -160,23 +157,64 @@ class ShareCollectionProviderExt implements CollectionResourceProvider {
                                                                      final QueryRequest request,
                                                                      final QueryResourceHandler handler) {
 
-        // Reject queries with query ID, provided expressions and non "true" filter
+        // Reject queries with query ID and provided expressions
         if (request.getQueryId() != null
                 || request.getQueryExpression() != null
-                || !alwaysTrue().equals(request.getQueryFilter())) {
-            return new NotSupportedException("Only accept queries with filter=true").asPromise();
+                || request.getQueryFilter() == null) {
+            return new NotSupportedException("Only accept queries with a query filter").asPromise();
         }
-
-        final String userId = introspectToken(context);
-        if (null == userId) {
-            return new BadRequestException("Missing or expired PAT in request").asPromise();
+        if (request.getPagedResultsOffset() > 0) {
+            return new NotSupportedException("Only cookie based paging is supported").asPromise();
         }
 
-        for (ShareExt share : service.listShares(userId)) {
-            handler.handleResource(newResourceResponse(share.getId(), null, asJson(share)));
+        return resolveUserId(context)
+                .thenAsync(new AsyncFunction<String, QueryResponse, ResourceException>() {
+                    @Override
+                    public Promise<QueryResponse, ResourceException> apply(final String userId) {
+                        return queryShares(userId, request, handler);
+                    }
+                });
+    }
+
+    private Promise<QueryResponse, ResourceException> queryShares(final String userId,
+                                                                  final QueryRequest request,
+                                                                  final QueryResourceHandler handler) {
+        // Shares are handed to the handler as they are read from the store
+        Promise<SharePage, UmaException> page;
+        try {
+            page = service.queryShares(userId, request.getQueryFilter(), request.getSortKeys(),
+                    request.getPageSize(), request.getPagedResultsCookie(),
+                    new ShareListener() {
+                        @Override
+                        public void shareAdded(final ShareExt share) {
+                            handler.handleResource(newResourceResponse(share.getId(), null, asJson(share)));
+                        }
+
+                        @Override
+                        public void shareRemoved(final String shareId) {
+                            // Not notified by a query
+                        }
+                    });
+        } catch (IllegalArgumentException e) {
+            return new BadRequestException("Invalid share query: " + e.getMessage(), e).asPromise();
         }
 
-        return newResultPromise(newQueryResponse());
+        return page.then(new Function<SharePage, QueryResponse, ResourceException>() {
+            @Override
+            public QueryResponse apply(final SharePage sharePage) {
+                if (request.getTotalPagedResultsPolicy() == CountPolicy.NONE || sharePage.getEstimatedTotal() < 0) {
+                    return newQueryResponse(sharePage.getPagedResultsCookie());
+                }
+                // The directory only provides an estimate of the total
+                return newQueryResponse(sharePage.getPagedResultsCookie(), CountPolicy.ESTIMATE,
+                        sharePage.getEstimatedTotal());
+            }
+        }, new Function<UmaException, QueryResponse, ResourceException>() {
+            @Override
+            public QueryResponse apply(final UmaException exception) throws ResourceException {
+                throw new InternalServerErrorException(exception.getMessage(), exception);
+            }
+        });
     }
 
     @Override
@@ -185,17 +223,14 @@ class ShareCollectionProviderExt implements CollectionResourceProvider {
     public Promise<ResourceResponse, ResourceException> readInstance(final Context context,
                                                                      final String resourceId,
                                                                      final ReadRequest request) {
-        final String userId = introspectToken(context);
-        if (null == userId) {
-            return new BadRequestException("Missing or expired PAT in request").asPromise();
-        }
-
-        ShareExt share = service.getShare(resourceId, userId);
-
-        if (null == share) {
-            return new NotFoundException(format("Share %s is unknown", resourceId)).asPromise();
-        }
-        return newResultPromise(newResourceResponse(resourceId, null, asJson(share)));
+        return resolveUserId(context)
+                .thenAsync(new AsyncFunction<String, ResourceResponse, ResourceException>() {
+                    @Override
+                    public Promise<ResourceResponse, ResourceException> apply(final String userId) {
+                        return service.getShareAsync(resourceId, userId)
+                                .then(new ShareResponseFunction(resourceId), new UmaExceptionFunction());
+                    }
+                });
     }
 
     @Override
@@ -219,42 +254,62 @@ class ShareCollectionProviderExt implements CollectionResourceProvider {
     }
 
     /**
-     * Gets the UserID from PAT
+     * Converts a found share into a CREST resource, or a {@link NotFoundException} when no share was found.
+     */
+    private static class ShareResponseFunction implements Function<ShareExt, ResourceResponse, ResourceException> {
+        private final String resourceId;
+
+        ShareResponseFunction(final String resourceId) {
+            this.resourceId = resourceId;
+        }
+
+        @Override
+        public ResourceResponse apply(final ShareExt share) throws ResourceException {
+            if (null == share) {
+                throw new NotFoundException(format("Share %s is unknown", resourceId));
+            }
+            return newResourceResponse(resourceId, null, asJson(share));
+        }
+    }
+
+    /**
+     * Converts a share store failure into a CREST {@link InternalServerErrorException}.
+     */
+    private static class UmaExceptionFunction implements Function<UmaException, ResourceResponse, ResourceException> {
+        @Override
+        public ResourceResponse apply(final UmaException exception) throws ResourceException {
+            throw new InternalServerErrorException(exception.getMessage(), exception);
+        }
+    }
+
+    /**
+     * Gets the UserID from PAT, without blocking the calling thread. PAT owners are cached by the UMA service.
      *
      * @param context
-     * @return UserID from response, Null in case response is invalid
+     * @return a promise completed with the UserID ("sub" of the PAT), or failed with a {@link BadRequestException}
+     * when the PAT is missing, invalid or expired
      */
-    private String introspectToken(final Context context) {
-        Request request = new Request();
-
+    private Promise<String, ResourceException> resolveUserId(final Context context) {
         final String pat = OAuth2.getBearerAccessToken(((HttpContext) context.getParent()).getHeaderAsString("Authorization"));
         if (null == pat) {
-            return null;
+            return new BadRequestException(INVALID_PAT).asPromise();
         }
 
-        request.setUri(service.getIntrospectionEndpoint());
         // Should accept a PAT as per the spec (See OPENAM-6320 / OPENAM-5928)
-        //request.getHeaders().put("Authorization", format("Bearer %s", pat));
-        request.getHeaders().put("Accept", "application/json");
-
-        Form query = new Form();
-        query.putSingle("token", pat);
-        query.putSingle("client_id", service.getClientId());
-        query.putSingle("client_secret", service.getClientSecret());
-        query.toRequestEntity(request);
-
-        Promise<org.forgerock.http.protocol.Response, NeverThrowsException> responsePromise = service.getProtectionApiHandler().handle(context, request);
-        try {
-            org.forgerock.http.protocol.Response response = responsePromise.get();
-            if ((Status.OK == response.getStatus()) && null != response.getEntity()) {
-                JsonValue value = json(response.getEntity().getJson());
-
-                // Gets the "sub" field from JSON response
-                return value.get("sub").asString();
-            }
-        } catch (IOException | ExecutionException | InterruptedException e) {
-            return null;
-        }
-        return null;
+        return service.introspectToken(context, service.getProtectionApiHandler(), pat, service.getPatCache())
+                .then(new Function<TokenIntrospection, String, ResourceException>() {
+                    @Override
+                    public String apply(final TokenIntrospection introspection) throws ResourceException {
+                        if (null == introspection || null == introspection.getSubject()) {
+                            throw new BadRequestException(INVALID_PAT);
+                        }
+                        return introspection.getSubject();
+                    }
+                }, new Function<IOException, String, ResourceException>() {
+                    @Override
+                    public String apply(final IOException e) throws ResourceException {
+                        throw new BadRequestException(INVALID_PAT, e);
+                    }
+                });
     }
 }
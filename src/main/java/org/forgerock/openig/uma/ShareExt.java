@@ -31,6 +31,8 @@ public class ShareExt {
     private String requestURI;
     private String policyURI;
     private String refreshToken;
+    private String patId;
+    private volatile SharedPat sharedPat;
     private String realm;
     private String userId;
     private String clientId;
@@ -99,8 +101,15 @@ public class ShareExt {
         this.resourceSetId = resourceSetId;
     }
 
+    /**
+     * Returns the PAT of this share: the current token of its {@link SharedPat} once resolved, otherwise the PAT
+     * stored in the share entry itself, for shares created before PATs were stored once per user.
+     *
+     * @return the PAT, {@code null} if not resolved yet
+     */
     public String getPAT() {
-        return PAT;
+        SharedPat pat = sharedPat;
+        return pat != null ? pat.getToken() : PAT;
     }
 
     public void setPAT(String PAT) {
@@ -131,6 +140,28 @@ public class ShareExt {
         this.refreshToken = refreshToken;
     }
 
+    /**
+     * Returns the identifier of the {@link SharedPat} entry of this share.
+     *
+     * @return the PAT identifier, {@code null} if the PAT is stored in the share entry
+     */
+    public String getPatId() {
+        return patId;
+    }
+
+    public void setPatId(String patId) {
+        this.patId = patId;
+    }
+
+    SharedPat getSharedPat() {
+        return sharedPat;
+    }
+
+    void setSharedPat(SharedPat sharedPat) {
+        this.patId = sharedPat.getId();
+        this.sharedPat = sharedPat;
+    }
+
     public String getRealm() {
         return realm;
     }
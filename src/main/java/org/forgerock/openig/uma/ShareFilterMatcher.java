@@ -0,0 +1,230 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.opendj.ldap.ByteString;
+import org.forgerock.opendj.ldap.Filter;
+import org.forgerock.opendj.ldap.FilterVisitor;
+import org.forgerock.opendj.ldap.SortKey;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Evaluates the LDAP filters and sort keys of share queries (see {@link ShareQueryFilterVisitor}) against shares held
+ * in memory, with the case-insensitive matching rules of the share attributes in the directory schema.
+ * <p>
+ * Filters on attributes a share does not have, and extensible match filters, match nothing.
+ */
+final class ShareFilterMatcher implements FilterVisitor<Boolean, ShareExt> {
+
+    private static final ShareFilterMatcher INSTANCE = new ShareFilterMatcher();
+
+    private ShareFilterMatcher() {
+    }
+
+    /**
+     * Returns {@code true} if the given share matches the given filter.
+     *
+     * @param filter LDAP filter over the share attributes
+     * @param share  share to test
+     * @return {@code true} if the share matches
+     */
+    static boolean matches(final Filter filter, final ShareExt share) {
+        return filter.accept(INSTANCE, share);
+    }
+
+    /**
+     * Returns a comparator sorting shares on the given keys, shares without a value for a key coming last.
+     *
+     * @param sortKeys LDAP sort keys over the share attributes
+     * @return the share comparator
+     */
+    static Comparator<ShareExt> comparator(final List<SortKey> sortKeys) {
+        return new Comparator<ShareExt>() {
+            @Override
+            public int compare(final ShareExt share1, final ShareExt share2) {
+                for (SortKey sortKey : sortKeys) {
+                    String value1 = value(share1, sortKey.getAttributeDescription());
+                    String value2 = value(share2, sortKey.getAttributeDescription());
+                    int result;
+                    if (value1 == null || value2 == null) {
+                        // Missing values come last whatever the order, as with server side sorting
+                        result = value1 == null ? (value2 == null ? 0 : 1) : -1;
+                    } else {
+                        result = value1.compareToIgnoreCase(value2);
+                        if (sortKey.isReverseOrder()) {
+                            result = -result;
+                        }
+                    }
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                return 0;
+            }
+        };
+    }
+
+    /**
+     * Returns the value of the given attribute of a share.
+     *
+     * @param share     share to read
+     * @param attribute LDAP attribute name
+     * @return the attribute value, {@code null} if the share has no such attribute
+     */
+    static String value(final ShareExt share, final String attribute) {
+        switch (attribute.toLowerCase(Locale.ROOT)) {
+        case "umaresourceid":
+            return share.getId();
+        case "umaresourcesetid":
+            return share.getResourceSetId();
+        case "umaresourceuri":
+            return share.getRequestURI();
+        case "umaresourcename":
+            return share.getResourceName();
+        case "umaresourcepolicyuri":
+            return share.getPolicyURI();
+        case "umaresourceuserid":
+            return share.getUserId();
+        case "umaresourcerealm":
+            return share.getRealm();
+        case "umaresourceclientid":
+            return share.getClientId();
+        case "umapatid":
+            return share.getPatId();
+        default:
+            return null;
+        }
+    }
+
+    @Override
+    public Boolean visitAndFilter(final ShareExt share, final List<Filter> subFilters) {
+        for (Filter subFilter : subFilters) {
+            if (!subFilter.accept(this, share)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Boolean visitOrFilter(final ShareExt share, final List<Filter> subFilters) {
+        for (Filter subFilter : subFilters) {
+            if (subFilter.accept(this, share)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Boolean visitNotFilter(final ShareExt share, final Filter subFilter) {
+        return !subFilter.accept(this, share);
+    }
+
+    @Override
+    public Boolean visitEqualityMatchFilter(final ShareExt share,
+                                            final String attributeDescription,
+                                            final ByteString assertionValue) {
+        String value = value(share, attributeDescription);
+        return value != null && value.equalsIgnoreCase(assertionValue.toString());
+    }
+
+    @Override
+    public Boolean visitApproxMatchFilter(final ShareExt share,
+                                          final String attributeDescription,
+                                          final ByteString assertionValue) {
+        return visitEqualityMatchFilter(share, attributeDescription, assertionValue);
+    }
+
+    @Override
+    public Boolean visitGreaterOrEqualFilter(final ShareExt share,
+                                             final String attributeDescription,
+                                             final ByteString assertionValue) {
+        String value = value(share, attributeDescription);
+        return value != null && value.compareToIgnoreCase(assertionValue.toString()) >= 0;
+    }
+
+    @Override
+    public Boolean visitLessOrEqualFilter(final ShareExt share,
+                                          final String attributeDescription,
+                                          final ByteString assertionValue) {
+        String value = value(share, attributeDescription);
+        return value != null && value.compareToIgnoreCase(assertionValue.toString()) <= 0;
+    }
+
+    @Override
+    public Boolean visitPresentFilter(final ShareExt share, final String attributeDescription) {
+        return value(share, attributeDescription) != null;
+    }
+
+    @Override
+    public Boolean visitSubstringsFilter(final ShareExt share,
+                                         final String attributeDescription,
+                                         final ByteString initialSubstring,
+                                         final List<ByteString> anySubstrings,
+                                         final ByteString finalSubstring) {
+        String value = value(share, attributeDescription);
+        if (value == null) {
+            return false;
+        }
+        value = value.toLowerCase(Locale.ROOT);
+        int position = 0;
+        if (initialSubstring != null) {
+            String initial = lowerCase(initialSubstring);
+            if (!value.startsWith(initial)) {
+                return false;
+            }
+            position = initial.length();
+        }
+        for (ByteString anySubstring : anySubstrings) {
+            String any = lowerCase(anySubstring);
+            int index = value.indexOf(any, position);
+            if (index < 0) {
+                return false;
+            }
+            position = index + any.length();
+        }
+        if (finalSubstring != null) {
+            String end = lowerCase(finalSubstring);
+            return value.length() - end.length() >= position && value.endsWith(end);
+        }
+        return true;
+    }
+
+    @Override
+    public Boolean visitExtensibleMatchFilter(final ShareExt share,
+                                              final String matchingRule,
+                                              final String attributeDescription,
+                                              final ByteString assertionValue,
+                                              final boolean dnAttributes) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitUnrecognizedFilter(final ShareExt share, final byte filterTag, final ByteString filterBytes) {
+        return false;
+    }
+
+    private static String lowerCase(final ByteString value) {
+        return value.toString().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.opendj.ldap.DN;
+import org.forgerock.opendj.ldap.RDN;
+import org.forgerock.opendj.ldap.SearchScope;
+
+/**
+ * Layout of the share entries under the LDAP base DN.
+ * <p>
+ * {@link #FLAT} stores every share directly under the base DN, {@link #USER} under one container per realm and user
+ * ({@literal umaResourceId=<id>,ou=<userId>,ou=<realm>,<baseDN>}): searches for the shares of a known user then only
+ * look at the few entries of that user, whatever the total number of shares. PAT entries are always stored directly
+ * under the base DN, they are only read by DN.
+ */
+enum ShareLayout {
+
+    /** All the shares directly under the base DN. */
+    FLAT {
+        @Override
+        DN parent(final DN baseDN, final String realm, final String userId) {
+            return baseDN;
+        }
+
+        @Override
+        DN searchBase(final DN baseDN, final ShareExt match) {
+            return baseDN;
+        }
+
+        @Override
+        SearchScope searchScope(final ShareExt match) {
+            return SearchScope.WHOLE_SUBTREE;
+        }
+    },
+
+    /** Shares under {@literal ou=<userId>,ou=<realm>,<baseDN>}. */
+    USER {
+        @Override
+        DN parent(final DN baseDN, final String realm, final String userId) {
+            return baseDN.child(new RDN("ou", realm)).child(new RDN("ou", userId));
+        }
+
+        @Override
+        DN searchBase(final DN baseDN, final ShareExt match) {
+            if (match.getRealm() == null) {
+                return baseDN;
+            }
+            DN realmDN = baseDN.child(new RDN("ou", match.getRealm()));
+            return match.getUserId() != null ? realmDN.child(new RDN("ou", match.getUserId())) : realmDN;
+        }
+
+        @Override
+        SearchScope searchScope(final ShareExt match) {
+            return match.getRealm() != null && match.getUserId() != null
+                    ? SearchScope.SINGLE_LEVEL
+                    : SearchScope.WHOLE_SUBTREE;
+        }
+    };
+
+    /**
+     * Returns the DN of the container of the shares of the given user.
+     *
+     * @param baseDN base DN of the shares
+     * @param realm  realm of the user
+     * @param userId owner of the shares
+     * @return the DN of the parent entry of the shares of the user
+     */
+    abstract DN parent(DN baseDN, String realm, String userId);
+
+    /**
+     * Returns the narrowest entry under which the shares matching the given share are found.
+     *
+     * @param baseDN base DN of the shares
+     * @param match  share holding the values to match
+     * @return the base DN of the search
+     */
+    abstract DN searchBase(DN baseDN, ShareExt match);
+
+    /**
+     * Returns the scope of a search from {@link #searchBase(DN, ShareExt)}.
+     *
+     * @param match share holding the values to match
+     * @return the scope of the search
+     */
+    abstract SearchScope searchScope(ShareExt match);
+
+    /**
+     * Returns the DN of the given share.
+     *
+     * @param baseDN base DN of the shares
+     * @param share  share, with its identifier, realm and user set
+     * @return the DN of the share entry
+     */
+    DN entryDN(final DN baseDN, final ShareExt share) {
+        return parent(baseDN, share.getRealm(), share.getUserId()).child(new RDN("umaResourceId", share.getId()));
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.util.time.Duration;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.forgerock.util.time.Duration.duration;
+
+/**
+ * Command line tool moving the shares stored directly under the base DN ({@link ShareLayout#FLAT} layout) to the
+ * containers of their users ({@link ShareLayout#USER} layout), batch by batch.
+ * <p>
+ * Shares are renamed in place with modify DN requests, so the migration can run while OpenIG is serving requests
+ * with the {@literal flat} layout, which searches the whole subtree of the base DN and therefore finds moved shares
+ * too; replicas see moved shares as renamed. It can be interrupted and run again at any time: run it once more after
+ * switching {@code ldapLayout} to {@literal user}, to move the shares created meanwhile.
+ * <pre>
+ *     java -cp ... org.forgerock.openig.uma.ShareLayoutMigration host port bindDN password baseDN [batchSize]
+ * </pre>
+ */
+public final class ShareLayoutMigration {
+
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    private ShareLayoutMigration() {
+    }
+
+    /**
+     * Moves all the shares of the given base DN to the {@literal user} layout.
+     *
+     * @param args host, port, bind DN, password, base DN and optional batch size
+     * @throws LdapException if a share cannot be read or moved
+     */
+    public static void main(final String[] args) throws LdapException {
+        if (args.length < 5 || args.length > 6) {
+            System.err.println("Usage: ShareLayoutMigration host port bindDN password baseDN [batchSize]");
+            System.exit(1);
+        }
+        int batchSize = args.length == 6 ? Integer.parseInt(args[5]) : DEFAULT_BATCH_SIZE;
+        // Only synchronous operations are used, the scheduler is not expected to run anything
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        LDAPManager ldapManager = new LDAPManager(args[0], Integer.parseInt(args[1]), args[2], args[3], args[4],
+                1, 1, Duration.UNLIMITED, duration("30 seconds"), ShareLayout.USER, scheduler);
+        try {
+            long start = System.currentTimeMillis();
+            int total = 0;
+            int moved;
+            while ((moved = ldapManager.migrateShares(batchSize)) > 0) {
+                total += moved;
+                System.out.println("Moved " + total + " shares");
+            }
+            System.out.println("Migration done, moved " + total + " shares in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } finally {
+            ldapManager.close();
+            scheduler.shutdownNow();
+        }
+    }
+}
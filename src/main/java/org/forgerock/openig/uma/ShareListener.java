@@ -0,0 +1,39 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+/**
+ * Receives the shares read from the share store, and the changes made to them.
+ */
+interface ShareListener {
+
+    /**
+     * Called when a share is read, added or modified.
+     *
+     * @param share the share, with all its attributes
+     */
+    void shareAdded(ShareExt share);
+
+    /**
+     * Called when a share is removed.
+     *
+     * @param shareId identifier of the removed share
+     */
+    void shareRemoved(String shareId);
+}
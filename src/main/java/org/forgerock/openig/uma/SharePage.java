@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+/**
+ * Outcome of a paged share query: the cookie to request the next page and the estimated number of matching shares.
+ */
+final class SharePage {
+
+    private final String pagedResultsCookie;
+    private final int estimatedTotal;
+
+    /**
+     * Creates a page outcome.
+     *
+     * @param pagedResultsCookie opaque cookie to request the next page, {@code null} on the last page
+     * @param estimatedTotal     estimated number of shares matching the query, {@code -1} if unknown
+     */
+    SharePage(final String pagedResultsCookie, final int estimatedTotal) {
+        this.pagedResultsCookie = pagedResultsCookie;
+        this.estimatedTotal = estimatedTotal;
+    }
+
+    /**
+     * Returns the opaque cookie to request the next page.
+     *
+     * @return the cookie to request the next page, {@code null} on the last page
+     */
+    String getPagedResultsCookie() {
+        return pagedResultsCookie;
+    }
+
+    /**
+     * Returns the estimated number of shares matching the query.
+     *
+     * @return the estimated number of matching shares, {@code -1} if unknown
+     */
+    int getEstimatedTotal() {
+        return estimatedTotal;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.resource.SortKey;
+import org.forgerock.opendj.ldap.Filter;
+import org.forgerock.util.query.QueryFilter;
+import org.forgerock.util.query.QueryFilterVisitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Translates the CREST query filters and sort keys of the share endpoint into LDAP filters and sort keys, so that
+ * share queries are filtered and sorted by the directory.
+ * <p>
+ * Filters can use the {@literal resourceURI}, {@literal name}, {@literal resource_set_id} and {@literal userId}
+ * fields with the {@literal eq}, {@literal sw}, {@literal co} and {@literal pr} operators, combined with
+ * {@literal and}, {@literal or} and {@literal !}. Any other field or operator is rejected with an
+ * {@link IllegalArgumentException}.
+ */
+final class ShareQueryFilterVisitor implements QueryFilterVisitor<Filter, Void, JsonPointer> {
+
+    private static final ShareQueryFilterVisitor INSTANCE = new ShareQueryFilterVisitor();
+
+    private static final Map<String, String> ATTRIBUTES = new HashMap<>();
+
+    static {
+        ATTRIBUTES.put("resourceURI", "umaResourceURI");
+        ATTRIBUTES.put("name", "umaResourceName");
+        ATTRIBUTES.put("resource_set_id", "umaResourceSetId");
+        ATTRIBUTES.put("userId", "umaResourceUserID");
+    }
+
+    private ShareQueryFilterVisitor() {
+    }
+
+    /**
+     * Translates a CREST query filter into an LDAP filter.
+     *
+     * @param filter CREST query filter
+     * @return the equivalent LDAP filter
+     * @throws IllegalArgumentException if the filter uses an unsupported field or operator
+     */
+    static Filter toLdapFilter(final QueryFilter<JsonPointer> filter) {
+        return filter.accept(INSTANCE, null);
+    }
+
+    /**
+     * Translates CREST sort keys into LDAP server-side sort keys.
+     *
+     * @param sortKeys CREST sort keys, may be {@code null}
+     * @return the equivalent LDAP sort keys, empty if none
+     * @throws IllegalArgumentException if a sort key uses an unsupported field
+     */
+    static List<org.forgerock.opendj.ldap.SortKey> toLdapSortKeys(final List<SortKey> sortKeys) {
+        if (sortKeys == null || sortKeys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<org.forgerock.opendj.ldap.SortKey> ldapSortKeys = new ArrayList<>(sortKeys.size());
+        for (SortKey sortKey : sortKeys) {
+            ldapSortKeys.add(new org.forgerock.opendj.ldap.SortKey(attribute(sortKey.getField()),
+                    !sortKey.isAscendingOrder()));
+        }
+        return ldapSortKeys;
+    }
+
+    @Override
+    public Filter visitAndFilter(final Void parameter, final List<QueryFilter<JsonPointer>> subFilters) {
+        return Filter.and(visitAll(subFilters));
+    }
+
+    @Override
+    public Filter visitOrFilter(final Void parameter, final List<QueryFilter<JsonPointer>> subFilters) {
+        return Filter.or(visitAll(subFilters));
+    }
+
+    @Override
+    public Filter visitNotFilter(final Void parameter, final QueryFilter<JsonPointer> subFilter) {
+        return Filter.not(subFilter.accept(this, parameter));
+    }
+
+    @Override
+    public Filter visitBooleanLiteralFilter(final Void parameter, final boolean value) {
+        return value ? Filter.alwaysTrue() : Filter.alwaysFalse();
+    }
+
+    @Override
+    public Filter visitEqualsFilter(final Void parameter, final JsonPointer field, final Object valueAssertion) {
+        return Filter.equality(attribute(field), valueAssertion);
+    }
+
+    @Override
+    public Filter visitStartsWithFilter(final Void parameter, final JsonPointer field, final Object valueAssertion) {
+        return Filter.substrings(attribute(field), valueAssertion, null, null);
+    }
+
+    @Override
+    public Filter visitContainsFilter(final Void parameter, final JsonPointer field, final Object valueAssertion) {
+        return Filter.substrings(attribute(field), null, Collections.singletonList(valueAssertion), null);
+    }
+
+    @Override
+    public Filter visitPresentFilter(final Void parameter, final JsonPointer field) {
+        return Filter.present(attribute(field));
+    }
+
+    @Override
+    public Filter visitGreaterThanFilter(final Void parameter, final JsonPointer field, final Object valueAssertion) {
+        throw unsupported("gt");
+    }
+
+    @Override
+    public Filter visitGreaterThanOrEqualToFilter(final Void parameter,
+                                                  final JsonPointer field,
+                                                  final Object valueAssertion) {
+        throw unsupported("ge");
+    }
+
+    @Override
+    public Filter visitLessThanFilter(final Void parameter, final JsonPointer field, final Object valueAssertion) {
+        throw unsupported("lt");
+    }
+
+    @Override
+    public Filter visitLessThanOrEqualToFilter(final Void parameter,
+                                               final JsonPointer field,
+                                               final Object valueAssertion) {
+        throw unsupported("le");
+    }
+
+    @Override
+    public Filter visitExtendedMatchFilter(final Void parameter,
+                                           final JsonPointer field,
+                                           final String operator,
+                                           final Object valueAssertion) {
+        throw unsupported(operator);
+    }
+
+    private List<Filter> visitAll(final List<QueryFilter<JsonPointer>> subFilters) {
+        List<Filter> filters = new ArrayList<>(subFilters.size());
+        for (QueryFilter<JsonPointer> subFilter : subFilters) {
+            filters.add(subFilter.accept(this, null));
+        }
+        return filters;
+    }
+
+    private static String attribute(final JsonPointer field) {
+        String attribute = field.size() == 1 ? ATTRIBUTES.get(field.leaf()) : null;
+        if (attribute == null) {
+            throw new IllegalArgumentException(format("Cannot filter or sort shares on field '%s'", field));
+        }
+        return attribute;
+    }
+
+    private static IllegalArgumentException unsupported(final String operator) {
+        return new IllegalArgumentException(format("Unsupported share query filter operator '%s'", operator));
+    }
+}
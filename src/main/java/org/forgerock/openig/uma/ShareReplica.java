@@ -0,0 +1,358 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.opendj.ldap.Connection;
+import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.opendj.ldap.messages.Result;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+/**
+ * In-memory replica of all the shares stored in LDAP, kept in sync through a persistent search.
+ * <p>
+ * A (re)build first starts the persistent search on a dedicated connection, then loads every share with a paged
+ * search: changes made while the load is running are therefore not missed. Once loaded, the replica is ready and
+ * serves share lookups without any directory round trip. If the persistent search ends (connection lost, server
+ * restart...), the replica is marked as not ready and rebuilt after the configured delay; callers are expected to
+ * fall back to LDAP in the meantime.
+ * <p>
+ * (Re)builds block their thread while loading the shares: they are expected to run on an executor dedicated to the
+ * replica, so that a hanging directory does not hold up other scheduled tasks.
+ */
+class ShareReplica implements ShareListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShareReplica.class);
+
+    private static final int PAGE_SIZE = 1000;
+
+    private final LDAPManager ldapManager;
+    private final ScheduledExecutorService executor;
+    private final long retryDelay;
+    private final long connectTimeout;
+    private final String realm;
+    private final String clientId;
+
+    private volatile State state = new State();
+    private volatile boolean ready;
+    private volatile boolean stopped;
+    private volatile Connection connection;
+
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong changesApplied = new AtomicLong();
+    private volatile long lastLoadMillis;
+    private long endedGeneration;
+
+    /**
+     * Creates a new, not yet started, replica.
+     *
+     * @param ldapManager    LDAP share store
+     * @param executor       executor dedicated to (re)building the replica
+     * @param retryDelay     delay before rebuilding the replica after a failure, in milliseconds
+     * @param connectTimeout maximum time to wait for the persistent search connection, in milliseconds
+     * @param realm          realm of the shares to serve
+     * @param clientId       OAuth 2.0 client of the shares to serve
+     */
+    ShareReplica(final LDAPManager ldapManager,
+                 final ScheduledExecutorService executor,
+                 final long retryDelay,
+                 final long connectTimeout,
+                 final String realm,
+                 final String clientId) {
+        this.ldapManager = ldapManager;
+        this.executor = executor;
+        this.retryDelay = retryDelay;
+        this.connectTimeout = connectTimeout;
+        this.realm = realm;
+        this.clientId = clientId;
+    }
+
+    /**
+     * Builds the replica in the background.
+     */
+    void start() {
+        schedule(0);
+    }
+
+    /**
+     * Stops the persistent search; the replica is not ready anymore.
+     */
+    void stop() {
+        stopped = true;
+        ready = false;
+        closeConnection();
+    }
+
+    /**
+     * Returns {@code true} once all the shares are loaded and the persistent search is running.
+     *
+     * @return {@code true} if lookups can be served from this replica
+     */
+    boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Finds the shares protecting the given request URI: the shares registered for that exact URI or, failing that,
+     * for the most specific URI template or path prefix matching it.
+     *
+     * @param requestURI request path
+     * @param userId     owner of the share, or {@code null} to match any user
+     * @return the matching shares
+     */
+    List<ShareExt> find(final String requestURI, final String userId) {
+        return state.byUri.match(requestURI, new ShareUriIndex.Selector() {
+            @Override
+            public boolean accept(final ShareExt share) {
+                return matches(share, userId);
+            }
+        });
+    }
+
+    /**
+     * Returns the share with the given identifier, if owned by the given user.
+     *
+     * @param shareId share identifier
+     * @param userId  owner of the share
+     * @return the share, or {@code null}
+     */
+    ShareExt get(final String shareId, final String userId) {
+        ShareExt share = state.byId.get(shareId);
+        return share != null && matches(share, userId) ? share : null;
+    }
+
+    /**
+     * Returns the shares of the given user.
+     *
+     * @param userId owner of the shares
+     * @return the shares of the user
+     */
+    Set<ShareExt> list(final String userId) {
+        Set<ShareExt> shares = new HashSet<>();
+        for (ShareExt share : state.byId.values()) {
+            if (matches(share, userId)) {
+                shares.add(share);
+            }
+        }
+        return shares;
+    }
+
+    /**
+     * Hands the shares of the given user to the listener, without copying them.
+     *
+     * @param userId   owner of the shares
+     * @param listener receives every share of the user
+     */
+    void list(final String userId, final ShareListener listener) {
+        for (ShareExt share : state.byId.values()) {
+            if (matches(share, userId)) {
+                listener.shareAdded(share);
+            }
+        }
+    }
+
+    @Override
+    public void shareAdded(final ShareExt share) {
+        state.add(share, false);
+        changesApplied.incrementAndGet();
+    }
+
+    @Override
+    public void shareRemoved(final String shareId) {
+        state.remove(shareId);
+        changesApplied.incrementAndGet();
+    }
+
+    /**
+     * Returns the replica size, readiness and synchronization counters.
+     *
+     * @return the replica statistics
+     */
+    JsonValue getStatistics() {
+        return json(object(
+                field("ready", ready),
+                field("size", state.byId.size()),
+                field("rebuilds", rebuilds.get()),
+                field("changesApplied", changesApplied.get()),
+                field("lastLoadMillis", lastLoadMillis)));
+    }
+
+    private boolean matches(final ShareExt share, final String userId) {
+        return (userId == null || userId.equals(share.getUserId()))
+                && realm.equals(share.getRealm())
+                && clientId.equals(share.getClientId());
+    }
+
+    private void schedule(final long delay) {
+        if (stopped) {
+            return;
+        }
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                rebuild();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void rebuild() {
+        if (stopped) {
+            return;
+        }
+        ready = false;
+        closeConnection();
+        final long generation = rebuilds.incrementAndGet();
+
+        final State loading = new State();
+        state = loading;
+        Promise<Connection, LdapException> connecting = ldapManager.openConnectionAsync();
+        try {
+            connection = connecting.getOrThrow(connectTimeout, TimeUnit.MILLISECONDS);
+            ldapManager.persistentSearch(connection, this)
+                    .thenOnResult(new ResultHandler<Result>() {
+                        @Override
+                        public void handleResult(final Result result) {
+                            persistentSearchEnded(generation, null);
+                        }
+                    })
+                    .thenOnException(new ExceptionHandler<LdapException>() {
+                        @Override
+                        public void handleException(final LdapException e) {
+                            persistentSearchEnded(generation, e);
+                        }
+                    });
+
+            long start = System.currentTimeMillis();
+            ldapManager.readAllShares(new ShareListener() {
+                @Override
+                public void shareAdded(final ShareExt share) {
+                    // Do not override a more recent version received from the persistent search
+                    loading.add(share, true);
+                }
+
+                @Override
+                public void shareRemoved(final String shareId) {
+                    loading.remove(shareId);
+                }
+            }, PAGE_SIZE);
+            lastLoadMillis = System.currentTimeMillis() - start;
+
+            loading.loaded();
+            synchronized (this) {
+                // The persistent search may have ended while loading, a new rebuild is then already scheduled
+                if (state == loading && !stopped && endedGeneration != generation) {
+                    ready = true;
+                    logger.info("Loaded {} UMA shares in {} ms", loading.byId.size(), lastLoadMillis);
+                }
+            }
+        } catch (LdapException | InterruptedException | TimeoutException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            if (connection == null) {
+                closeWhenAvailable(connecting);
+            }
+            logger.error("Unable to load UMA shares, retrying in {} ms", retryDelay, e);
+            closeConnection();
+            schedule(retryDelay);
+        }
+    }
+
+    private synchronized void persistentSearchEnded(final long generation, final LdapException e) {
+        if (stopped || generation != rebuilds.get()) {
+            // Either stopped on purpose, or the search of a replaced build
+            return;
+        }
+        endedGeneration = generation;
+        logger.warn("UMA shares persistent search ended, rebuilding the replica in {} ms", retryDelay, e);
+        ready = false;
+        schedule(retryDelay);
+    }
+
+    private static void closeWhenAvailable(final Promise<Connection, LdapException> connecting) {
+        connecting.thenOnResult(new ResultHandler<Connection>() {
+            @Override
+            public void handleResult(final Connection opened) {
+                opened.close();
+            }
+        });
+    }
+
+    private void closeConnection() {
+        Connection current = connection;
+        connection = null;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    /**
+     * Shares indexed by identifier and by request URI (or URI pattern). Removals applied while the initial load is running are
+     * remembered so that the load does not bring removed shares back.
+     */
+    private static final class State {
+        private final Map<String, ShareExt> byId = new ConcurrentHashMap<>();
+        private final ShareUriIndex byUri = new ShareUriIndex();
+        private Set<String> removedWhileLoading = new HashSet<>();
+
+        synchronized void add(final ShareExt share, final boolean fromLoad) {
+            if (fromLoad && (byId.containsKey(share.getId())
+                    || (removedWhileLoading != null && removedWhileLoading.contains(share.getId())))) {
+                return;
+            }
+            ShareExt previous = byId.put(share.getId(), share);
+            if (previous != null) {
+                byUri.remove(previous);
+            }
+            byUri.add(share);
+        }
+
+        synchronized void remove(final String shareId) {
+            if (removedWhileLoading != null) {
+                removedWhileLoading.add(shareId);
+            }
+            ShareExt previous = byId.remove(shareId);
+            if (previous != null) {
+                byUri.remove(previous);
+            }
+        }
+
+        synchronized void loaded() {
+            removedWhileLoading = null;
+        }
+    }
+}
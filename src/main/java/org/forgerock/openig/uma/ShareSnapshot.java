@@ -0,0 +1,404 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.json.JsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+/**
+ * Snapshot of the shares and PATs of an UMA service in a local file, so that a restarted gateway serves share lookups
+ * before reading anything from the directory.
+ * <p>
+ * The snapshot is periodically rewritten from the replica, or from the share store, with the shares of the service
+ * realm and client encoded with {@link ShareCodec}: a header (magic number, version, write time and counts), the
+ * shares, the PATs and a CRC-32 of the whole. It is written to a temporary file, forced to the disk, then atomically
+ * moved over the previous one, so that a crash never leaves a partial snapshot behind. As it holds the PATs and refresh
+ * tokens in clear, the file is only readable and writable by its owner where POSIX permissions are supported.
+ * <p>
+ * At startup, the snapshot is memory-mapped and decoded into an index matching exact URIs, templates and prefixes like
+ * the replica. Lookups matching a share of the snapshot are served from it until the service has caught up with the
+ * directory: once the replica is ready or, without replica, once the next snapshot has been read from the directory.
+ * Lookups matching no share, or more than one, fall back to the directory, as shares may have been created or removed
+ * after the snapshot.
+ */
+class ShareSnapshot implements ShareListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShareSnapshot.class);
+
+    private static final int MAGIC = 0x554d4153;
+    private static final int VERSION = 1;
+
+    /** Magic number, version, write time, share count and PAT count. */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+
+    private final Path file;
+    private final String realm;
+    private final String clientId;
+    private final long startedAt;
+
+    private volatile Index index;
+
+    private final AtomicLong readsAvoided = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong writeFailures = new AtomicLong();
+    private volatile long writtenAt;
+    private volatile int loadedShares;
+    private volatile int loadedPats;
+    private volatile long loadMillis;
+    private volatile long readyMillis = -1;
+    private volatile long catchUpMillis = -1;
+    private volatile long lastWriteMillis;
+    private volatile int lastWriteShares;
+
+    /**
+     * Creates a snapshot, not loaded yet.
+     *
+     * @param file      snapshot file
+     * @param realm     realm of the shares to serve
+     * @param clientId  OAuth 2.0 client of the shares to serve
+     * @param startedAt when the service started, in milliseconds since the epoch
+     */
+    ShareSnapshot(final Path file, final String realm, final String clientId, final long startedAt) {
+        this.file = file;
+        this.realm = realm;
+        this.clientId = clientId;
+        this.startedAt = startedAt;
+    }
+
+    /**
+     * Maps and decodes the snapshot file, if any: lookups are then served from it until {@link #caughtUp()}. A
+     * missing, corrupted or too old snapshot is ignored, the service then starts cold.
+     *
+     * @param maxAge age above which the snapshot is ignored, in milliseconds
+     * @return the PATs of the snapshot, to be preloaded in the {@link PatStore}
+     */
+    List<SharedPat> load(final long maxAge) {
+        if (!Files.exists(file)) {
+            logger.info("No UMA share snapshot found at {}, starting cold", file);
+            return Collections.emptyList();
+        }
+        long start = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + 4 || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid snapshot size, " + size + " bytes");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (checksum(buffer, (int) size - 4) != buffer.getInt((int) size - 4)) {
+                throw new IOException("Checksum mismatch");
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unsupported snapshot format");
+            }
+            long snapshotWrittenAt = buffer.getLong();
+            long age = start - snapshotWrittenAt;
+            if (age > maxAge) {
+                logger.info("Ignoring the UMA share snapshot {} written {} ms ago, starting cold", file, age);
+                return Collections.emptyList();
+            }
+            int shareCount = buffer.getInt();
+            int patCount = buffer.getInt();
+            Index loading = new Index();
+            for (int i = 0; i < shareCount; i++) {
+                ShareExt share = ShareCodec.readShare(buffer);
+                if (realm.equals(share.getRealm()) && clientId.equals(share.getClientId())) {
+                    loading.add(share);
+                }
+            }
+            List<SharedPat> pats = new ArrayList<>(patCount);
+            for (int i = 0; i < patCount; i++) {
+                SharedPat pat = ShareCodec.readPat(buffer);
+                if (realm.equals(pat.getRealm()) && clientId.equals(pat.getClientId())) {
+                    pats.add(pat);
+                }
+            }
+            index = loading;
+            writtenAt = snapshotWrittenAt;
+            loadedShares = loading.byId.size();
+            loadedPats = pats.size();
+            loadMillis = System.currentTimeMillis() - start;
+            logger.info("Loaded {} UMA shares and {} PATs from the snapshot {} written {} ms ago, in {} ms",
+                    loadedShares, loadedPats, file, age, loadMillis);
+            return pats;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read the UMA share snapshot {}, starting cold", file, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Records that the service is ready to serve requests.
+     */
+    void ready() {
+        readyMillis = System.currentTimeMillis() - startedAt;
+        logger.info("UMA service ready in {} ms, {} shares served from the snapshot", readyMillis,
+                index != null ? loadedShares : 0);
+    }
+
+    /**
+     * Returns the time the loaded snapshot was written.
+     *
+     * @return the write time of the loaded snapshot in milliseconds since the epoch, {@code 0} if none was loaded
+     */
+    long getWrittenAt() {
+        return writtenAt;
+    }
+
+    /**
+     * Returns {@code true} while lookups are served from the loaded snapshot.
+     *
+     * @return {@code true} until the service has caught up with the directory
+     */
+    boolean isServing() {
+        return index != null;
+    }
+
+    /**
+     * Finds the shares of the snapshot protecting the given request URI, like {@link ShareReplica#find}.
+     *
+     * @param requestURI request path
+     * @param userId     owner of the share, or {@code null} to match any user
+     * @return the matching shares, empty if none matches or once caught up with the directory; only the lookups
+     * matching a single share are counted as directory reads avoided
+     */
+    List<ShareExt> find(final String requestURI, final String userId) {
+        Index current = index;
+        if (current == null) {
+            return Collections.emptyList();
+        }
+        List<ShareExt> shares = current.byUri.match(requestURI, new ShareUriIndex.Selector() {
+            @Override
+            public boolean accept(final ShareExt share) {
+                return userId == null || userId.equals(share.getUserId());
+            }
+        });
+        if (shares.size() == 1) {
+            readsAvoided.incrementAndGet();
+        }
+        return shares;
+    }
+
+    /**
+     * Stops serving lookups from the snapshot, the replica being ready.
+     */
+    void caughtUp() {
+        if (index != null) {
+            index = null;
+            catchUpMillis = System.currentTimeMillis() - startedAt;
+            logger.info("UMA shares caught up with the directory {} ms after startup", catchUpMillis);
+        }
+    }
+
+    /**
+     * Stops serving lookups from the snapshot, given the shares just read from the directory.
+     *
+     * @param current shares read from the directory
+     * @return the shares served from the snapshot that have since been removed or modified, whose cached lookups are
+     * to be invalidated
+     */
+    List<ShareExt> caughtUp(final Collection<ShareExt> current) {
+        Index served = index;
+        if (served == null) {
+            return Collections.emptyList();
+        }
+        caughtUp();
+        Map<String, ShareExt> byId = new HashMap<>();
+        for (ShareExt share : current) {
+            byId.put(share.getId(), share);
+        }
+        List<ShareExt> stale = new ArrayList<>();
+        for (ShareExt share : served.byId.values()) {
+            if (!same(share, byId.get(share.getId()))) {
+                stale.add(share);
+            }
+        }
+        return stale;
+    }
+
+    @Override
+    public void shareAdded(final ShareExt share) {
+        Index current = index;
+        if (current != null) {
+            current.add(share);
+        }
+    }
+
+    @Override
+    public void shareRemoved(final String shareId) {
+        Index current = index;
+        if (current != null) {
+            current.remove(shareId);
+        }
+    }
+
+    /**
+     * Replaces the snapshot file with the given shares and PATs.
+     *
+     * @param shares shares of the service realm and client
+     * @param pats   PATs of the service realm and client
+     * @throws IOException if the snapshot cannot be written
+     */
+    synchronized void write(final Collection<ShareExt> shares, final Collection<SharedPat> pats) throws IOException {
+        long start = System.currentTimeMillis();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            // Holds PATs and refresh tokens in clear: only a new file gets the owner only permissions
+            Files.deleteIfExists(temporary);
+            try (FileChannel channel = FileChannel.open(temporary,
+                    EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+                    FileShareStore.ownerOnly(temporary))) {
+                BufferedOutputStream buffered =
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+                CRC32 crc = new CRC32();
+                DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(start);
+                out.writeInt(shares.size());
+                out.writeInt(pats.size());
+                for (ShareExt share : shares) {
+                    ShareCodec.writeShare(out, share);
+                }
+                for (SharedPat pat : pats) {
+                    ShareCodec.writePat(out, pat);
+                }
+                out.flush();
+                new DataOutputStream(buffered).writeInt((int) crc.getValue());
+                buffered.flush();
+                channel.force(true);
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            writeFailures.incrementAndGet();
+            throw e;
+        }
+        writes.incrementAndGet();
+        lastWriteShares = shares.size();
+        lastWriteMillis = System.currentTimeMillis() - start;
+        logger.debug("Wrote {} UMA shares and {} PATs to the snapshot {} in {} ms",
+                shares.size(), pats.size(), file, lastWriteMillis);
+    }
+
+    /**
+     * Returns the startup timings, the share lookups served from the snapshot and the write counters.
+     *
+     * @return the snapshot statistics
+     */
+    JsonValue getStatistics() {
+        return json(object(
+                field("file", file.toString()),
+                field("serving", index != null),
+                field("writtenAt", writtenAt),
+                field("shares", loadedShares),
+                field("pats", loadedPats),
+                field("loadMillis", loadMillis),
+                field("readyMillis", readyMillis),
+                field("catchUpMillis", catchUpMillis),
+                field("ldapReadsAvoided", readsAvoided.get()),
+                field("writes", writes.get()),
+                field("writeFailures", writeFailures.get()),
+                field("lastWriteMillis", lastWriteMillis),
+                field("lastWriteShares", lastWriteShares)));
+    }
+
+    /**
+     * CRC-32 of the first bytes of the mapped file, read without moving the buffer position.
+     */
+    private static int checksum(final ByteBuffer buffer, final int length) {
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.limit(length);
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[64 * 1024];
+        while (bytes.hasRemaining()) {
+            int read = Math.min(chunk.length, bytes.remaining());
+            bytes.get(chunk, 0, read);
+            crc.update(chunk, 0, read);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns {@code true} if a lookup resolved to the given snapshot share would resolve the same way to the given
+     * directory share.
+     */
+    private static boolean same(final ShareExt served, final ShareExt current) {
+        return current != null
+                && Objects.equals(served.getRequestURI(), current.getRequestURI())
+                && Objects.equals(served.getUserId(), current.getUserId())
+                && Objects.equals(served.getResourceSetId(), current.getResourceSetId())
+                && Objects.equals(served.getPolicyURI(), current.getPolicyURI())
+                && Objects.equals(served.getPatId(), current.getPatId());
+    }
+
+    /**
+     * Shares of the snapshot indexed by identifier and by request URI (or URI pattern).
+     */
+    private static final class Index {
+        private final Map<String, ShareExt> byId = new ConcurrentHashMap<>();
+        private final ShareUriIndex byUri = new ShareUriIndex();
+
+        synchronized void add(final ShareExt share) {
+            ShareExt previous = byId.put(share.getId(), share);
+            if (previous != null) {
+                byUri.remove(previous);
+            }
+            byUri.add(share);
+        }
+
+        synchronized void remove(final String shareId) {
+            ShareExt previous = byId.remove(shareId);
+            if (previous != null) {
+                byUri.remove(previous);
+            }
+        }
+    }
+}
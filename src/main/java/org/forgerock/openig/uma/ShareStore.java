@@ -0,0 +1,199 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.opendj.ldap.ByteString;
+import org.forgerock.opendj.ldap.Filter;
+import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.opendj.ldap.ResultCode;
+import org.forgerock.opendj.ldap.SortKey;
+import org.forgerock.util.promise.Promise;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Storage engine of the shares and of the PATs they use, selected with the {@code shareStore} setting of
+ * {@link UmaSharingServiceExt}: {@link LDAPManager} (the default), {@link MemoryShareStore} or
+ * {@link FileShareStore}.
+ * <p>
+ * Shares are matched on the non-{@code null} values of a {@link ShareExt}, and queried with LDAP filters and sort keys
+ * over the share attributes (see {@link ShareQueryFilterVisitor}), whatever the engine. Failures are reported as
+ * {@link LdapException}s with the result code the directory would return, for instance
+ * {@link ResultCode#NO_SUCH_OBJECT} when removing an unknown share, so that callers handle every engine alike.
+ */
+interface ShareStore {
+
+    /**
+     * Adds the given share, without blocking the calling thread.
+     *
+     * @param share share to add, with its identifier set
+     * @return a promise completed with the added share, or failed with {@link ResultCode#ENTRY_ALREADY_EXISTS} if
+     * a share with the same identifier exists
+     */
+    Promise<ShareExt, LdapException> addShareAsync(ShareExt share);
+
+    /**
+     * Gets the shares matching the given share, returning at most {@code sizeLimit} of them.
+     *
+     * @param matchingShareExt share holding the values to match
+     * @param sizeLimit        maximum number of shares to return, {@code 0} for no limit
+     * @param attributes       attributes to return, engines holding whole shares may return all of them
+     * @return the matching shares
+     * @throws LdapException if the store cannot be read
+     */
+    Set<ShareExt> getShare(ShareExt matchingShareExt, int sizeLimit, String... attributes) throws LdapException;
+
+    /**
+     * Gets the shares matching the given share, without blocking the calling thread.
+     *
+     * @param matchingShareExt share holding the values to match
+     * @param sizeLimit        maximum number of shares to return, {@code 0} for no limit
+     * @param timeoutMillis    time allowed to the search, in milliseconds, {@link Long#MAX_VALUE} for no limit: a
+     *                         search still running after it is abandoned
+     * @param attributes       attributes to return, engines holding whole shares may return all of them
+     * @return a promise completed with the matching shares
+     */
+    Promise<Set<ShareExt>, LdapException> getShareAsync(ShareExt matchingShareExt,
+                                                        int sizeLimit,
+                                                        long timeoutMillis,
+                                                        String... attributes);
+
+    /**
+     * Checks whether a share with the same name or the same URI already exists for the user, realm and OAuth 2.0
+     * client of the given share.
+     *
+     * @param candidate share holding the name, URI, user, realm and client to match
+     * @return a promise completed with {@code true} if a similar share exists
+     */
+    Promise<Boolean, LdapException> isSharedAsync(ShareExt candidate);
+
+    /**
+     * Streams the shares matching the given share and query filter to the listener, sorted and one page at a time
+     * if requested.
+     *
+     * @param matchingShareExt share holding the values to match
+     * @param queryFilter      additional filter, {@code null} for none
+     * @param sortKeys         keys to sort shares on, empty for unsorted results
+     * @param pageSize         number of shares per page, {@code 0} to return all the matching shares at once
+     * @param cookie           cookie returned with the previous page, {@code null} for the first page
+     * @param listener         receives every share found
+     * @return a promise completed with the cookie of the next page and the estimated number of matching shares
+     */
+    Promise<SharePage, LdapException> streamSharesAsync(ShareExt matchingShareExt,
+                                                        Filter queryFilter,
+                                                        List<SortKey> sortKeys,
+                                                        int pageSize,
+                                                        ByteString cookie,
+                                                        ShareListener listener);
+
+    /**
+     * Removes the given share.
+     *
+     * @param share share to remove, with its identifier, realm and user set
+     * @throws LdapException if the share cannot be removed
+     */
+    void removeShare(ShareExt share) throws LdapException;
+
+    /**
+     * Removes the given share, without blocking the calling thread.
+     *
+     * @param share share to remove, with its identifier, realm and user set
+     * @return a promise completed once the share has been removed
+     */
+    Promise<Void, LdapException> removeShareAsync(ShareExt share);
+
+    /**
+     * Reads all the shares, one page at a time, and hands them to the given listener.
+     *
+     * @param listener receives every share read
+     * @param pageSize number of shares read at once
+     * @throws LdapException if the store cannot be read
+     */
+    void readAllShares(ShareListener listener, int pageSize) throws LdapException;
+
+    /**
+     * Reads the shares registered against a URI template or a path prefix, see {@link ShareUriIndex}.
+     *
+     * @param listener receives every share read
+     * @param pageSize number of shares read at once
+     * @throws LdapException if the store cannot be read
+     */
+    void readPatternShares(ShareListener listener, int pageSize) throws LdapException;
+
+    /**
+     * Reads the URI of every share: the shares handed to the listener may only have their request URI set.
+     *
+     * @param listener receives every share read
+     * @param pageSize number of shares read at once
+     * @throws LdapException if the store cannot be read
+     */
+    void readShareUris(ShareListener listener, int pageSize) throws LdapException;
+
+    /**
+     * Reads the PAT with the given identifier, without blocking the calling thread.
+     *
+     * @param patId PAT identifier, see {@link SharedPat#id(String, String, String)}
+     * @return a promise completed with the PAT, or {@code null} if there is no such PAT
+     */
+    Promise<SharedPat, LdapException> readPatAsync(String patId);
+
+    /**
+     * Stores the given PAT, without blocking the calling thread: it is created, or its token, refresh token and
+     * expiration time replaced if it already exists.
+     *
+     * @param pat PAT to store
+     * @return a promise completed with the stored PAT
+     */
+    Promise<SharedPat, LdapException> storePatAsync(SharedPat pat);
+
+    /**
+     * Replaces the token of the given PAT, along with its refresh token and expiration time, without blocking the
+     * calling thread. The token is only replaced if it is still the one of the given PAT.
+     *
+     * @param pat     PAT holding the token to replace
+     * @param rotated PAT holding the new token, refresh token and expiration time
+     * @return a promise completed once the PAT has been modified, or failed with
+     * {@link ResultCode#NO_SUCH_ATTRIBUTE} if the token has been replaced meanwhile
+     */
+    Promise<Void, LdapException> updatePatAsync(SharedPat pat, SharedPat rotated);
+
+    /**
+     * Reads the PATs holding a refresh token and expiring at or before the given time.
+     *
+     * @param expiresBefore expiration time, in milliseconds since the epoch
+     * @param pageSize      number of PATs read at once
+     * @return the expiring PATs
+     * @throws LdapException if the store cannot be read
+     */
+    List<SharedPat> readExpiringPats(long expiresBefore, int pageSize) throws LdapException;
+
+    /**
+     * Returns the engine specific usage statistics, reported by the monitoring endpoint.
+     *
+     * @return the store statistics
+     */
+    JsonValue getStatistics();
+
+    /**
+     * Releases the resources held by this store.
+     */
+    void close();
+}
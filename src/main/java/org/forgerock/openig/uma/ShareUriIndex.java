@@ -0,0 +1,277 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of shares by request URI, supporting exact URIs ({@literal /history/emp1}), URI templates where a
+ * {@literal {name}} segment matches any single path segment ({@literal /history/{accountId}}) and path prefixes where
+ * a trailing {@literal *} segment matches any remaining, non empty, path ({@literal /history/*} matches
+ * {@literal /history/emp1} and {@literal /history/emp1/2017}, but not {@literal /history}). Only whole segments are
+ * templates or prefixes: {@literal /history/emp{id}} and {@literal /history/emp*} are exact URIs.
+ * <p>
+ * Share URIs are compiled into a trie keyed on path segments, so that matching a request path costs O(path length)
+ * whatever the number of shares. When several shares match, the most specific one wins: at each segment a literal
+ * match is preferred over a template match, and any exact or template match is preferred over a prefix match, the
+ * longest prefix being the most specific.
+ * <p>
+ * Lookups are lock-free and can run concurrently with updates.
+ */
+class ShareUriIndex {
+
+    /**
+     * Selects the shares a lookup is interested in, such as the shares of a given user.
+     */
+    interface Selector {
+
+        /**
+         * Returns {@code true} if the given share can be returned by the lookup.
+         *
+         * @param share candidate share
+         * @return {@code true} to accept the share
+         */
+        boolean accept(ShareExt share);
+    }
+
+    private static final String PREFIX = "*";
+
+    private final Node root = new Node();
+
+    /**
+     * Returns {@code true} if the given share URI is a template or a prefix, rather than an exact URI, as indexed by
+     * {@link #add(ShareExt)}.
+     *
+     * @param uri share URI
+     * @return {@code true} if the URI is a template or a prefix
+     */
+    static boolean isPattern(final String uri) {
+        // Cheap pre-check, as most URIs are exact
+        if (uri == null || (uri.indexOf('{') < 0 && uri.indexOf('*') < 0)) {
+            return false;
+        }
+        for (String segment : segments(uri)) {
+            if (PREFIX.equals(segment) || isTemplate(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indexes the given share under its request URI.
+     *
+     * @param share share to index
+     */
+    synchronized void add(final ShareExt share) {
+        Node node = root;
+        for (String segment : segments(share.getRequestURI())) {
+            if (PREFIX.equals(segment)) {
+                node.prefixShares.add(share);
+                return;
+            }
+            node = isTemplate(segment) ? node.templateChild() : node.literalChild(segment);
+        }
+        node.shares.add(share);
+    }
+
+    /**
+     * Removes the given share from the index.
+     *
+     * @param share share to remove, the share indexed under its URI with the same identifier is removed
+     */
+    synchronized void remove(final ShareExt share) {
+        List<Node> path = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        Node node = root;
+        for (String segment : segments(share.getRequestURI())) {
+            if (PREFIX.equals(segment)) {
+                removeById(node.prefixShares, share.getId());
+                prune(path, keys, node);
+                return;
+            }
+            Node child = isTemplate(segment) ? node.template : node.literals.get(segment);
+            if (child == null) {
+                return;
+            }
+            path.add(node);
+            keys.add(isTemplate(segment) ? null : segment);
+            node = child;
+        }
+        removeById(node.shares, share.getId());
+        prune(path, keys, node);
+    }
+
+    /**
+     * Returns the accepted shares of the most specific URI matching the given request path.
+     *
+     * @param path     request path
+     * @param selector selects the shares the caller is interested in
+     * @return the shares of the most specific match, empty if nothing matches
+     */
+    List<ShareExt> match(final String path, final Selector selector) {
+        List<String> segments = segments(path);
+        Match best = new Match();
+        match(root, segments, 0, selector, best);
+        return best.shares != null ? best.shares : Collections.<ShareExt>emptyList();
+    }
+
+    /**
+     * Returns {@code true} if no share is indexed, and no node is left behind by the removals.
+     *
+     * @return {@code true} if the index is empty
+     */
+    boolean isEmpty() {
+        return root.isEmpty();
+    }
+
+    /**
+     * Depth-first search, literal children first, so the first full match found is the most specific one.
+     *
+     * @return {@code true} once a full (exact or template) match has been found
+     */
+    private static boolean match(final Node node,
+                                 final List<String> segments,
+                                 final int index,
+                                 final Selector selector,
+                                 final Match best) {
+        // A prefix registered at this depth is more specific than any shorter prefix found before; it needs at least
+        // one remaining segment to match
+        if (index > best.prefixDepth && index < segments.size()) {
+            List<ShareExt> prefixShares = accepted(node.prefixShares, selector);
+            if (!prefixShares.isEmpty()) {
+                best.prefixDepth = index;
+                best.shares = prefixShares;
+            }
+        }
+        if (index == segments.size()) {
+            List<ShareExt> shares = accepted(node.shares, selector);
+            if (!shares.isEmpty()) {
+                best.shares = shares;
+                return true;
+            }
+            return false;
+        }
+        Node literal = node.literals.get(segments.get(index));
+        if (literal != null && match(literal, segments, index + 1, selector, best)) {
+            return true;
+        }
+        Node template = node.template;
+        return template != null && match(template, segments, index + 1, selector, best);
+    }
+
+    private static List<ShareExt> accepted(final Set<ShareExt> shares, final Selector selector) {
+        if (shares.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ShareExt> accepted = new ArrayList<>(1);
+        for (ShareExt share : shares) {
+            if (selector.accept(share)) {
+                accepted.add(share);
+            }
+        }
+        return accepted;
+    }
+
+    private static void removeById(final Set<ShareExt> shares, final String id) {
+        for (ShareExt share : shares) {
+            if (share.getId().equals(id)) {
+                shares.remove(share);
+            }
+        }
+    }
+
+    /**
+     * Removes the nodes left empty after a removal, starting from the deepest one.
+     */
+    private static void prune(final List<Node> path, final List<String> keys, final Node last) {
+        Node node = last;
+        for (int i = path.size() - 1; i >= 0 && node.isEmpty(); i--) {
+            Node parent = path.get(i);
+            if (keys.get(i) == null) {
+                parent.template = null;
+            } else {
+                parent.literals.remove(keys.get(i));
+            }
+            node = parent;
+        }
+    }
+
+    private static boolean isTemplate(final String segment) {
+        return segment.length() > 1 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}';
+    }
+
+    private static List<String> segments(final String path) {
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        int length = path.length();
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                segments.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return segments;
+    }
+
+    private static final class Match {
+        private int prefixDepth = -1;
+        private List<ShareExt> shares;
+    }
+
+    private static final class Node {
+        private final Map<String, Node> literals = new ConcurrentHashMap<>();
+        private volatile Node template;
+        private final Set<ShareExt> shares = newConcurrentSet();
+        private final Set<ShareExt> prefixShares = newConcurrentSet();
+
+        Node literalChild(final String segment) {
+            Node child = literals.get(segment);
+            if (child == null) {
+                child = new Node();
+                literals.put(segment, child);
+            }
+            return child;
+        }
+
+        Node templateChild() {
+            if (template == null) {
+                template = new Node();
+            }
+            return template;
+        }
+
+        boolean isEmpty() {
+            return literals.isEmpty() && template == null && shares.isEmpty() && prefixShares.isEmpty();
+        }
+
+        private static Set<ShareExt> newConcurrentSet() {
+            return Collections.newSetFromMap(new ConcurrentHashMap<ShareExt, Boolean>());
+        }
+    }
+}
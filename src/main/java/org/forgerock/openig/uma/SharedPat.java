@@ -0,0 +1,150 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * PAT of a user for a realm and OAuth 2.0 client, stored once in its own LDAP entry and referenced by all the shares
+ * of that user.
+ * <p>
+ * The token, refresh token and expiration time are updated in place when the PAT is rotated: every share holding
+ * this instance then uses the new PAT.
+ */
+class SharedPat {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String id;
+    private final String userId;
+    private final String realm;
+    private final String clientId;
+    private volatile String token;
+    private volatile String refreshToken;
+    private volatile long expiresAt;
+    private volatile long loadedAt;
+
+    /**
+     * Creates a PAT.
+     *
+     * @param userId       owner of the PAT
+     * @param realm        realm of the owner
+     * @param clientId     OAuth 2.0 client the PAT has been issued to
+     * @param token        the PAT
+     * @param refreshToken refresh token of the PAT, {@code null} if unknown
+     * @param expiresAt    expiration time of the PAT, in milliseconds since the epoch, {@code 0} if unknown
+     */
+    SharedPat(final String userId,
+              final String realm,
+              final String clientId,
+              final String token,
+              final String refreshToken,
+              final long expiresAt) {
+        this.id = id(userId, realm, clientId);
+        this.userId = userId;
+        this.realm = realm;
+        this.clientId = clientId;
+        this.token = token;
+        this.refreshToken = refreshToken;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Returns the identifier of the PAT of the given user, realm and client: the hex encoded SHA-256 hash of the
+     * three values, so that every OpenIG instance stores the PAT of a user in the same entry.
+     *
+     * @param userId   owner of the PAT
+     * @param realm    realm of the owner
+     * @param clientId OAuth 2.0 client the PAT has been issued to
+     * @return the PAT identifier
+     */
+    static String id(final String userId, final String realm, final String clientId) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((userId + '\u0000' + realm + '\u0000' + clientId)
+                    .getBytes(StandardCharsets.UTF_8));
+            char[] chars = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                chars[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+                chars[2 * i + 1] = HEX[hash[i] & 0xf];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getUserId() {
+        return userId;
+    }
+
+    String getRealm() {
+        return realm;
+    }
+
+    String getClientId() {
+        return clientId;
+    }
+
+    String getToken() {
+        return token;
+    }
+
+    String getRefreshToken() {
+        return refreshToken;
+    }
+
+    /**
+     * Returns the expiration time of the PAT.
+     *
+     * @return the expiration time of the PAT, in milliseconds since the epoch, {@code 0} if unknown
+     */
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Returns when this PAT has last been read from, or written to, LDAP.
+     *
+     * @return the last load time, in milliseconds since the epoch
+     */
+    long getLoadedAt() {
+        return loadedAt;
+    }
+
+    /**
+     * Replaces the token, refresh token and expiration time with the ones of the given, more recent, copy.
+     *
+     * @param pat      copy of this PAT, read from or written to LDAP
+     * @param loadedAt when the copy has been read or written, in milliseconds since the epoch
+     */
+    synchronized void update(final SharedPat pat, final long loadedAt) {
+        this.token = pat.token;
+        this.refreshToken = pat.refreshToken;
+        this.expiresAt = pat.expiresAt;
+        this.loadedAt = loadedAt;
+    }
+}
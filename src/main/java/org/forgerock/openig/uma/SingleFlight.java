@@ -0,0 +1,150 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+/**
+ * Coalesces concurrent calls for the same key: while a call is in flight, callers asking for the same key get the
+ * promise of that call instead of starting a new one. Once the call completes, the next caller starts a new one.
+ * <p>
+ * The shared result is handed to every caller, so it must be immutable: HTTP responses, whose entity can only be read
+ * once, have to be converted before being shared. Each caller gets its own promise of the shared call: cancelling it
+ * does not affect the other callers.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the results
+ * @param <E> type of the failures
+ */
+class SingleFlight<K, V, E extends Exception> {
+
+    private final ConcurrentMap<K, Promise<V, E>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Returns the promise of the call in flight for the given key, or starts a new call.
+     *
+     * @param key  key identifying identical calls
+     * @param call starts the call for the key
+     * @return a promise of the call, owned by the caller
+     */
+    @SuppressWarnings("unchecked")
+    Promise<V, E> execute(final K key, final AsyncFunction<K, V, E> call) {
+        Promise<V, E> existing = inFlight.get(key);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return follow(existing);
+        }
+        final PromiseImpl<V, E> promise = PromiseImpl.create();
+        existing = inFlight.putIfAbsent(key, promise);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return follow(existing);
+        }
+
+        calls.incrementAndGet();
+        try {
+            call.apply(key)
+                    .thenOnResult(new ResultHandler<V>() {
+                        @Override
+                        public void handleResult(final V result) {
+                            // Forget the call first, so that late callers do not get a completed result
+                            inFlight.remove(key, promise);
+                            promise.handleResult(result);
+                        }
+                    })
+                    .thenOnException(new ExceptionHandler<E>() {
+                        @Override
+                        public void handleException(final E exception) {
+                            inFlight.remove(key, promise);
+                            promise.handleException(exception);
+                        }
+                    })
+                    .thenOnRuntimeException(new RuntimeExceptionHandler() {
+                        @Override
+                        public void handleRuntimeException(final RuntimeException exception) {
+                            // Failed, or cancelled, without completing: the key must not stay in flight forever
+                            inFlight.remove(key, promise);
+                            promise.handleRuntimeException(exception);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, promise);
+            // Callers may have joined meanwhile
+            promise.handleRuntimeException(e);
+            throw e;
+        } catch (Exception e) {
+            // Only E can be thrown by the call
+            inFlight.remove(key, promise);
+            promise.handleException((E) e);
+        }
+        return follow(promise);
+    }
+
+    /**
+     * Returns a promise completed with the outcome of the shared one, which is never handed out.
+     */
+    private static <V, E extends Exception> Promise<V, E> follow(final Promise<V, E> shared) {
+        final PromiseImpl<V, E> own = PromiseImpl.create();
+        shared.thenOnResult(new ResultHandler<V>() {
+            @Override
+            public void handleResult(final V result) {
+                own.tryHandleResult(result);
+            }
+        }).thenOnException(new ExceptionHandler<E>() {
+            @Override
+            public void handleException(final E exception) {
+                own.tryHandleException(exception);
+            }
+        }).thenOnRuntimeException(new RuntimeExceptionHandler() {
+            @Override
+            public void handleRuntimeException(final RuntimeException exception) {
+                own.handleRuntimeException(exception);
+            }
+        });
+        return own;
+    }
+
+    /**
+     * Returns the number of calls started and coalesced.
+     *
+     * @return the coalescing statistics
+     */
+    JsonValue getStatistics() {
+        return json(object(
+                field("calls", calls.get()),
+                field("coalesced", coalesced.get()),
+                field("inFlight", inFlight.size())));
+    }
+}
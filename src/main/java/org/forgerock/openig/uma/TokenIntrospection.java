@@ -0,0 +1,142 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.json.JsonValue;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of a token introspection: whether the token is active, its subject, when it expires and, for RPTs,
+ * the scopes it grants on each resource set. Instances are immutable so that they can be cached and shared between requests;
+ * only the scope masks are computed lazily.
+ */
+final class TokenIntrospection {
+
+    /** An inactive (unknown, expired or revoked) token. */
+    static final TokenIntrospection INACTIVE =
+            new TokenIntrospection(false, null, 0L, Collections.<String, Set<String>>emptyMap());
+
+    private final boolean active;
+    private final String subject;
+    private final long expiresAt;
+    private final Map<String, Set<String>> permissions;
+    private final Map<String, BitSet> scopeMasks = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an introspection result.
+     *
+     * @param active      {@code true} if the token is active
+     * @param subject     subject (resource owner) of the token, may be {@code null}
+     * @param expiresAt   expiration time of the token, in milliseconds since the epoch, {@code 0} if unknown
+     * @param permissions scopes granted by the token, per resource set identifier
+     */
+    TokenIntrospection(final boolean active,
+                       final String subject,
+                       final long expiresAt,
+                       final Map<String, Set<String>> permissions) {
+        this.active = active;
+        this.subject = subject;
+        this.expiresAt = expiresAt;
+        this.permissions = permissions;
+    }
+
+    /**
+     * Reads the response of the introspection endpoint.
+     *
+     * @param value introspection response
+     * @return the introspection result
+     */
+    static TokenIntrospection fromJson(final JsonValue value) {
+        if (!value.get("active").defaultTo(false).asBoolean()) {
+            return INACTIVE;
+        }
+        long expiresAt = value.isDefined("exp") ? TimeUnit.SECONDS.toMillis(value.get("exp").asLong()) : 0L;
+        Map<String, Set<String>> permissions = new HashMap<>();
+        for (JsonValue permission : value.get("permissions")) {
+            String resourceSetId = permission.get("resource_set_id").asString();
+            if (resourceSetId != null) {
+                permissions.put(resourceSetId, new HashSet<>(permission.get("scopes").asList(String.class)));
+            }
+        }
+        return new TokenIntrospection(true, value.get("sub").asString(), expiresAt, permissions);
+    }
+
+    /**
+     * Returns {@code true} if the token is active.
+     *
+     * @return {@code true} if the token is active
+     */
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Returns the subject of the token, the resource owner for a PAT.
+     *
+     * @return the subject of the token, or {@code null}
+     */
+    String getSubject() {
+        return subject;
+    }
+
+    /**
+     * Returns the expiration time of the token.
+     *
+     * @return the expiration time of the token, in milliseconds since the epoch, {@code 0} if unknown
+     */
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Returns the scopes granted by the token on the given resource set.
+     *
+     * @param resourceSetId resource set identifier
+     * @return the granted scopes, empty if none
+     */
+    Set<String> getScopes(final String resourceSetId) {
+        Set<String> scopes = permissions.get(resourceSetId);
+        return scopes != null ? scopes : Collections.<String>emptySet();
+    }
+
+    /**
+     * Returns the mask of the scopes granted by the token on the given resource set, computed once per resource set.
+     *
+     * @param resourceSetId resource set identifier
+     * @param registry      registry of the scopes of the realm the token was issued for
+     * @return the granted scopes mask, not to be modified
+     */
+    BitSet getScopeMask(final String resourceSetId, final ScopeRegistry registry) {
+        BitSet mask = scopeMasks.get(resourceSetId);
+        if (mask == null) {
+            // Granted scopes are interned too, indexes being stable the mask never needs to be recomputed
+            mask = registry.mask(getScopes(resourceSetId));
+            scopeMasks.put(resourceSetId, mask);
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.encode.Base64;
+import org.forgerock.util.time.TimeService;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Caches RPT introspection results, keyed by the SHA-256 hash of the token so that tokens are never kept in memory.
+ * <p>
+ * Results of active tokens are kept until the token expires, at most for the configured maximum time-to-live.
+ * Results of inactive tokens are kept for the configured negative time-to-live, so that replayed invalid tokens do not
+ * reach the authorization server on every request.
+ */
+class TokenIntrospectionCache {
+
+    private final BoundedCache<String, TokenIntrospection> cache;
+    private final long maxTtl;
+    private final long negativeTtl;
+    private final TimeService time;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maximumSize maximum number of cached results
+     * @param maxTtl      maximum time-to-live of the results of active tokens, in milliseconds
+     * @param negativeTtl time-to-live of the results of inactive tokens, in milliseconds ({@code 0} to not cache them)
+     * @param time        time source
+     */
+    TokenIntrospectionCache(final int maximumSize, final long maxTtl, final long negativeTtl, final TimeService time) {
+        this.cache = new BoundedCache<>(maximumSize, maxTtl, time);
+        this.maxTtl = maxTtl;
+        this.negativeTtl = negativeTtl;
+        this.time = time;
+    }
+
+    /**
+     * Returns the cached introspection result of the given token.
+     *
+     * @param token RPT
+     * @return the cached result, or {@code null}
+     */
+    TokenIntrospection get(final String token) {
+        return cache.get(hash(token));
+    }
+
+    /**
+     * Caches the introspection result of the given token.
+     *
+     * @param token         RPT
+     * @param introspection introspection result
+     */
+    void put(final String token, final TokenIntrospection introspection) {
+        long ttl;
+        if (!introspection.isActive()) {
+            ttl = negativeTtl;
+        } else if (introspection.getExpiresAt() > 0) {
+            ttl = Math.min(maxTtl, introspection.getExpiresAt() - time.now());
+        } else {
+            ttl = maxTtl;
+        }
+        // Non-positive time-to-live values (already expired tokens) are not cached
+        cache.put(hash(token), introspection, ttl);
+    }
+
+    /**
+     * Returns the cache size and hit / miss / eviction counters.
+     *
+     * @return the cache statistics
+     */
+    JsonValue getStatistics() {
+        return cache.getStatistics();
+    }
+
+    private static String hash(final String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.encode(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.json.JsonValue;
+
+import java.net.URI;
+import java.util.Map;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+/**
+ * The endpoints of an UMA authorization server used by this resource server. Instances are immutable, so that the
+ * whole set can be swapped atomically when the UMA configuration of the authorization server is read again.
+ *
+ * @see <a href="https://docs.kantarainitiative.org/uma/rec-uma-core.html#am-endpoints">Authorization Server
+ * Configuration Data</a>
+ */
+final class UmaEndpoints {
+
+    /** Name of the introspection endpoint in the UMA configuration document. */
+    static final String INTROSPECTION = "introspection_endpoint";
+    /** Name of the permission registration endpoint in the UMA configuration document. */
+    static final String PERMISSION_REGISTRATION = "permission_registration_endpoint";
+    /** Name of the resource set registration endpoint in the UMA configuration document. */
+    static final String RESOURCE_SET_REGISTRATION = "resource_set_registration_endpoint";
+    /** Name of the OAuth 2.0 token endpoint in the UMA configuration document. */
+    static final String TOKEN = "token_endpoint";
+
+    private final URI introspection;
+    private final URI ticket;
+    private final URI resourceSet;
+    private final URI token;
+
+    private UmaEndpoints(final URI introspection, final URI ticket, final URI resourceSet, final URI token) {
+        this.introspection = introspection;
+        this.ticket = ticket;
+        this.resourceSet = resourceSet;
+        this.token = token;
+    }
+
+    /**
+     * Returns the default OpenAM endpoints of the given realm, used until the UMA configuration has been read.
+     *
+     * @param authorizationServer base URI of the authorization server, ending with a {@literal /}
+     * @param realm               realm, starting with a {@literal /}
+     * @return the default endpoints
+     */
+    static UmaEndpoints defaults(final URI authorizationServer, final String realm) {
+        return new UmaEndpoints(authorizationServer.resolve("oauth2" + realm + "/introspect"),
+                authorizationServer.resolve("uma" + realm + "/permission_request"),
+                authorizationServer.resolve("oauth2" + realm + "/resource_set"),
+                authorizationServer.resolve("oauth2" + realm + "/access_token"));
+    }
+
+    /**
+     * Returns the endpoints advertised in an UMA configuration document, keeping the current ones for the endpoints
+     * missing from the document.
+     *
+     * @param configuration endpoint URIs read from the UMA configuration document, by name
+     * @return the discovered endpoints
+     * @throws IllegalArgumentException if an advertised endpoint is not a valid URI
+     */
+    UmaEndpoints withConfiguration(final Map<String, String> configuration) {
+        return new UmaEndpoints(endpoint(configuration, INTROSPECTION, introspection),
+                endpoint(configuration, PERMISSION_REGISTRATION, ticket),
+                endpoint(configuration, RESOURCE_SET_REGISTRATION, resourceSet),
+                endpoint(configuration, TOKEN, token));
+    }
+
+    /**
+     * Returns the OAuth 2.0 token introspection endpoint.
+     *
+     * @return the introspection endpoint
+     */
+    URI getIntrospection() {
+        return introspection;
+    }
+
+    /**
+     * Returns the UMA permission registration endpoint, issuing permission tickets.
+     *
+     * @return the permission registration endpoint
+     */
+    URI getTicket() {
+        return ticket;
+    }
+
+    /**
+     * Returns the OAuth 2.0 resource set registration endpoint.
+     *
+     * @return the resource set registration endpoint
+     */
+    URI getResourceSet() {
+        return resourceSet;
+    }
+
+    /**
+     * Returns the OAuth 2.0 token endpoint, used to refresh PATs.
+     *
+     * @return the token endpoint
+     */
+    URI getToken() {
+        return token;
+    }
+
+    /**
+     * Returns the endpoint URIs.
+     *
+     * @return the endpoints, as JSON
+     */
+    JsonValue toJson() {
+        return json(object(
+                field(INTROSPECTION, introspection.toString()),
+                field(PERMISSION_REGISTRATION, ticket.toString()),
+                field(RESOURCE_SET_REGISTRATION, resourceSet.toString()),
+                field(TOKEN, token.toString())));
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof UmaEndpoints)) {
+            return false;
+        }
+        UmaEndpoints that = (UmaEndpoints) o;
+        return introspection.equals(that.introspection)
+                && ticket.equals(that.ticket)
+                && resourceSet.equals(that.resourceSet)
+                && token.equals(that.token);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * introspection.hashCode() + ticket.hashCode()) + resourceSet.hashCode())
+                + token.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return toJson().toString();
+    }
+
+    private static URI endpoint(final Map<String, String> configuration, final String name, final URI current) {
+        String value = configuration.get(name);
+        return value != null ? URI.create(value) : current;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.forgerock.http.protocol.Entity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.forgerock.util.Utils.closeSilently;
+
+/**
+ * Reads the few fields needed from the JSON responses of the AS with a streaming parser, skipping everything else,
+ * instead of building the whole object tree of the response.
+ * <p>
+ * Only the response shapes of the UMA endpoints are supported: the token introspection response, and flat objects
+ * from which some top-level scalar fields are read (permission ticket, resource set registration, access token).
+ */
+final class UmaJsonReader {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private UmaJsonReader() {
+    }
+
+    /**
+     * Reads a token introspection response: {@code active}, {@code sub}, {@code exp} and the scopes of each of the
+     * {@code permissions}.
+     *
+     * @param entity introspection response entity
+     * @return the introspection result
+     * @throws IOException if the entity cannot be read or is not a JSON object
+     */
+    static TokenIntrospection readIntrospection(final Entity entity) throws IOException {
+        JsonParser parser = open(entity);
+        try {
+            boolean active = false;
+            String subject = null;
+            long expiresAt = 0L;
+            Map<String, Set<String>> permissions = new HashMap<>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("active".equals(field)) {
+                    active = value == JsonToken.VALUE_TRUE;
+                    if (!active) {
+                        // Nothing else matters
+                        return TokenIntrospection.INACTIVE;
+                    }
+                } else if ("sub".equals(field) && value == JsonToken.VALUE_STRING) {
+                    subject = parser.getText();
+                } else if ("exp".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                    expiresAt = TimeUnit.SECONDS.toMillis(parser.getLongValue());
+                } else if ("permissions".equals(field) && value == JsonToken.START_ARRAY) {
+                    readPermissions(parser, permissions);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return active ? new TokenIntrospection(true, subject, expiresAt, permissions) : TokenIntrospection.INACTIVE;
+        } finally {
+            closeSilently(parser);
+        }
+    }
+
+    /**
+     * Reads the given top-level scalar (string, number or boolean) fields of a JSON object, as strings, stopping as
+     * soon as all of them are found.
+     *
+     * @param entity response entity
+     * @param names  names of the fields to read
+     * @return the values of the fields found, by name
+     * @throws IOException if the entity cannot be read or is not a JSON object
+     */
+    static Map<String, String> readFields(final Entity entity, final String... names) throws IOException {
+        List<String> wanted = Arrays.asList(names);
+        Map<String, String> fields = new HashMap<>(names.length * 2);
+        JsonParser parser = open(entity);
+        try {
+            while (fields.size() < names.length && parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value.isScalarValue() && value != JsonToken.VALUE_NULL && wanted.contains(field)) {
+                    fields.put(field, parser.getText());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return fields;
+        } finally {
+            closeSilently(parser);
+        }
+    }
+
+    /**
+     * Reads a top-level string field of a JSON object.
+     *
+     * @param entity response entity
+     * @param name   name of the field to read
+     * @return the value of the field, or {@code null} if not found
+     * @throws IOException if the entity cannot be read or is not a JSON object
+     */
+    static String readField(final Entity entity, final String name) throws IOException {
+        return readFields(entity, name).get(name);
+    }
+
+    private static void readPermissions(final JsonParser parser,
+                                        final Map<String, Set<String>> permissions) throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String resourceSetId = null;
+            Set<String> scopes = new HashSet<>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("resource_set_id".equals(field) && value == JsonToken.VALUE_STRING) {
+                    resourceSetId = parser.getText();
+                } else if ("scopes".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                        scopes.add(parser.getText());
+                    }
+                    if (parser.getCurrentToken() != JsonToken.END_ARRAY) {
+                        throw new IOException("Invalid permission scopes in introspection response");
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (resourceSetId != null) {
+                permissions.put(resourceSetId, scopes);
+            }
+        }
+        if (parser.getCurrentToken() != JsonToken.END_ARRAY) {
+            throw new IOException("Invalid permissions in introspection response");
+        }
+    }
+
+    private static JsonParser open(final Entity entity) throws IOException {
+        InputStream content = entity.newDecodedContentInputStream();
+        JsonParser parser = FACTORY.createParser(content);
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            closeSilently(parser);
+            throw new IOException("Expected a JSON object");
+        }
+        return parser;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+
+/**
+ * Read-only endpoint exposing the runtime statistics of an {@link UmaSharingServiceExt}, deployed next to the share
+ * endpoint: {@literal /openig/api/system/objects/../objects/[name-of-the-uma-service-object]/monitoring}.
+ */
+class UmaMonitoringHandler implements Handler {
+
+    private final UmaSharingServiceExt service;
+
+    /**
+     * Constructs a new monitoring endpoint.
+     *
+     * @param service monitored service
+     */
+    UmaMonitoringHandler(final UmaSharingServiceExt service) {
+        this.service = service;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+        if (!"GET".equals(request.getMethod())) {
+            return newResponsePromise(new Response(Status.METHOD_NOT_ALLOWED));
+        }
+        Response response = new Response(Status.OK);
+        response.setEntity(service.getStatistics().getObject());
+        return newResponsePromise(response);
+    }
+}
@@ -25,12 +25,13 @@ import org.forgerock.http.Handler;
 import org.forgerock.http.header.Warning;
 import org.forgerock.http.header.WarningHeader;
 import org.forgerock.http.oauth2.OAuth2;
-import org.forgerock.http.protocol.Form;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
+import org.forgerock.json.jose.jwk.JWKSet;
 import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.opendj.ldap.LdapException;
 import org.forgerock.openig.heap.HeapException;
 import org.forgerock.services.context.Context;
 import org.forgerock.util.AsyncFunction;
@@ -38,21 +39,33 @@ import org.forgerock.util.Function;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Collections;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static java.lang.String.format;
 import static org.forgerock.http.header.WarningHeader.MISCELLANEOUS_WARNING;
 import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.http.protocol.Responses.newInternalServerError;
 import static org.forgerock.json.JsonValue.*;
+import static org.forgerock.json.JsonValueFunctions.uri;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.util.JsonValues.evaluated;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
 import static org.forgerock.util.Utils.closeSilently;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.forgerock.util.time.Duration.duration;
 
 /**
  * An {@link UmaResourceServerFilter} implements a PEP (Policy Enforcement Point) and is responsible to ensure the
@@ -67,20 +80,91 @@ import static org.forgerock.util.Utils.closeSilently;
  *           "umaService": "UmaServiceExt",
  *           "scopes" : [
  *               "http://login.example.com/scopes/view"
- *           ]
+ *           ],
+ *           "scopePolicies": [
+ *               {
+ *                   "methods": [ "GET" ],
+ *                   "path": "^/history/all",
+ *                   "scopes": [ "http://login.example.com/scopes/viewAll" ]
+ *               },
+ *               {
+ *                   "methods": [ "PUT", "POST", "DELETE" ],
+ *                   "path": "^/history",
+ *                   "scopes": [ "http://login.example.com/scopes/edit" ]
+ *               }
+ *           ],
+ *           "timeouts": {
+ *               "request": "10 seconds",
+ *               "shareLookup": "2 seconds",
+ *               "tokenValidation": "5 seconds",
+ *               "ticket": "5 seconds"
+ *           },
+ *           "jwtValidation": {
+ *               "jwkSetUri": "http://openam51.example.com:8282/openam/oauth2/employees/connect/jwk_uri",
+ *               "jwkSetRefresh": "1 hour",
+ *               "issuer": "http://openam51.example.com:8282/openam/oauth2/employees",
+ *               "audience": "api_client"
+ *           }
  *           }
  *       }
  *     }
  * </pre>
+ * <p>
+ * When {@code jwtValidation} is configured, signed JWT RPTs are validated locally: the signature is checked against
+ * the JWK set read from {@code jwkSetFile} or fetched from {@code jwkSetUri} (and fetched again every
+ * {@code jwkSetRefresh}), and the optional {@code issuer} and {@code audience} are compared to the token claims.
+ * Opaque RPTs are still introspected.
+ * <p>
+ * The scopes required by a request are those of the first {@code scopePolicies} rule matching its method (any method
+ * if {@code methods} is omitted) and path (regular expression, any path if omitted), and the {@code scopes} list
+ * otherwise. Requests matching no rule, when {@code scopes} is not set either, are rejected with a
+ * {@literal 403 Forbidden} response.
+ * <p>
+ * Each request has a deadline of {@code timeouts.request}, split into budgets for the share lookup, the token
+ * validation and the permission ticket request: each phase gets its own timeout, capped by the time left before the
+ * deadline. A phase exceeding its budget is no longer waited for, and the request answered with
+ * {@literal 504 Gateway Timeout}: an introspection or ticket request shared with other requests keeps running for them,
+ * while a directory search exceeding the share lookup budget is abandoned, so that its connection goes back to the
+ * pool. A directory failing to search the shares produces a {@literal 503 Service Unavailable} response.
  */
 public class UmaResourceServerFilterExt implements Filter {
 
     private static final Logger logger = LoggerFactory.getLogger(UmaResourceServerFilterExt.class);
 
+    private static final Function<TimeoutException, ShareExt, UmaException> SHARE_LOOKUP_TIMEOUT =
+            new Function<TimeoutException, ShareExt, UmaException>() {
+                @Override
+                public ShareExt apply(final TimeoutException e) throws UmaException {
+                    throw new UmaException("UMA share lookup timed out", e);
+                }
+            };
+
+    private static final Function<TimeoutException, TokenIntrospection, IOException> TOKEN_VALIDATION_TIMEOUT =
+            new Function<TimeoutException, TokenIntrospection, IOException>() {
+                @Override
+                public TokenIntrospection apply(final TimeoutException e) throws IOException {
+                    throw new IOException("RPT validation timed out", e);
+                }
+            };
+
+    private static final Function<TimeoutException, Response, NeverThrowsException> TICKET_TIMEOUT =
+            new Function<TimeoutException, Response, NeverThrowsException>() {
+                @Override
+                public Response apply(final TimeoutException e) {
+                    return errorResponse(Status.GATEWAY_TIMEOUT, "UMA permission ticket request timed out");
+                }
+            };
+
     private final UmaSharingServiceExt umaService;
     private final Handler protectionApiHandler;
     private final String realm;
-    private final List<Object> scopes;
+    private final ScopePolicy scopePolicy;
+    private final JwtRptValidator jwtValidator;
+    private final ScheduledExecutorService executor;
+    private final long requestTimeout;
+    private final long shareLookupTimeout;
+    private final long tokenValidationTimeout;
+    private final long ticketTimeout;
 
     /**
      * Constructs a new UmaResourceServerFilter.
@@ -88,14 +172,34 @@ public class UmaResourceServerFilterExt implements Filter {
      * @param umaService           core service to use
      * @param protectionApiHandler protectionApiHandler to use when interacting with introspection and permission request endpoints
      * @param realm                UMA realm name (can be {@code null})
+     * @param scopePolicy          maps requests to their required scopes
+     * @param jwtValidator         validates JWT RPTs locally (can be {@code null} to always introspect RPTs)
+     * @param executor             executor used to time out the request phases
+     * @param requestTimeout       deadline of the whole request, in milliseconds ({@link Long#MAX_VALUE} for none)
+     * @param shareLookupTimeout   budget of the share lookup, in milliseconds ({@link Long#MAX_VALUE} for none)
+     * @param tokenValidationTimeout budget of the RPT validation, in milliseconds ({@link Long#MAX_VALUE} for none)
+     * @param ticketTimeout        budget of the permission ticket request, in milliseconds ({@link Long#MAX_VALUE}
+     *                             for none)
      */
     public UmaResourceServerFilterExt(final UmaSharingServiceExt umaService,
                                       final Handler protectionApiHandler,
-                                      final String realm, final List<Object> scopes) {
+                                      final String realm, final ScopePolicy scopePolicy,
+                                      final JwtRptValidator jwtValidator,
+                                      final ScheduledExecutorService executor,
+                                      final long requestTimeout,
+                                      final long shareLookupTimeout,
+                                      final long tokenValidationTimeout,
+                                      final long ticketTimeout) {
         this.umaService = umaService;
         this.protectionApiHandler = protectionApiHandler;
         this.realm = realm;
-        this.scopes = scopes;
+        this.scopePolicy = scopePolicy;
+        this.jwtValidator = jwtValidator;
+        this.executor = executor;
+        this.requestTimeout = requestTimeout;
+        this.shareLookupTimeout = shareLookupTimeout;
+        this.tokenValidationTimeout = tokenValidationTimeout;
+        this.ticketTimeout = ticketTimeout;
     }
 
     @Override
@@ -103,27 +207,66 @@ public class UmaResourceServerFilterExt implements Filter {
                                                           final Request request,
                                                           final Handler next) {
 
-        try {
-            // Find a Share for this request
-            final ShareExt share = umaService.findShare(request);
-            String rpt = OAuth2.getBearerAccessToken(request.getHeaders().getFirst("Authorization"));
-
-            // Is there an RPT ?
-            if (rpt != null) {
-                // Validate the token
-                return introspectToken(context, rpt, share.getPAT())
-                        .thenAsync(new VerifyScopesAsyncFunction(share, context, request, next));
-            }
-
-            // Error case: ask for a ticket
-            return ticket(context, share, request);
-
-        } catch (UmaException e) {
-            logger.error("An error occurred while looking for a UMA share", e);
-            // No share found
-            // Make sure we return a 404
-            return newResponsePromise(e.getResponse().setStatus(Status.NOT_FOUND));
+        final ScopePolicy.Rule rule = scopePolicy.match(request);
+        if (rule == null) {
+            logger.debug("No scope policy for {} {}", request.getMethod(), request.getUri().getPath());
+            return newResponsePromise(errorResponse(Status.FORBIDDEN, "No UMA scope policy for this request"));
         }
+
+        // Find a Share for this request, then validate the token (if any) without blocking the calling thread
+        final Deadline deadline = new Deadline(executor, TimeService.SYSTEM, requestTimeout);
+        long lookupTimeout = deadline.budget(shareLookupTimeout);
+        return deadline.limit(umaService.findShareAsync(request, lookupTimeout),
+                lookupTimeout,
+                SHARE_LOOKUP_TIMEOUT)
+                .thenAsync(new AsyncFunction<ShareExt, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(final ShareExt share) {
+                        String rpt = OAuth2.getBearerAccessToken(request.getHeaders().getFirst("Authorization"));
+
+                        // Is there an RPT ?
+                        if (rpt != null) {
+                            // Validate the token
+                            return deadline.limit(introspect(context, rpt, share.getPAT()),
+                                    deadline.budget(tokenValidationTimeout),
+                                    TOKEN_VALIDATION_TIMEOUT)
+                                    .thenAsync(new VerifyScopesAsyncFunction(share, rule, deadline, context, request, next),
+                                            new AsyncFunction<IOException, Response, NeverThrowsException>() {
+                                                @Override
+                                                public Promise<Response, NeverThrowsException> apply(
+                                                        final IOException e) {
+                                                    if (e.getCause() instanceof TimeoutException) {
+                                                        logger.warn("RPT validation timed out");
+                                                        return newResponsePromise(
+                                                                errorResponse(Status.GATEWAY_TIMEOUT, e.getMessage()));
+                                                    }
+                                                    logger.debug("Cannot extract JSON from token introspection response, possibly malformed JSON");
+                                                    return newResponsePromise(newInternalServerError(e));
+                                                }
+                                            });
+                        }
+
+                        // Error case: ask for a ticket
+                        return ticket(context, share, rule, deadline);
+                    }
+                }, new AsyncFunction<UmaException, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(final UmaException e) {
+                        if (e.getCause() instanceof TimeoutException) {
+                            logger.warn("UMA share lookup timed out for {}", request.getUri().getPath());
+                            return newResponsePromise(errorResponse(Status.GATEWAY_TIMEOUT, e.getMessage()));
+                        }
+                        if (e.getCause() instanceof LdapException) {
+                            logger.error("Cannot search the UMA shares", e);
+                            return newResponsePromise(errorResponse(Status.SERVICE_UNAVAILABLE,
+                                    "UMA shares are not available"));
+                        }
+                        logger.error("An error occurred while looking for a UMA share", e);
+                        // No share found
+                        // Make sure we return a 404
+                        return newResponsePromise(e.getResponse().setStatus(Status.NOT_FOUND));
+                    }
+                });
     }
 
     /**
@@ -144,56 +287,143 @@ public class UmaResourceServerFilterExt implements Filter {
      *
      * @param context  Context chain used to keep a relationship between requests (tracking)
      * @param share    represents protection information about the requested resource
-     * @param incoming request used to infer the set of permissions to ask
+     * @param rule     scope policy rule of the request, giving the set of permissions to ask
+     * @param deadline deadline of the request
      * @return an asynchronous {@link Response}
      * @see <a href="https://docs.kantarainitiative.org/uma/draft-uma-core-v1_0_1.html#rfc.section.3.2">Request
      * Permission Registration</a>
      */
     private Promise<Response, NeverThrowsException> ticket(final Context context,
                                                            final ShareExt share,
-                                                           final Request incoming) {
-        Request request = new Request();
-        request.setMethod("POST");
-        request.setUri(umaService.getTicketEndpoint());
-        request.getHeaders().put("Authorization", format("Bearer %s", share.getPAT()));
-        request.getHeaders().put("Accept", "application/json");
-        request.setEntity(createPermissionRequest(share, incoming).asMap());
-
-        return protectionApiHandler.handle(context, request)
-                .then(new TicketResponseFunction());
+                                                           final ScopePolicy.Rule rule,
+                                                           final Deadline deadline) {
+        final BoundedCache<String, String> ticketCache = umaService.getTicketCache();
+        final String cacheKey = realm + '\u0000' + share.getResourceSetId() + '\u0000' + rule.getKey();
+        if (ticketCache != null) {
+            String authenticate = ticketCache.get(cacheKey);
+            if (authenticate != null) {
+                // A recently issued ticket for the same permission is still valid
+                return newResponsePromise(unauthorized(authenticate));
+            }
+        }
+
+        // Concurrent requests for the same permission share one ticket request, each builds its own response
+        String key = cacheKey + '\u0000' + share.getPAT();
+        Promise<Response, NeverThrowsException> response = umaService.getTicketRequests()
+                .execute(key, new AsyncFunction<String, String, UmaException>() {
+                    @Override
+                    public Promise<String, UmaException> apply(final String permission) {
+                        Request request = new Request();
+                        request.setMethod("POST");
+                        request.setUri(umaService.getTicketEndpoint());
+                        request.getHeaders().put("Authorization", format("Bearer %s", share.getPAT()));
+                        request.getHeaders().put("Accept", "application/json");
+                        request.setEntity(createPermissionRequest(share, rule).asMap());
+
+                        return umaService.getTicketBreaker().handle(protectionApiHandler, context, request)
+                                .then(new TicketFunction())
+                                .then(new Function<String, String, UmaException>() {
+                                    @Override
+                                    public String apply(final String ticket) {
+                                        String authenticate = format("UMA realm=\"%s\", as_uri=\"%s\", ticket=\"%s\"",
+                                                realm,
+                                                umaService.getAuthorizationServer(),
+                                                ticket);
+                                        if (ticketCache != null) {
+                                            ticketCache.put(cacheKey, authenticate);
+                                        }
+                                        return authenticate;
+                                    }
+                                });
+                    }
+                })
+                .then(new Function<String, Response, NeverThrowsException>() {
+                    @Override
+                    public Response apply(final String authenticate) {
+                        return unauthorized(authenticate);
+                    }
+                }, new Function<UmaException, Response, NeverThrowsException>() {
+                    @Override
+                    public Response apply(final UmaException e) {
+                        return errorResponse(Status.FORBIDDEN, e.getMessage());
+                    }
+                });
+        // Only this request stops waiting, a shared ticket request keeps running for the others
+        return deadline.limit(response, deadline.budget(ticketTimeout), TICKET_TIMEOUT);
     }
 
     /**
      * Builds the resource set registration {@link Request}'s JSON content.
      *
-     * @param share   represents protection information about the requested resource
-     * @param request request used to infer the set of permissions to ask
+     * @param share represents protection information about the requested resource
+     * @param rule  scope policy rule giving the set of permissions to ask
      * @return a JSON structure that represents a resource set registration
      * @see <a href="https://docs.kantarainitiative.org/uma/draft-oauth-resource-reg-v1_0_1.html#resource-set-desc">
      * Resource Set Descriptions</a>
      */
-    private JsonValue createPermissionRequest(final ShareExt share, final Request request) {
+    private JsonValue createPermissionRequest(final ShareExt share, final ScopePolicy.Rule rule) {
 
         return json(object(field("resource_set_id", share.getResourceSetId()),
-                field("scopes", array(scopes.toArray(new Object[scopes.size()])))));
+                field("scopes", rule.getScopes())));
     }
 
-    private Promise<Response, NeverThrowsException> introspectToken(final Context context,
-                                                                    final String token,
-                                                                    final String pat) {
-        Request request = new Request();
-        request.setUri(umaService.getIntrospectionEndpoint());
-        // Should accept a PAT as per the spec (See OPENAM-6320 / OPENAM-5928)
-        //request.getHeaders().put("Authorization", format("Bearer %s", pat));
-        request.getHeaders().put("Accept", "application/json");
+    /**
+     * Creates an error response with an informative {@literal Warning} header.
+     *
+     * @param status  response status
+     * @param warning warning text
+     * @return the error response
+     */
+    private static Response errorResponse(final Status status, final String warning) {
+        Response response = new Response(status);
+        response.getHeaders().put(new WarningHeader(new Warning(MISCELLANEOUS_WARNING, "-", warning)));
+        return response;
+    }
 
-        Form query = new Form();
-        query.putSingle("token", token);
-        query.putSingle("client_id", umaService.getClientId());
-        query.putSingle("client_secret", umaService.getClientSecret());
-        query.toRequestEntity(request);
+    /**
+     * Creates a new response with authenticate header and status code.
+     *
+     * @param authenticate value of the {@literal WWW-Authenticate} header, holding the permission ticket
+     * @return a {@literal 401 Unauthorized} response
+     */
+    private static Response unauthorized(final String authenticate) {
+        Response unauthorized = new Response(Status.UNAUTHORIZED);
+        unauthorized.getHeaders().put("WWW-Authenticate", authenticate);
+        return unauthorized;
+    }
+
+    /**
+     * Validates the given RPT locally when it is a signed JWT, otherwise introspects it, using the introspection
+     * results cached by the UMA service when possible.
+     *
+     * @param context Context chain used to keep a relationship between requests (tracking)
+     * @param token   RPT
+     * @param pat     PAT of the share protecting the requested resource
+     * @return the introspection result, or {@code null} if the introspection endpoint did not answer with
+     * {@literal 200 OK}
+     */
+    private Promise<TokenIntrospection, IOException> introspect(final Context context,
+                                                                final String token,
+                                                                final String pat) {
+        if (jwtValidator != null && JwtRptValidator.isJwt(token)) {
+            return jwtValidator.validate(context, token)
+                    .thenAsync(new AsyncFunction<TokenIntrospection, TokenIntrospection, IOException>() {
+                        @Override
+                        public Promise<TokenIntrospection, IOException> apply(final TokenIntrospection local) {
+                            if (local != null) {
+                                return newResultPromise(local);
+                            }
+                            // Cannot be validated locally
+                            return introspectRemotely(context, token);
+                        }
+                    });
+        }
+        return introspectRemotely(context, token);
+    }
 
-        return protectionApiHandler.handle(context, request);
+    private Promise<TokenIntrospection, IOException> introspectRemotely(final Context context, final String token) {
+        // Should accept a PAT as per the spec (See OPENAM-6320 / OPENAM-5928)
+        return umaService.introspectToken(context, protectionApiHandler, token, umaService.getIntrospectionCache());
     }
 
     /**
@@ -208,43 +438,98 @@ public class UmaResourceServerFilterExt implements Filter {
                     .as(requiredHeapObject(heap, UmaSharingServiceExt.class));
             Handler handler = config.get("protectionApiHandler").required().as(requiredHeapObject(heap, Handler.class));
             String realm = config.get("realm").as(evaluated()).defaultTo("uma").asString();
+            JsonValue timeouts = config.get("timeouts");
+            return new UmaResourceServerFilterExt(service, handler, realm, scopePolicy(service),
+                    jwtValidator(config.get("jwtValidation"), handler),
+                    heap.get(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY, ScheduledExecutorService.class),
+                    timeout(timeouts.get("request"), "10 seconds"),
+                    timeout(timeouts.get("shareLookup"), "2 seconds"),
+                    timeout(timeouts.get("tokenValidation"), "5 seconds"),
+                    timeout(timeouts.get("ticket"), "5 seconds"));
+        }
+
+        private static long timeout(final JsonValue timeout, final String defaultTimeout) {
+            Duration value = duration(timeout.as(evaluated()).defaultTo(defaultTimeout).asString());
+            return value.isUnlimited() ? Long.MAX_VALUE : value.to(TimeUnit.MILLISECONDS);
+        }
+
+        private ScopePolicy scopePolicy(final UmaSharingServiceExt service) throws HeapException {
+            ScopePolicy policy = new ScopePolicy(service.getScopeRegistry());
+            for (JsonValue rule : config.get("scopePolicies")) {
+                try {
+                    policy.add(rule.get("methods").as(evaluated()).asList(String.class),
+                            rule.get("path").as(evaluated()).asString(),
+                            rule.get("scopes").as(evaluated()).required().asList());
+                } catch (RuntimeException e) {
+                    throw new HeapException("Invalid scope policy " + rule, e);
+                }
+            }
             List<Object> scopes = config.get("scopes").as(evaluated()).asList();
-            return new UmaResourceServerFilterExt(service, handler, realm, scopes);
+            if (scopes != null) {
+                // Default rule, matching any request
+                policy.add(null, null, scopes);
+            }
+            return policy;
+        }
+
+        private JwtRptValidator jwtValidator(final JsonValue jwtValidation, final Handler handler)
+                throws HeapException {
+            if (jwtValidation.isNull()) {
+                return null;
+            }
+            String issuer = jwtValidation.get("issuer").as(evaluated()).asString();
+            String audience = jwtValidation.get("audience").as(evaluated()).asString();
+            String jwkSetFile = jwtValidation.get("jwkSetFile").as(evaluated()).asString();
+            if (jwkSetFile != null) {
+                try {
+                    String keys = new String(Files.readAllBytes(Paths.get(jwkSetFile)), StandardCharsets.UTF_8);
+                    return new JwtRptValidator(JWKSet.parse(keys), issuer, audience, TimeService.SYSTEM);
+                } catch (IOException | RuntimeException e) {
+                    throw new HeapException("Cannot read the JWK set from " + jwkSetFile, e);
+                }
+            }
+            URI jwkSetUri = jwtValidation.get("jwkSetUri").as(evaluated()).required().as(uri());
+            Duration jwkSetRefresh = duration(jwtValidation.get("jwkSetRefresh").as(evaluated()).defaultTo("1 hour").asString());
+            return new JwtRptValidator(handler, jwkSetUri, issuer, audience,
+                    jwkSetRefresh.isUnlimited() ? Long.MAX_VALUE : jwkSetRefresh.to(TimeUnit.MILLISECONDS),
+                    TimeService.SYSTEM);
         }
     }
 
-    private class VerifyScopesAsyncFunction implements AsyncFunction<Response, Response, NeverThrowsException> {
+    private class VerifyScopesAsyncFunction
+            implements AsyncFunction<TokenIntrospection, Response, NeverThrowsException> {
         private final ShareExt share;
+        private final ScopePolicy.Rule rule;
+        private final Deadline deadline;
         private final Context context;
         private final Request request;
         private final Handler next;
 
         public VerifyScopesAsyncFunction(final ShareExt share,
+                                         final ScopePolicy.Rule rule,
+                                         final Deadline deadline,
                                          final Context context,
                                          final Request request,
                                          final Handler next) {
             this.share = share;
+            this.rule = rule;
+            this.deadline = deadline;
             this.context = context;
             this.request = request;
             this.next = next;
         }
 
         @Override
-        public Promise<Response, NeverThrowsException> apply(final Response token) {
+        public Promise<Response, NeverThrowsException> apply(final TokenIntrospection token) {
 
-            if (Status.OK == token.getStatus()) {
-                JsonValue value = null;
-                try {
-                    value = json(token.getEntity().getJson());
-                } catch (IOException e) {
-                    logger.debug("Cannot extract JSON from token introspection response, possibly malformed JSON");
-                    return newResponsePromise(newInternalServerError(e));
-                }
-                if (value.get("active").asBoolean()) {
+            if (token != null) {
+                if (token.isActive()) {
                     // Got a valid token
                     // Need to verify embed scopes against required scopes
 
-                    if (getScopes(value, share.getResourceSetId()).containsAll(scopes)) {
+                    if (ScopeRegistry.containsAll(
+                            token.getScopeMask(share.getResourceSetId(), scopePolicy.getRegistry()),
+                            rule.getMask())) {
                         // All required scopes are present, continue the request processing
                         return next.handle(context, request);
                     }
@@ -252,7 +537,7 @@ public class UmaResourceServerFilterExt implements Filter {
                     logger.trace("Insufficient scopes encoded in RPT, asking for a new ticket");
                     // Not all of the required scopes are in the token
                     // Error case: ask for a ticket, append an error code
-                    return ticket(context, share, request)
+                    return ticket(context, share, rule, deadline)
                             .thenOnResult(new ResultHandler<Response>() {
                                 @Override
                                 public void handleResult(final Response response) {
@@ -270,35 +555,21 @@ public class UmaResourceServerFilterExt implements Filter {
             }
 
             // Error case: ask for a ticket
-            return ticket(context, share, request);
-        }
-
-        private List<String> getScopes(final JsonValue value, final String resourceSetId) {
-            for (JsonValue permission : value.get("permissions")) {
-                if (resourceSetId.equals(permission.get("resource_set_id").asString())) {
-                    return permission.get("scopes").asList(String.class);
-                }
-            }
-            return Collections.emptyList();
+            return ticket(context, share, rule, deadline);
         }
     }
 
-    private class TicketResponseFunction implements Function<Response, Response, NeverThrowsException> {
+    /**
+     * Extracts the ticket from the permission request endpoint response, so that it can be shared by concurrent
+     * requests. Failures carry the warning to return to the client.
+     */
+    private class TicketFunction implements Function<Response, String, UmaException> {
         @Override
-        public Response apply(final Response response) {
+        public String apply(final Response response) throws UmaException {
             try {
                 if (Status.CREATED == response.getStatus()) {
-                    // Create a new response with authenticate header and status code
                     try {
-                        JsonValue value = json(response.getEntity().getJson());
-                        Response forbidden = new Response(Status.UNAUTHORIZED);
-                        String ticket = value.get("ticket").asString();
-                        forbidden.getHeaders().put("WWW-Authenticate",
-                                format("UMA realm=\"%s\", as_uri=\"%s\", ticket=\"%s\"",
-                                        realm,
-                                        umaService.getAuthorizationServer(),
-                                        ticket));
-                        return forbidden;
+                        return UmaJsonReader.readField(response.getEntity(), "ticket");
                     } catch (IOException e) {
                         // JSON parsing exception
                         // Do not process them here, handle them in the later catch-all block
@@ -312,11 +583,7 @@ public class UmaResourceServerFilterExt implements Filter {
 
                 // Properly handle 400 errors and UMA error codes
                 // The PAT may need to be refreshed
-                Response forbidden = new Response(Status.FORBIDDEN);
-                forbidden.getHeaders().put(new WarningHeader(new Warning(MISCELLANEOUS_WARNING,
-                        "-",
-                        "UMA Authorization Error: "+ response.getEntity())));
-                return forbidden;
+                throw new UmaException("UMA Authorization Error: " + response.getEntity());
             } finally {
                 // Close previous response object
                 closeSilently(response);
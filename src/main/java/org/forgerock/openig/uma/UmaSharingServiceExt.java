@@ -24,36 +24,64 @@ import org.forgerock.http.Handler;
 import org.forgerock.http.MutableUri;
 import org.forgerock.http.oauth2.OAuth2;
 import org.forgerock.http.protocol.*;
+import org.forgerock.json.JsonPointer;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.resource.CreateRequest;
+import org.forgerock.json.resource.SortKey;
 import org.forgerock.json.resource.http.HttpContext;
+import org.forgerock.opendj.ldap.ByteString;
+import org.forgerock.opendj.ldap.Filter;
 import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.opendj.ldap.ResultCode;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
 import org.forgerock.openig.http.EndpointRegistry;
 import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.Function;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.query.QueryFilter;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static java.lang.String.format;
 import static org.forgerock.json.JsonValue.*;
 import static org.forgerock.json.JsonValueFunctions.uri;
 import static org.forgerock.json.resource.Resources.newHandler;
 import static org.forgerock.json.resource.http.CrestHttp.newHttpHandler;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.util.CrestUtil.newCrestApplication;
 import static org.forgerock.openig.util.JsonValues.evaluated;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
+import static org.forgerock.util.Utils.closeSilently;
 import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.forgerock.util.time.Duration.duration;
 
 /**
  * An {@link UmaSharingService} provides core UMA features to OpenIG when acting as an UMA Resource Server.
@@ -78,31 +106,172 @@ import static org.forgerock.util.promise.Promises.newExceptionPromise;
  *               "realm": "/employees",
  *               "clientId": "OpenIG_RS",
  *               "clientSecret": "password",
+ *               "shareStore": "ldap",
  *               "ldapHost": "192.168.56.122",
  *               "ldapPort": 3389,
  *               "ldapAdminId": "cn=Directory Manager",
  *               "ldapAdminPassword": "cangetindj",
- *               "ldapBaseDN": "dc=openig,dc=forgerock,dc=org"
+ *               "ldapBaseDN": "dc=openig,dc=forgerock,dc=org",
+ *               "ldapPoolSize": 10,
+ *               "ldapPoolCoreSize": 2,
+ *               "ldapPoolIdleTimeout": "5 minutes",
+ *               "ldapPoolMaxWait": "5 seconds",
+ *               "ldapLayout": "flat",
+ *               "shareCacheSize": 10000,
+ *               "shareCacheTtl": "30 seconds",
+ *               "shareMissCacheSize": 10000,
+ *               "shareMissCacheTtl": "5 seconds",
+ *               "shareUriFilter": false,
+ *               "sharePatternRefresh": "1 minute",
+ *               "rptCacheSize": 10000,
+ *               "rptCacheMaxTtl": "5 minutes",
+ *               "rptCacheNegativeTtl": "10 seconds",
+ *               "patCacheSize": 1000,
+ *               "patCacheTtl": "30 seconds",
+ *               "ticketCacheSize": 1000,
+ *               "ticketCacheTtl": "0 seconds",
+ *               "umaDiscovery": true,
+ *               "umaDiscoveryRefresh": "10 minutes",
+ *               "authorizationServerBreaker": {
+ *                   "maxConcurrentCalls": 100,
+ *                   "windowSize": 20,
+ *                   "minimumCalls": 10,
+ *                   "failureRateThreshold": 0.5,
+ *                   "slowCallDuration": "5 seconds",
+ *                   "openDuration": "30 seconds"
+ *               },
+ *               "shareReplica": false,
+ *               "shareReplicaRetryDelay": "10 seconds",
+ *               "shareReplicaConnectTimeout": "10 seconds",
+ *               "patRefresh": true,
+ *               "patRefreshInterval": "1 minute",
+ *               "patRefreshAhead": "5 minutes",
+ *               "patStoreTtl": "1 minute",
+ *               "shareSnapshot": "/var/openig/uma/shares.snapshot",
+ *               "shareSnapshotInterval": "10 minutes",
+ *               "shareSnapshotMaxAge": "1 day"
  *       }
  *     }
  * </pre>
  * <p>
+ * Shares and their PATs are stored in LDAP unless {@code shareStore} selects another {@link ShareStore}:
+ * {@literal memory} keeps them in memory only, for edge deployments and load tests, and {@literal file} in memory and
+ * in an append-only log in {@code shareStoreDirectory}, forced to the disk on every change with
+ * {@code shareStoreSync}. The {@literal ldap*} settings and {@code shareReplica} are then ignored. The log holds the
+ * PATs and refresh tokens of the users in clear: it is created readable by the OpenIG user only (where the file system
+ * supports POSIX permissions), and {@code shareStoreDirectory} must be protected like any other credential store.
+ * <p>
+ * With the LDAP store, {@code shareSnapshot} names a local file periodically rewritten ({@code shareSnapshotInterval})
+ * with the shares and PATs of this service. At startup, a snapshot younger than {@code shareSnapshotMaxAge} serves the
+ * share lookups until caught up with the directory, see {@link ShareSnapshot}. The snapshot holds the PATs and refresh
+ * tokens of the users in clear: it is created readable by the OpenIG user only (where the file system supports POSIX
+ * permissions), and its directory must be protected like any other credential store.
+ * <p>
+ * The LDAP store is accessed through a pool of pre-authenticated connections: {@code ldapPoolSize} is the maximum
+ * number of connections, {@code ldapPoolCoreSize} the number opened in the background at startup and kept when idle,
+ * {@code ldapPoolIdleTimeout} the idle time after which extra connections are closed ({@literal unlimited} for a fixed
+ * size pool) and {@code ldapPoolMaxWait} the maximum time a request waits for a connection.
+ * <p>
+ * With the default {@literal flat} {@code ldapLayout}, shares are stored directly under {@code ldapBaseDN}. With the
+ * {@literal user} layout, they are stored under {@literal ou=<userId>,ou=<realm>,<ldapBaseDN>}, so that looking up the
+ * shares of a user only searches that user's entries (see {@link ShareLayout}). Existing shares are moved to the
+ * {@literal user} layout with {@link ShareLayoutMigration}, before switching the layout.
+ * <p>
+ * Shares found for a request URI are cached for {@code shareCacheTtl}, in a cache holding at most
+ * {@code shareCacheSize} entries (0 disables the cache). Shares created or removed through this service invalidate
+ * the cached entries immediately; changes made on other OpenIG instances are seen once the entries expire.
+ * <p>
+ * A share URI can be an exact path ({@literal /history/emp1}), a URI template where each {@literal {name}} segment
+ * matches any single path segment ({@literal /history/{accountId}}) or a path prefix ending with a {@literal *}
+ * segment ({@literal /history/*}). A request is protected by the share of its exact path if any, otherwise by the most
+ * specific matching template or prefix (see {@link ShareUriIndex}). Template and prefix shares are kept in memory, and
+ * reloaded from LDAP every {@code sharePatternRefresh} ({@literal unlimited} to only load them at startup). With the
+ * LDAP store, they are first loaded in the background, so that the service starts without waiting for the directory:
+ * until then, requests are only matched against exact share URIs.
+ * <p>
+ * Request URIs for which no share is found are remembered for {@code shareMissCacheTtl}, in a cache holding at most
+ * {@code shareMissCacheSize} entries (0 disables it), so that repeated requests for unshared paths are rejected
+ * without searching LDAP. When {@code shareUriFilter} is enabled, the URIs of all the shares are also loaded in a
+ * Bloom filter, reloaded every {@code sharePatternRefresh}: URIs unknown to the filter are then never searched in LDAP.
+ * Shares created on other OpenIG instances are only matched once the filter has been reloaded.
+ * <p>
+ * When {@code shareReplica} is enabled, all the shares stored under {@code ldapBaseDN} are loaded in memory at
+ * startup and kept in sync through an LDAP persistent search, so that shares created on other OpenIG instances are
+ * visible immediately. Lookups are then served from memory; LDAP is only searched while the replica is (re)built,
+ * for instance {@code shareReplicaRetryDelay} after the persistent search connection has been lost. The replica is
+ * built on a dedicated thread, waiting at most {@code shareReplicaConnectTimeout} for its connection.
+ * <p>
+ * RPT introspection results are cached, keyed by a hash of the token, in a cache holding at most
+ * {@code rptCacheSize} entries (0 disables it). Active tokens are cached until they expire, at most for
+ * {@code rptCacheMaxTtl}; inactive tokens are cached for {@code rptCacheNegativeTtl}. The owners of the PATs used
+ * on the share endpoint are cached for {@code patCacheTtl}, in a cache holding at most {@code patCacheSize} entries.
+ * <p>
+ * When {@code ticketCacheTtl} is set, the permission tickets issued for a resource set and set of scopes are reused
+ * for that duration (at most {@code ticketCacheSize} of them) instead of requesting a new ticket for every request
+ * without a valid RPT. It must be shorter than the ticket lifetime configured in the AS.
+ * <p>
+ * When {@code umaDiscovery} is enabled, the introspection, permission request and resource set endpoints are read
+ * from the {@literal .well-known/uma-configuration} document of the AS at startup, then again every
+ * {@code umaDiscoveryRefresh} ({@literal unlimited} to only read it at startup). Until the document has been read,
+ * and whenever it cannot be, the default OpenAM endpoints of the realm are used: requests never wait for discovery.
+ * <p>
+ * Calls to the introspection, permission request and resource set endpoints are each guarded by a
+ * {@link CircuitBreaker} configured by {@code authorizationServerBreaker}: at most {@code maxConcurrentCalls}
+ * concurrent calls per endpoint (0 for no limit), and no call at all for {@code openDuration} once
+ * {@code failureRateThreshold} of the last {@code windowSize} calls failed ({@literal 5xx} responses or calls longer
+ * than {@code slowCallDuration}). Cached introspection results are still served while a circuit is open.
+ * <p>
+ * The PAT of a user is stored once, in its own entry shared by all the shares of the user: each new share replaces it
+ * with the PAT used to create it. PATs are read from LDAP the first time one of their shares is used and kept in
+ * memory, then read again in the background every {@code patStoreTtl} to pick up PATs rotated by other OpenIG
+ * instances (see {@link PatStore}). Shares created before keep their own PAT.
+ * <p>
+ * Shares created with the {@literal refresh_token} of their PAT (and optionally its {@literal expires_in} lifetime)
+ * get their PAT refreshed in the background when {@code patRefresh} is enabled: every {@code patRefreshInterval},
+ * the PATs expiring within {@code patRefreshAhead} are refreshed at the token endpoint, at random times to spread the
+ * load, and the new tokens are written back to LDAP (see {@link PatRefresher}).
+ * <p>
  * Along with the {@code UmaService}, a REST endpoint is deployed in OpenIG's API namespace:
  * {@literal /openig/api/system/objects/../objects/[name-of-the-uma-service-object]/share}.
  * The dotted segment depends on your deployment (like which RouterHandler hosts the route that
- * in turns contains this object).
+ * in turns contains this object). A read-only {@literal monitoring} endpoint exposing the service statistics is
+ * deployed next to it.
  */
 public class UmaSharingServiceExt {
 
+    private static final Logger logger = LoggerFactory.getLogger(UmaSharingServiceExt.class);
+
     private final Handler protectionApiHandler;
     private final URI authorizationServer;
-    private final URI introspectionEndpoint;
-    private final URI ticketEndpoint;
-    private final URI resourceSetEndpoint;
+    private final AtomicReference<UmaEndpoints> endpoints;
+    private final URI configurationEndpoint;
+    private final AtomicLong discoveries = new AtomicLong();
+    private final AtomicLong discoveryFailures = new AtomicLong();
+    private volatile long lastDiscovery;
     private final String clientId;
     private final String clientSecret;
     private final String realm;
-    private LDAPManager ldapManager;
+    private final ShareStore shareStore;
+    private final BoundedCache<String, ShareExt> shareCache;
+    private final ShareReplica replica;
+    private final PatStore patStore;
+    private final BoundedCache<String, Boolean> missCache;
+    private final TokenIntrospectionCache introspectionCache;
+    private final TokenIntrospectionCache patCache;
+    private final ScopeRegistry scopeRegistry = new ScopeRegistry();
+    private final SingleFlight<String, TokenIntrospection, IOException> introspections = new SingleFlight<>();
+    private final SingleFlight<String, String, UmaException> ticketRequests = new SingleFlight<>();
+    private final BoundedCache<String, String> ticketCache;
+    private final CircuitBreaker introspectionBreaker;
+    private final CircuitBreaker ticketBreaker;
+    private final CircuitBreaker resourceSetBreaker;
+    private volatile ShareUriIndex patternIndex;
+    private volatile PatRefresher patRefresher;
+    private volatile ShareSnapshot snapshot;
+    private volatile BloomFilter knownUris;
+    private final Object knownUrisLock = new Object();
+    private List<String> urisCreatedWhileLoading;
+    private final AtomicLong knownUrisRejections = new AtomicLong();
 
 
     /**
@@ -113,6 +282,18 @@ public class UmaSharingServiceExt {
      * @param authorizationServerURI Bound UMA Authorization Server
      * @param clientId               OAuth 2.0 Client identifier
      * @param clientSecret           OAuth 2.0 Client secret
+     * @param shareStore             store of the shares and of their PATs
+     * @param shareCache             cache of the shares found for a request URI and user (can be {@code null})
+     * @param missCache              cache of the request URIs and users without any share (can be {@code null})
+     * @param introspectionCache     cache of the RPT introspection results (can be {@code null})
+     * @param patCache               cache of the PAT introspection results (can be {@code null})
+     * @param ticketCache            cache of the {@literal WWW-Authenticate} headers holding recently issued
+     *                               permission tickets (can be {@code null})
+     * @param introspectionBreaker   guards the calls to the introspection endpoint
+     * @param ticketBreaker          guards the calls to the permission request endpoint
+     * @param resourceSetBreaker     guards the calls to the resource set endpoint
+     * @param replica                in-memory replica of all the shares, used once ready (can be {@code null})
+     * @param patStore               resolves the PATs of the shares, stored once per user
      * @throws URISyntaxException when the authorization server URI cannot be "normalized" (trailing '/' append if required)
      */
     public UmaSharingServiceExt(final Handler protectionApiHandler,
@@ -120,19 +301,38 @@ public class UmaSharingServiceExt {
                                 final URI authorizationServerURI,
                                 final String clientId,
                                 final String clientSecret,
-                                final LDAPManager ldapManager)
+                                final ShareStore shareStore,
+                                final BoundedCache<String, ShareExt> shareCache,
+                                final BoundedCache<String, Boolean> missCache,
+                                final TokenIntrospectionCache introspectionCache,
+                                final TokenIntrospectionCache patCache,
+                                final BoundedCache<String, String> ticketCache,
+                                final CircuitBreaker introspectionBreaker,
+                                final CircuitBreaker ticketBreaker,
+                                final CircuitBreaker resourceSetBreaker,
+                                final ShareReplica replica,
+                                final PatStore patStore)
             throws URISyntaxException {
         this.protectionApiHandler = protectionApiHandler;
         this.authorizationServer = appendTrailingSlash(authorizationServerURI);
-        // TODO Should find theses values looking at the .well-known/uma-configuration endpoint
 
         this.realm = realm;
-        this.introspectionEndpoint = authorizationServer.resolve("oauth2" + realm + "/introspect");
-        this.ticketEndpoint = authorizationServer.resolve("uma" + realm + "/permission_request");
-        this.resourceSetEndpoint = authorizationServer.resolve("oauth2" + realm + "/resource_set");
+        // Used until the UMA configuration of the AS has been read, see discoverEndpoints()
+        this.endpoints = new AtomicReference<>(UmaEndpoints.defaults(authorizationServer, realm));
+        this.configurationEndpoint = authorizationServer.resolve("uma/.well-known/uma-configuration?realm=" + realm);
         this.clientId = clientId;
         this.clientSecret = clientSecret;
-        this.ldapManager = ldapManager;
+        this.shareStore = shareStore;
+        this.shareCache = shareCache;
+        this.missCache = missCache;
+        this.introspectionCache = introspectionCache;
+        this.patCache = patCache;
+        this.ticketCache = ticketCache;
+        this.introspectionBreaker = introspectionBreaker;
+        this.ticketBreaker = ticketBreaker;
+        this.resourceSetBreaker = resourceSetBreaker;
+        this.replica = replica;
+        this.patStore = patStore;
     }
 
     /**
@@ -164,62 +364,259 @@ public class UmaSharingServiceExt {
                                                        final CreateRequest createRequest, final String userId) {
         final String uri = createRequest.getContent().get("uri").asString();
         final String name = createRequest.getContent().get("name").asString();
-        String type = createRequest.getContent().get("type").asString();
-        List<Object> scopes = createRequest.getContent().get("scopes").asList();
+        final String type = createRequest.getContent().get("type").asString();
+        final List<Object> scopes = createRequest.getContent().get("scopes").asList();
+        // Optional, lets the PAT be refreshed in the background before it expires
+        final String refreshToken = createRequest.getContent().get("refresh_token").asString();
+        final Long expiresIn = createRequest.getContent().get("expires_in").asLong();
+        if (name == null || name.isEmpty() || uri == null || uri.isEmpty()) {
+            return newExceptionPromise(new UmaException("A share needs a name and a uri"));
+        }
 
         final String pat = OAuth2.getBearerAccessToken(((HttpContext) context.getParent()).getHeaderAsString("Authorization"));
+        final long patExpiresAt = patExpiresAt(pat, expiresIn);
 
-        if (isShared(name, uri, userId)) {
-            // We do not accept re-sharing or post-creation resource_set configuration
-            return newExceptionPromise(new UmaException(format("Share already exists with similar name: %s or uri: %s ", name, uri)));
-        }
+        return isShared(name, uri, userId)
+                .thenAsync(new AsyncFunction<Boolean, ShareExt, UmaException>() {
+                    @Override
+                    public Promise<ShareExt, UmaException> apply(final Boolean shared) {
+                        if (shared) {
+                            // We do not accept re-sharing or post-creation resource_set configuration
+                            return newExceptionPromise(new UmaException(format("Share already exists with similar name: %s or uri: %s ", name, uri)));
+                        }
+                        return registerShare(context, pat, refreshToken, patExpiresAt, name, uri, type, scopes, userId);
+                    }
+                });
+    }
 
+    /**
+     * Registers the resource set in the AS, then stores the resulting share in LDAP.
+     */
+    private Promise<ShareExt, UmaException> registerShare(final Context context,
+                                                          final String pat,
+                                                          final String refreshToken,
+                                                          final long patExpiresAt,
+                                                          final String name,
+                                                          final String uri,
+                                                          final String type,
+                                                          final List<Object> scopes,
+                                                          final String userId) {
         return createResourceSet(context, pat, resourceSet(name, scopes, type))
-                .then(new Function<Response, ShareExt, UmaException>() {
+                .thenAsync(new AsyncFunction<Response, ShareExt, UmaException>() {
                     @Override
-                    public ShareExt apply(final Response response) throws UmaException {
+                    public Promise<ShareExt, UmaException> apply(final Response response) throws UmaException {
                         if (response.getStatus() == Status.CREATED) {
+                            Map<String, String> value;
                             try {
-                                JsonValue value = json(response.getEntity().getJson());
-                                ShareExt share = new ShareExt(value.get("_id").asString(), name, pat, uri, value.get("user_access_policy_uri").asString(), userId, realm, clientId);
-                                ldapManager.addShare(share);
-                                return share;
+                                value = UmaJsonReader.readFields(response.getEntity(), "_id", "user_access_policy_uri");
                             } catch (IOException e) {
                                 throw new UmaException("Cannot register resource_set in OpenIG LDAP", e);
                             }
+                            final ShareExt share = new ShareExt(value.get("_id"), name, pat, uri, value.get("user_access_policy_uri"), userId, realm, clientId);
+                            // The PAT is stored once for all the shares of the user, and replaces the previous one
+                            return patStore.store(new SharedPat(userId, realm, clientId, pat, refreshToken, patExpiresAt))
+                                    .thenAsync(new AsyncFunction<SharedPat, ShareExt, LdapException>() {
+                                        @Override
+                                        public Promise<ShareExt, LdapException> apply(final SharedPat stored) {
+                                            share.setSharedPat(stored);
+                                            return shareStore.addShareAsync(share);
+                                        }
+                                    })
+                                    .thenOnResult(new ResultHandler<ShareExt>() {
+                                        @Override
+                                        public void handleResult(final ShareExt added) {
+                                            shareCreated(added);
+                                        }
+                                    })
+                                    .thenCatch(new Function<LdapException, ShareExt, UmaException>() {
+                                        @Override
+                                        public ShareExt apply(final LdapException e) throws UmaException {
+                                            throw new UmaException("Cannot register resource_set in OpenIG LDAP", e);
+                                        }
+                                    });
                         }
                         throw new UmaException("Cannot register resource_set in AS: " + response.getEntity());
                     }
-                }, Responses.<ShareExt, UmaException>noopExceptionFunction());
+                }, Responses.<ShareExt, UmaException>noopExceptionAsyncFunction());
     }
 
     /**
-     * Check the share already exists with same share name or URI for a given user / realm / OAuth Client
+     * Sets the refresher of the PATs of the shares, reported in the statistics.
      *
-     * @param name
-     * @param uri
-     * @param userId
-     * @return true if matching share exists; false otherwise
+     * @param patRefresher PAT refresher
      */
-    private boolean isShared(String name, String uri, String userId) {
-        try {
-            // Pass 1
-            ShareExt matchingShareExt = new ShareExt(name, null, userId, realm, clientId);
-            if (ldapManager.getShare(matchingShareExt).size() != 0) {
-                return true;
+    void setPatRefresher(final PatRefresher patRefresher) {
+        this.patRefresher = patRefresher;
+    }
+
+    /**
+     * Sets the snapshot serving the share lookups until caught up with the directory, and periodically rewritten by
+     * {@link #writeSnapshot()}.
+     *
+     * @param snapshot loaded share snapshot
+     */
+    void setSnapshot(final ShareSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Rewrites the share snapshot with the shares of the replica once ready, otherwise with the shares read from the
+     * share store, along with the PATs in memory. The first write without replica is also what catches the snapshot
+     * up with the directory: the lookups cached from shares since removed or modified are then invalidated.
+     *
+     * @throws LdapException if the shares cannot be read from the share store
+     * @throws IOException   if the snapshot cannot be written
+     */
+    void writeSnapshot() throws LdapException, IOException {
+        ShareSnapshot current = snapshot;
+        if (current == null) {
+            return;
+        }
+        final List<ShareExt> shares = new ArrayList<>();
+        ShareListener collector = new ShareListener() {
+            @Override
+            public void shareAdded(final ShareExt share) {
+                if (realm.equals(share.getRealm()) && clientId.equals(share.getClientId())) {
+                    shares.add(share);
+                }
             }
 
-            // Pass 2
-            matchingShareExt = new ShareExt(null, uri, userId, realm, clientId);
-            if (ldapManager.getShare(matchingShareExt).size() != 0) {
-                return true;
+            @Override
+            public void shareRemoved(final String shareId) {
+                // Not notified by a plain search
             }
+        };
+        if (replica != null && replica.isReady()) {
+            replica.list(null, collector);
+        } else {
+            shareStore.readAllShares(collector, 1000);
+        }
+        for (ShareExt stale : current.caughtUp(shares)) {
+            invalidateCachedShare(stale);
+        }
+        List<SharedPat> pats = new ArrayList<>();
+        for (SharedPat pat : patStore.pats()) {
+            if (realm.equals(pat.getRealm()) && clientId.equals(pat.getClientId())) {
+                pats.add(pat);
+            }
+        }
+        current.write(shares, pats);
+    }
 
-            //TODO Better option is to optimize LDAP filter for above search
-        } catch (LdapException e) {
-            return false;
+    /**
+     * Returns the expiration time of the given PAT: from its lifetime when given along with the share, otherwise from
+     * its introspection by the share endpoint, if cached.
+     *
+     * @return the PAT expiration time, in milliseconds since the epoch, {@code 0} if unknown
+     */
+    private long patExpiresAt(final String pat, final Long expiresIn) {
+        if (expiresIn != null) {
+            return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expiresIn);
+        }
+        TokenIntrospection introspection = patCache != null && pat != null ? patCache.get(pat) : null;
+        return introspection != null ? introspection.getExpiresAt() : 0L;
+    }
+
+    /**
+     * Refreshes the given PAT with its refresh token, then stores the new tokens in LDAP and in memory, so that the
+     * next permission tickets of all the shares of its user are requested with the new PAT.
+     *
+     * @param pat PAT holding a refresh token, read from LDAP
+     * @return a promise completed with {@code true} if the PAT has been refreshed and stored
+     */
+    Promise<Boolean, NeverThrowsException> refreshPat(final SharedPat pat) {
+        Request request = new Request();
+        request.setMethod("POST");
+        request.setUri(endpoints.get().getToken());
+        request.getHeaders().put("Accept", "application/json");
+
+        Form form = new Form();
+        form.putSingle("grant_type", "refresh_token");
+        form.putSingle("refresh_token", pat.getRefreshToken());
+        form.putSingle("client_id", clientId);
+        form.putSingle("client_secret", clientSecret);
+        form.toRequestEntity(request);
+
+        return protectionApiHandler.handle(new RootContext(), request)
+                .then(new Function<Response, Map<String, String>, NeverThrowsException>() {
+                    @Override
+                    public Map<String, String> apply(final Response response) {
+                        try {
+                            if (Status.OK != response.getStatus()) {
+                                logger.warn("Got a {} Response while refreshing the PAT of user {}",
+                                        response.getStatus(), pat.getUserId());
+                                return null;
+                            }
+                            return UmaJsonReader.readFields(response.getEntity(),
+                                    "access_token", "refresh_token", "expires_in");
+                        } catch (IOException e) {
+                            logger.warn("Cannot read the refreshed PAT of user {}", pat.getUserId(), e);
+                            return null;
+                        } finally {
+                            closeSilently(response);
+                        }
+                    }
+                })
+                .thenAsync(new AsyncFunction<Map<String, String>, Boolean, NeverThrowsException>() {
+                    @Override
+                    public Promise<Boolean, NeverThrowsException> apply(final Map<String, String> tokens) {
+                        if (tokens == null || tokens.get("access_token") == null) {
+                            return newResultPromise(false);
+                        }
+                        // The AS may keep the same refresh token
+                        SharedPat rotated = new SharedPat(pat.getUserId(), pat.getRealm(), pat.getClientId(),
+                                tokens.get("access_token"),
+                                tokens.get("refresh_token") != null ? tokens.get("refresh_token") : pat.getRefreshToken(),
+                                expiresAt(tokens.get("expires_in")));
+                        return patStore.rotate(pat, rotated)
+                                .then(new Function<Void, Boolean, NeverThrowsException>() {
+                                    @Override
+                                    public Boolean apply(final Void ignored) {
+                                        return true;
+                                    }
+                                }, new Function<LdapException, Boolean, NeverThrowsException>() {
+                                    @Override
+                                    public Boolean apply(final LdapException e) {
+                                        if (ResultCode.NO_SUCH_ATTRIBUTE.equals(e.getResult().getResultCode())) {
+                                            logger.debug("PAT of user {} already refreshed", pat.getUserId());
+                                        } else {
+                                            logger.warn("Cannot store the refreshed PAT of user {}", pat.getUserId(), e);
+                                        }
+                                        return false;
+                                    }
+                                });
+                    }
+                });
+    }
+
+    private static long expiresAt(final String expiresIn) {
+        if (expiresIn == null) {
+            return 0L;
+        }
+        try {
+            return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Long.parseLong(expiresIn));
+        } catch (NumberFormatException e) {
+            return 0L;
         }
-        return false;
+    }
+
+    /**
+     * Check the share already exists with same share name or URI for a given user / realm / OAuth Client. Both
+     * criteria are checked with a single LDAP search.
+     *
+     * @param name
+     * @param uri
+     * @param userId
+     * @return true if matching share exists; false otherwise
+     */
+    private Promise<Boolean, UmaException> isShared(String name, String uri, String userId) {
+        return shareStore.isSharedAsync(new ShareExt(name, uri, userId, realm, clientId))
+                .thenCatch(new Function<LdapException, Boolean, UmaException>() {
+                    @Override
+                    public Boolean apply(final LdapException e) {
+                        return false;
+                    }
+                });
     }
 
     private Promise<Response, NeverThrowsException> createResourceSet(final Context context,
@@ -227,13 +624,13 @@ public class UmaSharingServiceExt {
                                                                       final JsonValue data) {
         Request request = new Request();
         request.setMethod("POST");
-        request.setUri(resourceSetEndpoint);
+        request.setUri(endpoints.get().getResourceSet());
         request.getHeaders().put("Authorization", format("Bearer %s", pat));
         request.getHeaders().put("Accept", "application/json");
 
         request.setEntity(data.asMap());
 
-        return protectionApiHandler.handle(context, request);
+        return resourceSetBreaker.handle(protectionApiHandler, context, request);
     }
 
     private JsonValue resourceSet(final String name, final List<Object> scopes, final String type) {
@@ -249,30 +646,342 @@ public class UmaSharingServiceExt {
      * @throws UmaException when no {@link ShareExt} can handle the request.
      */
     public ShareExt findShare(Request request) throws UmaException {
+        return findShareAsync(request).getOrThrowUninterruptibly();
+    }
+
+    /**
+     * Find a {@link ShareExt} without blocking the calling thread.
+     *
+     * @param request the incoming requesting party request
+     * @return a promise completed with the {@link ShareExt} to be used to protect the resource access, or failed with
+     * an {@link UmaException} when no {@link ShareExt} can handle the request.
+     */
+    public Promise<ShareExt, UmaException> findShareAsync(Request request) {
+        return findShareAsync(request, Long.MAX_VALUE);
+    }
+
+    /**
+     * Find a {@link ShareExt} without blocking the calling thread, abandoning the directory search if still running
+     * after {@code timeoutMillis}.
+     *
+     * @param request       the incoming requesting party request
+     * @param timeoutMillis time allowed to search the directory, in milliseconds, {@link Long#MAX_VALUE} for no limit
+     * @return a promise completed with the {@link ShareExt} to be used to protect the resource access, or failed with
+     * an {@link UmaException} when no {@link ShareExt} can handle the request. The exception cause is the
+     * {@link LdapException} when the directory could not be searched.
+     */
+    public Promise<ShareExt, UmaException> findShareAsync(Request request, final long timeoutMillis) {
+        return resolvePat(lookupShareAsync(request, timeoutMillis));
+    }
+
+    private Promise<ShareExt, UmaException> lookupShareAsync(Request request, final long timeoutMillis) {
 
         // Need to find which Share to use
-        String requestURI = request.getUri().getPath();
+        final String requestURI = request.getUri().getPath();
 
         // Check if userId header is present
         Header userIdHeader = request.getHeaders().get("userId");
-        String userId = null;
-        if (null != userIdHeader) {
-            userId = userIdHeader.getFirstValue();
+        final String userId = null != userIdHeader ? userIdHeader.getFirstValue() : null;
+
+        ShareSnapshot warm = snapshot;
+        if (replica != null && replica.isReady()) {
+            if (warm != null) {
+                warm.caughtUp();
+            }
+            try {
+                return newResultPromise(selectShare(replica.find(requestURI, userId), requestURI));
+            } catch (UmaException e) {
+                return newExceptionPromise(e);
+            }
+        }
+
+        final String cacheKey = shareCacheKey(requestURI, userId);
+        if (shareCache != null) {
+            ShareExt cached = shareCache.get(cacheKey);
+            if (cached != null) {
+                return newResultPromise(cached);
+            }
+        }
+        if (missCache != null && missCache.get(cacheKey) != null) {
+            return newExceptionPromise(noShareFound(requestURI));
+        }
+
+        if (warm != null) {
+            // Until caught up with the directory: missing or ambiguous shares may have been created or removed since
+            List<ShareExt> shares = warm.find(requestURI, userId);
+            if (shares.size() == 1) {
+                ShareExt share = shares.get(0);
+                if (shareCache != null) {
+                    shareCache.put(cacheKey, share);
+                }
+                return newResultPromise(share);
+            }
+        }
+
+        BloomFilter uris = knownUris;
+        if (uris != null && !uris.mightContain(requestURI)) {
+            // No share is registered for this exact URI: only templates and prefixes can match
+            knownUrisRejections.incrementAndGet();
+            try {
+                return newResultPromise(resolveShare(Collections.<ShareExt>emptySet(), requestURI, userId, cacheKey));
+            } catch (UmaException e) {
+                return newExceptionPromise(e);
+            }
         }
 
         ShareExt matchShareExt = new ShareExt(null, requestURI, userId, realm, clientId);
 
+        // 2 entries are enough to detect an ambiguous request
+        return shareStore.getShareAsync(matchShareExt, 2, timeoutMillis, LDAPManager.LOOKUP_ATTRIBUTES)
+                .then(new Function<Set<ShareExt>, ShareExt, UmaException>() {
+                    @Override
+                    public ShareExt apply(final Set<ShareExt> shares) throws UmaException {
+                        return resolveShare(shares, requestURI, userId, cacheKey);
+                    }
+                }, new Function<LdapException, ShareExt, UmaException>() {
+                    @Override
+                    public ShareExt apply(final LdapException e) throws UmaException {
+                        throw new UmaException(format("Can't find any shared resource for %s", requestURI), e);
+                    }
+                });
+    }
+
+    /**
+     * Sets the PAT of the found share, if any, see {@link PatStore}.
+     *
+     * @param found promise of the found share
+     * @return a promise completed with the found share, holding its PAT
+     */
+    private Promise<ShareExt, UmaException> resolvePat(final Promise<ShareExt, UmaException> found) {
+        return found.thenAsync(new AsyncFunction<ShareExt, ShareExt, UmaException>() {
+            @Override
+            public Promise<ShareExt, UmaException> apply(final ShareExt share) {
+                if (share == null) {
+                    return newResultPromise(null);
+                }
+                return patStore.resolve(share)
+                        .thenCatch(new Function<LdapException, ShareExt, UmaException>() {
+                            @Override
+                            public ShareExt apply(final LdapException e) throws UmaException {
+                                throw new UmaException(format("Cannot read the PAT of share %s from OpenIG LDAP",
+                                        share.getId()), e);
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * Selects the share protecting a request URI, given the shares registered for that exact URI, and caches the
+     * outcome.
+     *
+     * @param shares     shares registered for the exact request URI
+     * @param requestURI request path
+     * @param userId     owner of the share, or {@code null} to match any user
+     * @param cacheKey   key of the lookup in the share and miss caches
+     * @return the only share found
+     * @throws UmaException if no share, or more than one, were found
+     */
+    private ShareExt resolveShare(final Collection<ShareExt> shares,
+                                  final String requestURI,
+                                  final String userId,
+                                  final String cacheKey) throws UmaException {
+        // An exact URI match always wins over templates and prefixes
+        Collection<ShareExt> candidates = shares.isEmpty() ? findPatternShares(requestURI, userId) : shares;
+        if (candidates.isEmpty() && missCache != null) {
+            missCache.put(cacheKey, Boolean.TRUE);
+        }
+        ShareExt share = selectShare(candidates, requestURI);
+        if (shareCache != null) {
+            shareCache.put(cacheKey, share);
+        }
+        return share;
+    }
+
+    /**
+     * Finds the template or prefix shares matching the given request URI, most specific first.
+     *
+     * @param requestURI request path
+     * @param userId     owner of the share, or {@code null} to match any user
+     * @return the shares of the most specific matching template or prefix
+     */
+    private List<ShareExt> findPatternShares(final String requestURI, final String userId) {
+        ShareUriIndex index = patternIndex;
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        return index.match(requestURI, new ShareUriIndex.Selector() {
+            @Override
+            public boolean accept(final ShareExt share) {
+                return (userId == null || userId.equals(share.getUserId()))
+                        && realm.equals(share.getRealm())
+                        && clientId.equals(share.getClientId());
+            }
+        });
+    }
+
+    /**
+     * Loads (or reloads) the template and prefix shares from LDAP. Until first loaded, requests are only matched
+     * against exact share URIs.
+     *
+     * @throws LdapException if the shares cannot be read
+     */
+    void loadPatternShares() throws LdapException {
+        final ShareUriIndex index = new ShareUriIndex();
+        shareStore.readPatternShares(new ShareListener() {
+            @Override
+            public void shareAdded(final ShareExt share) {
+                index.add(share);
+            }
+
+            @Override
+            public void shareRemoved(final String shareId) {
+                // Not notified by a plain search
+            }
+        }, 1000);
+        patternIndex = index;
+    }
+
+    /**
+     * Loads (or reloads) the URIs of all the shares in a Bloom filter. Once loaded, request URIs unknown to the filter
+     * are not searched in LDAP anymore.
+     *
+     * @throws LdapException if the share URIs cannot be read
+     */
+    void loadKnownUris() throws LdapException {
+        synchronized (knownUrisLock) {
+            urisCreatedWhileLoading = new ArrayList<>();
+        }
+        final List<String> uris = new ArrayList<>();
         try {
-            Set<ShareExt> shares = ldapManager.getShare(matchShareExt);
-            if (shares.size() == 1) {
-                return shares.iterator().next();
-            } else if (shares.size() > 1) {
-                throw new UmaException(format("More than 1 shared resource found for %s, Need more context such as 'userId' to locate resource", requestURI));
+            shareStore.readShareUris(new ShareListener() {
+                @Override
+                public void shareAdded(final ShareExt share) {
+                    if (share.getRequestURI() != null) {
+                        uris.add(share.getRequestURI());
+                    }
+                }
+
+                @Override
+                public void shareRemoved(final String shareId) {
+                    // Not notified by a plain search
+                }
+            }, 1000);
+            // Leave room for the shares created until the next reload
+            BloomFilter filter = new BloomFilter(Math.max(1024, 2 * uris.size()), 0.01);
+            for (String uri : uris) {
+                filter.add(uri);
+            }
+            synchronized (knownUrisLock) {
+                for (String uri : urisCreatedWhileLoading) {
+                    filter.add(uri);
+                }
+                knownUris = filter;
+            }
+        } finally {
+            synchronized (knownUrisLock) {
+                urisCreatedWhileLoading = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the only share found for a request URI.
+     *
+     * @param shares     shares found for the request URI
+     * @param requestURI request URI
+     * @return the only share found
+     * @throws UmaException if no share, or more than one, were found
+     */
+    private static ShareExt selectShare(final Collection<ShareExt> shares, final String requestURI)
+            throws UmaException {
+        if (shares.size() == 1) {
+            return shares.iterator().next();
+        } else if (shares.size() > 1) {
+            throw new UmaException(format("More than 1 shared resource found for %s, Need more context such as 'userId' to locate resource", requestURI));
+        }
+        throw noShareFound(requestURI);
+    }
+
+    private static UmaException noShareFound(final String requestURI) {
+        return new UmaException(format("Can't find any shared resource for %s", requestURI));
+    }
+
+    /**
+     * Applies a share created through this service to the local replica, without waiting for the persistent search
+     * notification, and invalidates the cached lookups.
+     *
+     * @param share created share
+     */
+    private void shareCreated(final ShareExt share) {
+        if (replica != null) {
+            replica.shareAdded(share);
+        }
+        ShareSnapshot warm = snapshot;
+        if (warm != null) {
+            warm.shareAdded(share);
+        }
+        ShareUriIndex index = patternIndex;
+        if (index != null && ShareUriIndex.isPattern(share.getRequestURI())) {
+            index.add(share);
+        }
+        synchronized (knownUrisLock) {
+            if (knownUris != null) {
+                knownUris.add(share.getRequestURI());
+            }
+            if (urisCreatedWhileLoading != null) {
+                urisCreatedWhileLoading.add(share.getRequestURI());
             }
-        } catch (LdapException e) {
-            throw new UmaException(format("Can't find any shared resource for %s", requestURI));
         }
-        throw new UmaException(format("Can't find any shared resource for %s", requestURI));
+        invalidateCachedShare(share);
+    }
+
+    /**
+     * Applies a share removed through this service to the local replica, without waiting for the persistent search
+     * notification, and invalidates the cached lookups.
+     *
+     * @param share removed share
+     */
+    private void shareRemoved(final ShareExt share) {
+        if (replica != null) {
+            replica.shareRemoved(share.getId());
+        }
+        ShareSnapshot warm = snapshot;
+        if (warm != null) {
+            warm.shareRemoved(share.getId());
+        }
+        ShareUriIndex index = patternIndex;
+        if (index != null && ShareUriIndex.isPattern(share.getRequestURI())) {
+            index.remove(share);
+        }
+        invalidateCachedShare(share);
+    }
+
+    /**
+     * Forgets the cached lookups that may resolve to the given share, that became ambiguous because of it, or that
+     * found no share. A template or prefix share may match any cached request URI: the whole caches are then cleared.
+     *
+     * @param share created or removed share
+     */
+    private void invalidateCachedShare(final ShareExt share) {
+        invalidate(shareCache, share);
+        invalidate(missCache, share);
+    }
+
+    private static void invalidate(final BoundedCache<String, ?> cache, final ShareExt share) {
+        if (cache == null) {
+            return;
+        }
+        if (ShareUriIndex.isPattern(share.getRequestURI())) {
+            cache.invalidateAll();
+        } else {
+            cache.invalidate(shareCacheKey(share.getRequestURI(), share.getUserId()));
+            cache.invalidate(shareCacheKey(share.getRequestURI(), null));
+        }
+    }
+
+    private static String shareCacheKey(final String requestURI, final String userId) {
+        return userId == null ? requestURI : requestURI + '\u0000' + userId;
     }
 
     /**
@@ -288,7 +997,8 @@ public class UmaSharingServiceExt {
             ShareExt shareExt = getShare(shareId, userId);
 
             if (null != shareExt) {
-                ldapManager.removeShare(shareId);
+                shareStore.removeShare(shareExt);
+                shareRemoved(shareExt);
             }
             return shareExt;
         } catch (LdapException e) {
@@ -297,6 +1007,38 @@ public class UmaSharingServiceExt {
 
     }
 
+    /**
+     * Removes the previously created Share from the registered shares, without blocking the calling thread.
+     *
+     * @param shareId share identifier
+     * @param userId  owner of the share
+     * @return a promise completed with the removed Share instance if found, {@code null} otherwise.
+     */
+    public Promise<ShareExt, UmaException> removeShareAsync(final String shareId, final String userId) {
+        return getShareAsync(shareId, userId)
+                .thenAsync(new AsyncFunction<ShareExt, ShareExt, UmaException>() {
+                    @Override
+                    public Promise<ShareExt, UmaException> apply(final ShareExt share) {
+                        if (null == share) {
+                            return Promises.<ShareExt, UmaException>newResultPromise(null);
+                        }
+                        return shareStore.removeShareAsync(share)
+                                .then(new Function<Void, ShareExt, UmaException>() {
+                                    @Override
+                                    public ShareExt apply(final Void ignored) {
+                                        shareRemoved(share);
+                                        return share;
+                                    }
+                                }, new Function<LdapException, ShareExt, UmaException>() {
+                                    @Override
+                                    public ShareExt apply(final LdapException e) throws UmaException {
+                                        throw new UmaException(format("Cannot remove share %s from OpenIG LDAP", shareId), e);
+                                    }
+                                });
+                    }
+                });
+    }
+
     /**
      * Returns the {@link ShareExt} with the given {@code id}.
      *
@@ -304,11 +1046,15 @@ public class UmaSharingServiceExt {
      * @return the {@link ShareExt} with the given {@code id} (or {@code null} if none was found).
      */
     public ShareExt getShare(final String shareId, final String userId) {
+        if (replica != null && replica.isReady()) {
+            return replica.get(shareId, userId);
+        }
+
         ShareExt matchShareExt = new ShareExt(null, null, userId, realm, clientId);
         matchShareExt.setId(shareId);
 
         try {
-            Set<ShareExt> shares = ldapManager.getShare(matchShareExt);
+            Set<ShareExt> shares = shareStore.getShare(matchShareExt, 1, LDAPManager.ALL_ATTRIBUTES);
             if (shares.size() != 0) {
                 return shares.iterator().next();
             }
@@ -318,22 +1064,179 @@ public class UmaSharingServiceExt {
         return null;
     }
 
+    /**
+     * Returns the {@link ShareExt} with the given {@code id}, without blocking the calling thread.
+     *
+     * @param shareId Share identifier
+     * @param userId  owner of the share
+     * @return a promise completed with the {@link ShareExt} with the given {@code id} (or {@code null} if none was
+     * found).
+     */
+    public Promise<ShareExt, UmaException> getShareAsync(final String shareId, final String userId) {
+        if (replica != null && replica.isReady()) {
+            return resolvePat(Promises.<ShareExt, UmaException>newResultPromise(replica.get(shareId, userId)));
+        }
+
+        ShareExt matchShareExt = new ShareExt(null, null, userId, realm, clientId);
+        matchShareExt.setId(shareId);
+
+        return resolvePat(shareStore.getShareAsync(matchShareExt, 1, Long.MAX_VALUE, LDAPManager.ALL_ATTRIBUTES)
+                .then(new Function<Set<ShareExt>, ShareExt, UmaException>() {
+                    @Override
+                    public ShareExt apply(final Set<ShareExt> shares) {
+                        return shares.isEmpty() ? null : shares.iterator().next();
+                    }
+                }, new Function<LdapException, ShareExt, UmaException>() {
+                    @Override
+                    public ShareExt apply(final LdapException e) throws UmaException {
+                        throw new UmaException(format("Cannot read share %s from OpenIG LDAP", shareId), e);
+                    }
+                }));
+    }
+
     /**
      * Returns a copy of the list of currently managed shares.
      *
      * @return a copy of the list of currently managed shares.
      */
     public Set<ShareExt> listShares(String userId) {
+        if (replica != null && replica.isReady()) {
+            return replica.list(userId);
+        }
 
         ShareExt matchShareExt = new ShareExt(null, null, userId, realm, clientId);
 
         try {
-            return ldapManager.getShare(matchShareExt);
+            return shareStore.getShare(matchShareExt, 0, LDAPManager.ALL_ATTRIBUTES);
         } catch (LdapException e) {
             return Collections.EMPTY_SET;
         }
     }
 
+    /**
+     * Streams the shares of the given user matching the query filter to the listener, one page at a time when a page
+     * size is given. Filtering, sorting and paging are performed by LDAP (see {@link ShareQueryFilterVisitor}); only
+     * unfiltered, unsorted and unpaged queries are served by the replica when ready.
+     *
+     * @param userId             owner of the shares
+     * @param queryFilter        CREST query filter the shares must match
+     * @param sortKeys           keys to sort the shares on, may be {@code null}
+     * @param pageSize           number of shares per page, {@code 0} to return all the shares at once
+     * @param pagedResultsCookie cookie returned with the previous page, {@code null} for the first page
+     * @param listener           receives every share found
+     * @return a promise completed with the cookie of the next page and the estimated number of shares
+     * @throws IllegalArgumentException if the filter or sort keys use an unsupported field or operator, or if the
+     *                                  cookie is not one returned by a previous query
+     */
+    public Promise<SharePage, UmaException> queryShares(final String userId,
+                                                        final QueryFilter<JsonPointer> queryFilter,
+                                                        final List<SortKey> sortKeys,
+                                                        final int pageSize,
+                                                        final String pagedResultsCookie,
+                                                        final ShareListener listener) {
+        final boolean unfiltered = QueryFilter.<JsonPointer>alwaysTrue().equals(queryFilter);
+        final boolean fromReplica = unfiltered && (sortKeys == null || sortKeys.isEmpty()) && pageSize <= 0
+                && replica != null && replica.isReady();
+
+        // The query filter is always combined with the user, realm and client scope of the caller
+        final Filter filter = unfiltered ? null : ShareQueryFilterVisitor.toLdapFilter(queryFilter);
+        final List<org.forgerock.opendj.ldap.SortKey> ldapSortKeys = ShareQueryFilterVisitor.toLdapSortKeys(sortKeys);
+        final ByteString cookie = pagedResultsCookie != null ? ByteString.valueOfBase64(pagedResultsCookie) : null;
+        final ShareExt matchShareExt = new ShareExt(null, null, userId, realm, clientId);
+
+        // All the shares of the user use the same PAT: it is read once, before streaming the shares
+        return patStore.get(SharedPat.id(userId, realm, clientId))
+                .thenAsync(new AsyncFunction<SharedPat, SharePage, LdapException>() {
+                    @Override
+                    public Promise<SharePage, LdapException> apply(final SharedPat pat) {
+                        ShareListener resolver = new ShareListener() {
+                            @Override
+                            public void shareAdded(final ShareExt share) {
+                                if (pat != null && pat.getId().equals(share.getPatId())) {
+                                    share.setSharedPat(pat);
+                                }
+                                listener.shareAdded(share);
+                            }
+
+                            @Override
+                            public void shareRemoved(final String shareId) {
+                                listener.shareRemoved(shareId);
+                            }
+                        };
+                        if (fromReplica) {
+                            replica.list(userId, resolver);
+                            return newResultPromise(new SharePage(null, -1));
+                        }
+                        return shareStore.streamSharesAsync(matchShareExt, filter, ldapSortKeys,
+                                Math.max(0, pageSize), cookie, resolver);
+                    }
+                })
+                .thenCatch(new Function<LdapException, SharePage, UmaException>() {
+                    @Override
+                    public SharePage apply(final LdapException e) throws UmaException {
+                        throw new UmaException("Cannot query shares from OpenIG LDAP", e);
+                    }
+                });
+    }
+
+    /**
+     * Introspects the given token, using and filling the given cache when possible. Concurrent introspections of the
+     * same token share one call to the introspection endpoint.
+     *
+     * @param context Context chain used to keep a relationship between requests (tracking)
+     * @param handler handler used to call the introspection endpoint
+     * @param token   token to introspect
+     * @param cache   cache of introspection results (can be {@code null})
+     * @return the introspection result, or {@code null} if the introspection endpoint did not answer with
+     * {@literal 200 OK}
+     */
+    Promise<TokenIntrospection, IOException> introspectToken(final Context context,
+                                                             final Handler handler,
+                                                             final String token,
+                                                             final TokenIntrospectionCache cache) {
+        if (cache != null) {
+            TokenIntrospection cached = cache.get(token);
+            if (cached != null) {
+                return newResultPromise(cached);
+            }
+        }
+        return introspections.execute(token, new AsyncFunction<String, TokenIntrospection, IOException>() {
+            @Override
+            public Promise<TokenIntrospection, IOException> apply(final String token) {
+                Request request = new Request();
+                request.setUri(endpoints.get().getIntrospection());
+                request.getHeaders().put("Accept", "application/json");
+
+                Form query = new Form();
+                query.putSingle("token", token);
+                query.putSingle("client_id", clientId);
+                query.putSingle("client_secret", clientSecret);
+                query.toRequestEntity(request);
+
+                return introspectionBreaker.handle(handler, context, request)
+                        .then(new Function<Response, TokenIntrospection, IOException>() {
+                            @Override
+                            public TokenIntrospection apply(final Response response) throws IOException {
+                                try {
+                                    if (Status.OK != response.getStatus()) {
+                                        // Not cached, the failure may be transient
+                                        return null;
+                                    }
+                                    TokenIntrospection introspection =
+                                            UmaJsonReader.readIntrospection(response.getEntity());
+                                    if (cache != null) {
+                                        cache.put(token, introspection);
+                                    }
+                                    return introspection;
+                                } finally {
+                                    closeSilently(response);
+                                }
+                            }
+                        });
+            }
+        });
+    }
+
     /**
      * Returns the UMA authorization server base Uri.
      *
@@ -349,7 +1252,7 @@ public class UmaSharingServiceExt {
      * @return the UMA Permission Request endpoint Uri.
      */
     public URI getTicketEndpoint() {
-        return ticketEndpoint;
+        return endpoints.get().getTicket();
     }
 
     /**
@@ -358,7 +1261,56 @@ public class UmaSharingServiceExt {
      * @return the OAuth 2.0 Introspection endpoint Uri.
      */
     public URI getIntrospectionEndpoint() {
-        return introspectionEndpoint;
+        return endpoints.get().getIntrospection();
+    }
+
+    /**
+     * Reads the UMA configuration document of the authorization server and swaps the endpoints it advertises in.
+     * Requests keep using the current endpoints meanwhile, and if the document cannot be read.
+     *
+     * @return a promise completed with the endpoints in use once the document has been read
+     */
+    Promise<UmaEndpoints, NeverThrowsException> discoverEndpoints() {
+        Request request = new Request();
+        request.setMethod("GET");
+        request.setUri(configurationEndpoint);
+        request.getHeaders().put("Accept", "application/json");
+
+        return protectionApiHandler.handle(new RootContext(), request)
+                .then(new Function<Response, UmaEndpoints, NeverThrowsException>() {
+                    @Override
+                    public UmaEndpoints apply(final Response response) {
+                        try {
+                            if (Status.OK != response.getStatus()) {
+                                discoveryFailures.incrementAndGet();
+                                logger.warn("Got a {} Response from '{}', keeping the UMA endpoints {}",
+                                        response.getStatus(), configurationEndpoint, endpoints.get());
+                                return endpoints.get();
+                            }
+                            Map<String, String> configuration = UmaJsonReader.readFields(response.getEntity(),
+                                    UmaEndpoints.INTROSPECTION,
+                                    UmaEndpoints.PERMISSION_REGISTRATION,
+                                    UmaEndpoints.RESOURCE_SET_REGISTRATION,
+                                    UmaEndpoints.TOKEN);
+                            UmaEndpoints current = endpoints.get();
+                            UmaEndpoints discovered = current.withConfiguration(configuration);
+                            endpoints.set(discovered);
+                            discoveries.incrementAndGet();
+                            lastDiscovery = System.currentTimeMillis();
+                            if (!discovered.equals(current)) {
+                                logger.info("Using the UMA endpoints {}", discovered);
+                            }
+                            return discovered;
+                        } catch (IOException | IllegalArgumentException e) {
+                            discoveryFailures.incrementAndGet();
+                            logger.warn("Cannot read the UMA configuration from '{}', keeping the UMA endpoints {}",
+                                    configurationEndpoint, endpoints.get(), e);
+                            return endpoints.get();
+                        } finally {
+                            closeSilently(response);
+                        }
+                    }
+                });
     }
 
     /**
@@ -383,6 +1335,119 @@ public class UmaSharingServiceExt {
         return protectionApiHandler;
     }
 
+    /**
+     * Returns the registry of the scopes of this realm, shared by the scope policies of all the filters using this
+     * service.
+     *
+     * @return the scope registry of this realm
+     */
+    ScopeRegistry getScopeRegistry() {
+        return scopeRegistry;
+    }
+
+    /**
+     * Returns the cache of RPT introspection results, shared by all the filters using this service.
+     *
+     * @return the cache of RPT introspection results, or {@code null} if disabled
+     */
+    TokenIntrospectionCache getIntrospectionCache() {
+        return introspectionCache;
+    }
+
+    /**
+     * Returns the cache of PAT introspection results, used by the share endpoint.
+     *
+     * @return the cache of PAT introspection results, or {@code null} if disabled
+     */
+    TokenIntrospectionCache getPatCache() {
+        return patCache;
+    }
+
+    /**
+     * Returns the permission ticket requests in flight, so that concurrent requests for the same permission share
+     * one ticket.
+     *
+     * @return the permission ticket requests in flight, keyed by realm, resource set, scopes and PAT, completed with
+     * the {@literal WWW-Authenticate} header to return
+     */
+    SingleFlight<String, String, UmaException> getTicketRequests() {
+        return ticketRequests;
+    }
+
+    /**
+     * Returns the circuit breaker guarding the calls to the permission request endpoint.
+     *
+     * @return the permission request endpoint circuit breaker
+     */
+    CircuitBreaker getTicketBreaker() {
+        return ticketBreaker;
+    }
+
+    /**
+     * Returns the cache of the {@literal WWW-Authenticate} headers holding recently issued permission tickets.
+     *
+     * @return the cache of recently issued permission tickets, keyed by realm, resource set and scopes, or
+     * {@code null} if disabled
+     */
+    BoundedCache<String, String> getTicketCache() {
+        return ticketCache;
+    }
+
+    /**
+     * Returns the runtime statistics of this service: LDAP connection pool usage and cache counters.
+     *
+     * @return the runtime statistics of this service.
+     */
+    public JsonValue getStatistics() {
+        JsonValue statistics = json(object(field("store", shareStore.getStatistics().getObject())));
+        if (shareCache != null) {
+            statistics.put("shareCache", shareCache.getStatistics().getObject());
+        }
+        if (missCache != null) {
+            statistics.put("missCache", missCache.getStatistics().getObject());
+        }
+        if (introspectionCache != null) {
+            statistics.put("rptCache", introspectionCache.getStatistics().getObject());
+        }
+        if (patCache != null) {
+            statistics.put("patCache", patCache.getStatistics().getObject());
+        }
+        statistics.put("introspections", introspections.getStatistics().getObject());
+        statistics.put("ticketRequests", ticketRequests.getStatistics().getObject());
+        statistics.put("scopes", scopeRegistry.size());
+        statistics.put("discovery", object(
+                field("endpoints", endpoints.get().toJson().getObject()),
+                field("refreshes", discoveries.get()),
+                field("failures", discoveryFailures.get()),
+                field("lastRefresh", lastDiscovery)));
+        statistics.put("introspectionBreaker", introspectionBreaker.getStatistics().getObject());
+        statistics.put("ticketBreaker", ticketBreaker.getStatistics().getObject());
+        statistics.put("resourceSetBreaker", resourceSetBreaker.getStatistics().getObject());
+        if (ticketCache != null) {
+            statistics.put("ticketCache", ticketCache.getStatistics().getObject());
+        }
+        BloomFilter uris = knownUris;
+        if (uris != null) {
+            statistics.put("shareUriFilter", object(
+                    field("size", uris.size()),
+                    field("bits", uris.bitCount()),
+                    field("rejections", knownUrisRejections.get())));
+        }
+        if (replica != null) {
+            statistics.put("replica", replica.getStatistics().getObject());
+        }
+        statistics.put("pats", patStore.getStatistics().getObject());
+        ShareSnapshot warm = snapshot;
+        if (warm != null) {
+            statistics.put("snapshot", warm.getStatistics().getObject());
+        }
+        PatRefresher refresher = patRefresher;
+        if (refresher != null) {
+            statistics.put("patRefresh", refresher.getStatistics().getObject());
+        }
+        return statistics;
+    }
+
 
     /**
      * Creates and initializes an UMA service in a heap environment.
@@ -391,6 +1456,15 @@ public class UmaSharingServiceExt {
 
         private static final Logger logger = LoggerFactory.getLogger(UmaSharingServiceExt.Heaplet.class);
 
+        private ShareStore shareStore;
+        private LDAPManager ldapManager;
+        private ShareReplica replica;
+        private ScheduledExecutorService replicaExecutor;
+        private ScheduledFuture<?> patternRefresh;
+        private ScheduledFuture<?> discoveryRefresh;
+        private PatRefresher patRefresher;
+        private ScheduledFuture<?> snapshotWrites;
+
         private static String startsWithSlash(final String realm) {
             String nonNullRealm = realm != null ? realm : "/";
             return nonNullRealm.startsWith("/") ? nonNullRealm : "/" + nonNullRealm;
@@ -398,39 +1472,342 @@ public class UmaSharingServiceExt {
 
         @Override
         public Object create() throws HeapException {
+            long startedAt = System.currentTimeMillis();
             Handler handler = config.get("protectionApiHandler").required().as(requiredHeapObject(heap, Handler.class));
             URI uri = config.get("authorizationServerUri").as(evaluated()).required().as(uri());
             String realm = startsWithSlash(config.get("realm").defaultTo("/").asString());
             String clientId = config.get("clientId").as(evaluated()).required().asString();
             String clientSecret = config.get("clientSecret").as(evaluated()).required().asString();
 
+            //Share store configs
+            String shareStoreType = config.get("shareStore").as(evaluated()).defaultTo("ldap").asString();
+            String shareStoreDirectory = config.get("shareStoreDirectory").as(evaluated()).asString();
+            boolean shareStoreSync = config.get("shareStoreSync").as(evaluated()).defaultTo(false).asBoolean();
+
             //LDAP configs
             String ldapHost = config.get("ldapHost").as(evaluated()).defaultTo("localhost").asString();
             Integer ldapPort = config.get("ldapPort").as(evaluated()).defaultTo(1389).asInteger();
             String ldapAdminId = config.get("ldapAdminId").as(evaluated()).defaultTo("cn=Directory Manager").asString();
-            String ldapAdminPassword = config.get("ldapAdminPassword").as(evaluated()).required().asString();
             String ldapBaseDN = config.get("ldapBaseDN").as(evaluated()).defaultTo("dc=openig,dc=forgerock,dc=org").asString();
+            Integer ldapPoolSize = config.get("ldapPoolSize").as(evaluated()).defaultTo(10).asInteger();
+            Integer ldapPoolCoreSize = config.get("ldapPoolCoreSize").as(evaluated()).defaultTo(2).asInteger();
+            Duration ldapPoolIdleTimeout = duration(config.get("ldapPoolIdleTimeout").as(evaluated()).defaultTo("5 minutes").asString());
+            Duration ldapPoolMaxWait = duration(config.get("ldapPoolMaxWait").as(evaluated()).defaultTo("5 seconds").asString());
+            String ldapLayout = config.get("ldapLayout").as(evaluated()).defaultTo("flat").asString();
+            ShareLayout layout;
+            try {
+                layout = ShareLayout.valueOf(ldapLayout.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new HeapException(format("Invalid ldapLayout '%s', expecting 'flat' or 'user'", ldapLayout), e);
+            }
+
+            //Share cache configs
+            Integer shareCacheSize = config.get("shareCacheSize").as(evaluated()).defaultTo(10000).asInteger();
+            Duration shareCacheTtl = duration(config.get("shareCacheTtl").as(evaluated()).defaultTo("30 seconds").asString());
+            BoundedCache<String, ShareExt> shareCache = null;
+            if (shareCacheSize > 0 && !shareCacheTtl.isZero()) {
+                shareCache = new BoundedCache<>(shareCacheSize, shareCacheTtl.to(TimeUnit.MILLISECONDS), TimeService.SYSTEM);
+            }
+
+            Integer shareMissCacheSize = config.get("shareMissCacheSize").as(evaluated()).defaultTo(10000).asInteger();
+            Duration shareMissCacheTtl = duration(config.get("shareMissCacheTtl").as(evaluated()).defaultTo("5 seconds").asString());
+            BoundedCache<String, Boolean> missCache = null;
+            if (shareMissCacheSize > 0 && !shareMissCacheTtl.isZero()) {
+                missCache = new BoundedCache<>(shareMissCacheSize, shareMissCacheTtl.to(TimeUnit.MILLISECONDS), TimeService.SYSTEM);
+            }
+            boolean shareUriFilter = config.get("shareUriFilter").as(evaluated()).defaultTo(false).asBoolean();
+            Duration sharePatternRefresh = duration(config.get("sharePatternRefresh").as(evaluated()).defaultTo("1 minute").asString());
+
+            //RPT introspection cache configs
+            Integer rptCacheSize = config.get("rptCacheSize").as(evaluated()).defaultTo(10000).asInteger();
+            Duration rptCacheMaxTtl = duration(config.get("rptCacheMaxTtl").as(evaluated()).defaultTo("5 minutes").asString());
+            Duration rptCacheNegativeTtl = duration(config.get("rptCacheNegativeTtl").as(evaluated()).defaultTo("10 seconds").asString());
+            TokenIntrospectionCache introspectionCache = null;
+            if (rptCacheSize > 0 && !rptCacheMaxTtl.isZero()) {
+                introspectionCache = new TokenIntrospectionCache(rptCacheSize,
+                        rptCacheMaxTtl.to(TimeUnit.MILLISECONDS),
+                        rptCacheNegativeTtl.to(TimeUnit.MILLISECONDS),
+                        TimeService.SYSTEM);
+            }
+
+            //PAT introspection cache configs
+            Integer patCacheSize = config.get("patCacheSize").as(evaluated()).defaultTo(1000).asInteger();
+            Duration patCacheTtl = duration(config.get("patCacheTtl").as(evaluated()).defaultTo("30 seconds").asString());
+            TokenIntrospectionCache patCache = null;
+            if (patCacheSize > 0 && !patCacheTtl.isZero()) {
+                // Rejected PATs are not cached: the PAT owner is expected to fix them
+                patCache = new TokenIntrospectionCache(patCacheSize, patCacheTtl.to(TimeUnit.MILLISECONDS), 0L,
+                        TimeService.SYSTEM);
+            }
+
+            //Permission ticket cache configs, disabled by default
+            Integer ticketCacheSize = config.get("ticketCacheSize").as(evaluated()).defaultTo(1000).asInteger();
+            Duration ticketCacheTtl = duration(config.get("ticketCacheTtl").as(evaluated()).defaultTo("0 seconds").asString());
+            BoundedCache<String, String> ticketCache = null;
+            if (ticketCacheSize > 0 && !ticketCacheTtl.isZero()) {
+                ticketCache = new BoundedCache<>(ticketCacheSize, ticketCacheTtl.to(TimeUnit.MILLISECONDS), TimeService.SYSTEM);
+            }
 
+            //UMA discovery configs
+            boolean umaDiscovery = config.get("umaDiscovery").as(evaluated()).defaultTo(true).asBoolean();
+            Duration umaDiscoveryRefresh = duration(config.get("umaDiscoveryRefresh").as(evaluated()).defaultTo("10 minutes").asString());
+
+            //Authorization server circuit breaker configs, one breaker per endpoint
+            JsonValue breaker = config.get("authorizationServerBreaker");
+            Integer maxConcurrentCalls = breaker.get("maxConcurrentCalls").as(evaluated()).defaultTo(100).asInteger();
+            Integer windowSize = breaker.get("windowSize").as(evaluated()).defaultTo(20).asInteger();
+            Integer minimumCalls = breaker.get("minimumCalls").as(evaluated()).defaultTo(10).asInteger();
+            Double failureRateThreshold = breaker.get("failureRateThreshold").as(evaluated()).defaultTo(0.5).asDouble();
+            Duration slowCallDuration = duration(breaker.get("slowCallDuration").as(evaluated()).defaultTo("5 seconds").asString());
+            Duration openDuration = duration(breaker.get("openDuration").as(evaluated()).defaultTo("30 seconds").asString());
+            long slowCallMillis = slowCallDuration.isUnlimited() ? 0L : slowCallDuration.to(TimeUnit.MILLISECONDS);
+            long openMillis = openDuration.to(TimeUnit.MILLISECONDS);
+            CircuitBreaker introspectionBreaker = new CircuitBreaker("introspection", maxConcurrentCalls,
+                    windowSize, minimumCalls, failureRateThreshold, slowCallMillis, openMillis, TimeService.SYSTEM);
+            CircuitBreaker ticketBreaker = new CircuitBreaker("permission_request", maxConcurrentCalls,
+                    windowSize, minimumCalls, failureRateThreshold, slowCallMillis, openMillis, TimeService.SYSTEM);
+            CircuitBreaker resourceSetBreaker = new CircuitBreaker("resource_set", maxConcurrentCalls,
+                    windowSize, minimumCalls, failureRateThreshold, slowCallMillis, openMillis, TimeService.SYSTEM);
+
+            //Share replica configs
+            boolean shareReplicaEnabled = config.get("shareReplica").as(evaluated()).defaultTo(false).asBoolean();
+            Duration shareReplicaRetryDelay = duration(config.get("shareReplicaRetryDelay").as(evaluated()).defaultTo("10 seconds").asString());
+            Duration shareReplicaConnectTimeout = duration(config.get("shareReplicaConnectTimeout").as(evaluated()).defaultTo("10 seconds").asString());
+
+            //PAT refresh configs
+            boolean patRefresh = config.get("patRefresh").as(evaluated()).defaultTo(true).asBoolean();
+            Duration patRefreshInterval = duration(config.get("patRefreshInterval").as(evaluated()).defaultTo("1 minute").asString());
+            Duration patRefreshAhead = duration(config.get("patRefreshAhead").as(evaluated()).defaultTo("5 minutes").asString());
+            Duration patStoreTtl = duration(config.get("patStoreTtl").as(evaluated()).defaultTo("1 minute").asString());
+
+            //Share snapshot configs, disabled by default
+            String shareSnapshot = config.get("shareSnapshot").as(evaluated()).asString();
+            Duration shareSnapshotInterval = duration(config.get("shareSnapshotInterval").as(evaluated()).defaultTo("10 minutes").asString());
+            Duration shareSnapshotMaxAge = duration(config.get("shareSnapshotMaxAge").as(evaluated()).defaultTo("1 day").asString());
+
+            ScheduledExecutorService executor =
+                    heap.get(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY, ScheduledExecutorService.class);
             try {
-                LDAPManager ldapManager = new LDAPManager(ldapHost, ldapPort, ldapAdminId, ldapAdminPassword, ldapBaseDN);
+                switch (shareStoreType) {
+                case "ldap":
+                    String ldapAdminPassword = config.get("ldapAdminPassword").as(evaluated()).required().asString();
+                    ldapManager = new LDAPManager(ldapHost, ldapPort, ldapAdminId, ldapAdminPassword, ldapBaseDN,
+                            ldapPoolSize, ldapPoolCoreSize, ldapPoolIdleTimeout, ldapPoolMaxWait, layout, executor);
+                    shareStore = ldapManager;
+                    break;
+                case "memory":
+                    shareStore = new MemoryShareStore();
+                    break;
+                case "file":
+                    if (shareStoreDirectory == null) {
+                        throw new HeapException("'shareStoreDirectory' is required with the 'file' share store");
+                    }
+                    shareStore = new FileShareStore(Paths.get(shareStoreDirectory), shareStoreSync);
+                    break;
+                default:
+                    throw new HeapException(format("Invalid shareStore '%s', expecting 'ldap', 'memory' or 'file'",
+                            shareStoreType));
+                }
+                if (shareReplicaEnabled && ldapManager == null) {
+                    // Other stores are in memory already
+                    logger.warn("Ignoring shareReplica, only used with the 'ldap' share store");
+                } else if (shareReplicaEnabled) {
+                    // Loads block their thread, keep them off the shared heap executor
+                    replicaExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            Thread thread = new Thread(runnable, "uma-share-replica");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    replica = new ShareReplica(ldapManager,
+                            replicaExecutor,
+                            shareReplicaRetryDelay.to(TimeUnit.MILLISECONDS),
+                            shareReplicaConnectTimeout.isUnlimited()
+                                    ? Long.MAX_VALUE
+                                    : shareReplicaConnectTimeout.to(TimeUnit.MILLISECONDS),
+                            realm,
+                            clientId);
+                    replica.start();
+                }
+                PatStore patStore = new PatStore(shareStore,
+                        patStoreTtl.isUnlimited() ? Long.MAX_VALUE : patStoreTtl.to(TimeUnit.MILLISECONDS),
+                        TimeService.SYSTEM);
+                ShareSnapshot snapshot = null;
+                if (shareSnapshot != null && ldapManager == null) {
+                    // Other stores do not need the directory to start
+                    logger.warn("Ignoring shareSnapshot, only used with the 'ldap' share store");
+                } else if (shareSnapshot != null) {
+                    snapshot = new ShareSnapshot(Paths.get(shareSnapshot), realm, clientId, startedAt);
+                    patStore.preload(snapshot.load(shareSnapshotMaxAge.isUnlimited()
+                            ? Long.MAX_VALUE
+                            : shareSnapshotMaxAge.to(TimeUnit.MILLISECONDS)), snapshot.getWrittenAt());
+                }
                 UmaSharingServiceExt service = new UmaSharingServiceExt(handler, realm,
                         uri,
                         clientId,
                         clientSecret,
-                        ldapManager);
+                        shareStore,
+                        shareCache,
+                        missCache,
+                        introspectionCache,
+                        patCache,
+                        ticketCache,
+                        introspectionBreaker,
+                        ticketBreaker,
+                        resourceSetBreaker,
+                        replica,
+                        patStore);
+                if (snapshot != null) {
+                    service.setSnapshot(snapshot);
+                    scheduleSnapshotWrites(service, executor, shareSnapshotInterval);
+                }
+                if (umaDiscovery) {
+                    scheduleDiscovery(service, executor, umaDiscoveryRefresh);
+                }
+                if (patRefresh && !patRefreshInterval.isUnlimited() && !patRefreshInterval.isZero()) {
+                    patRefresher = new PatRefresher(service,
+                            shareStore,
+                            executor,
+                            patRefreshInterval.to(TimeUnit.MILLISECONDS),
+                            patRefreshAhead.to(TimeUnit.MILLISECONDS),
+                            realm,
+                            clientId);
+                    service.setPatRefresher(patRefresher);
+                    patRefresher.start();
+                }
                 // register admin endpoint
                 Handler httpHandler = newHttpHandler(
                         newCrestApplication(newHandler(new ShareCollectionProviderExt(service)),
                                 "frapi:openig:uma:shareExt"));
                 EndpointRegistry.Registration share = endpointRegistry().register("share", httpHandler);
                 logger.info("UMA Share endpoint available at '{}'", share.getPath());
+                EndpointRegistry.Registration monitoring = endpointRegistry().register("monitoring",
+                        new UmaMonitoringHandler(service));
+                logger.info("UMA monitoring endpoint available at '{}'", monitoring.getPath());
+                if (snapshot != null) {
+                    snapshot.ready();
+                }
+
+                // Nothing above waits for the directory: it is only used in the background from here
+                if (ldapManager != null) {
+                    final LDAPManager manager = ldapManager;
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            manager.warmUp();
+                        }
+                    });
+                }
+                if (replica == null) {
+                    // The replica matches templates and prefixes itself
+                    scheduleShareLoading(service, executor, sharePatternRefresh, shareUriFilter);
+                }
 
                 return service;
-            } catch (URISyntaxException e) {
+            } catch (URISyntaxException | IOException e) {
                 throw new HeapException("Cannot build UmaSharingService", e);
             }
         }
 
+        private void scheduleShareLoading(final UmaSharingServiceExt service,
+                                           final ScheduledExecutorService executor,
+                                           final Duration refresh,
+                                           final boolean knownUris) {
+            Runnable load = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        service.loadPatternShares();
+                        if (knownUris) {
+                            service.loadKnownUris();
+                        }
+                    } catch (LdapException e) {
+                        logger.warn("Unable to load the UMA template and prefix shares or share URIs", e);
+                    }
+                }
+            };
+            if (ldapManager == null) {
+                // Other stores are in memory already: the first load does not block
+                load.run();
+            }
+            if (!refresh.isUnlimited() && !refresh.isZero()) {
+                long delay = refresh.to(TimeUnit.MILLISECONDS);
+                patternRefresh = executor.scheduleWithFixedDelay(load, ldapManager != null ? 0 : delay, delay,
+                        TimeUnit.MILLISECONDS);
+            } else if (ldapManager != null) {
+                patternRefresh = executor.schedule(load, 0, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void scheduleSnapshotWrites(final UmaSharingServiceExt service,
+                                            final ScheduledExecutorService executor,
+                                            final Duration interval) {
+            Runnable write = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        service.writeSnapshot();
+                    } catch (LdapException | IOException e) {
+                        logger.warn("Unable to write the UMA share snapshot", e);
+                    }
+                }
+            };
+            // Without replica, the first write is also what catches the snapshot up with the directory
+            if (!interval.isUnlimited() && !interval.isZero()) {
+                long delay = interval.to(TimeUnit.MILLISECONDS);
+                snapshotWrites = executor.scheduleWithFixedDelay(write, replica == null ? 0 : delay, delay,
+                        TimeUnit.MILLISECONDS);
+            } else if (replica == null) {
+                snapshotWrites = executor.schedule(write, 0, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void scheduleDiscovery(final UmaSharingServiceExt service,
+                                       final ScheduledExecutorService executor,
+                                       final Duration refresh) {
+            Runnable discover = new Runnable() {
+                @Override
+                public void run() {
+                    // Does not block: the endpoints are swapped once the document is received
+                    service.discoverEndpoints();
+                }
+            };
+            if (refresh.isUnlimited() || refresh.isZero()) {
+                discoveryRefresh = executor.schedule(discover, 0, TimeUnit.MILLISECONDS);
+            } else {
+                long delay = refresh.to(TimeUnit.MILLISECONDS);
+                discoveryRefresh = executor.scheduleWithFixedDelay(discover, 0, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void destroy() {
+            super.destroy();
+            if (patternRefresh != null) {
+                patternRefresh.cancel(false);
+            }
+            if (discoveryRefresh != null) {
+                discoveryRefresh.cancel(false);
+            }
+            if (snapshotWrites != null) {
+                snapshotWrites.cancel(false);
+            }
+            if (patRefresher != null) {
+                patRefresher.stop();
+            }
+            if (replica != null) {
+                replica.stop();
+            }
+            if (replicaExecutor != null) {
+                replicaExecutor.shutdownNow();
+            }
+            if (shareStore != null) {
+                shareStore.close();
+            }
+        }
+
     }
 
 }
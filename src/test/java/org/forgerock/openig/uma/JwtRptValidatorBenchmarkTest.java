@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Form;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.TimeService;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.uma.JwtRptValidatorTest.AUDIENCE;
+import static org.forgerock.openig.uma.JwtRptValidatorTest.ISSUER;
+import static org.forgerock.openig.uma.JwtRptValidatorTest.KEY_1;
+import static org.forgerock.openig.uma.JwtRptValidatorTest.jwkSet;
+import static org.forgerock.openig.uma.JwtRptValidatorTest.rpt;
+import static org.forgerock.util.Utils.closeSilently;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+/**
+ * Compares the local validation of a signed RPT with {@link JwtRptValidator} to its introspection. The introspection
+ * endpoint answers in-process: a deployed one adds at least a network round trip to each introspection. Only run with
+ * the {@literal benchmark} Maven profile.
+ */
+@Test(groups = "benchmark")
+public class JwtRptValidatorBenchmarkTest {
+
+    private static final int WARM_UP = 10000;
+    private static final int VALIDATIONS = 100000;
+
+    private static final URI INTROSPECTION_URI = URI.create("https://as.example.com/openam/oauth2/introspect");
+
+    private final Context context = new RootContext();
+
+    @Test
+    public void validateLocallyAndIntrospect() throws Exception {
+        final String token = rpt("k1", KEY_1, ISSUER, AUDIENCE,
+                TimeService.SYSTEM.now() + TimeUnit.HOURS.toMillis(1));
+        JwtRptValidator validator = new JwtRptValidator(jwkSet("k1", KEY_1), ISSUER, AUDIENCE, TimeService.SYSTEM);
+        Handler endpoint = new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                Response response = new Response(Status.OK);
+                response.setEntity(json(object(
+                        field("active", true),
+                        field("sub", "alice"),
+                        field("exp", TimeUnit.MILLISECONDS.toSeconds(TimeService.SYSTEM.now()) + 3600),
+                        field("permissions", array(object(
+                                field("resource_set_id", "rs1"),
+                                field("scopes", array("read"))))))).getObject());
+                return newResultPromise(response);
+            }
+        };
+
+        for (int i = 0; i < WARM_UP; i++) {
+            validator.validate(context, token).getOrThrow();
+            introspect(endpoint, token);
+        }
+
+        int active = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < VALIDATIONS; i++) {
+            active += validator.validate(context, token).getOrThrow().isActive() ? 1 : 0;
+        }
+        long localNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < VALIDATIONS; i++) {
+            active += introspect(endpoint, token).isActive() ? 1 : 0;
+        }
+        long introspectionNanos = System.nanoTime() - start;
+
+        assertThat(active).isEqualTo(2 * VALIDATIONS);
+        System.out.printf("local validation: %d ns/token, in-process introspection: %d ns/token%n",
+                localNanos / VALIDATIONS, introspectionNanos / VALIDATIONS);
+    }
+
+    /**
+     * Introspects the token as {@link UmaSharingServiceExt} does, without the cache.
+     */
+    private TokenIntrospection introspect(final Handler endpoint, final String token) throws IOException {
+        Request request = new Request();
+        request.setUri(INTROSPECTION_URI);
+        request.getHeaders().put("Accept", "application/json");
+        Form query = new Form();
+        query.putSingle("token", token);
+        query.putSingle("client_id", "openig");
+        query.putSingle("client_secret", "password");
+        query.toRequestEntity(request);
+
+        Response response = endpoint.handle(context, request).getOrThrowUninterruptibly();
+        try {
+            return UmaJsonReader.readIntrospection(response.getEntity());
+        } finally {
+            closeSilently(response);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.jose.builders.JwtBuilderFactory;
+import org.forgerock.json.jose.builders.JwtClaimsSetBuilder;
+import org.forgerock.json.jose.jwk.JWKSet;
+import org.forgerock.json.jose.jws.JwsAlgorithm;
+import org.forgerock.json.jose.jws.SigningManager;
+import org.forgerock.json.jose.jws.handlers.SigningHandler;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.encode.Base64url;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.TimeService;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+public class JwtRptValidatorTest {
+
+    static final String ISSUER = "https://as.example.com/openam/uma";
+    static final String AUDIENCE = "openig";
+
+    static final KeyPair KEY_1 = newRsaKeyPair();
+    static final KeyPair KEY_2 = newRsaKeyPair();
+
+    private static final URI JWK_SET_URI = URI.create("https://as.example.com/openam/oauth2/connect/jwk_uri");
+
+    private final Context context = new RootContext();
+    private final AtomicLong now = new AtomicLong();
+    private final TimeService time = new TimeService() {
+        @Override
+        public long now() {
+            return now.get();
+        }
+
+        @Override
+        public long since(final long past) {
+            return now.get() - past;
+        }
+    };
+
+    @BeforeMethod
+    public void setUp() {
+        now.set(TimeUnit.DAYS.toMillis(17000));
+    }
+
+    @Test
+    public void shouldAcceptAValidToken() throws Exception {
+        JwtRptValidator validator = new JwtRptValidator(jwkSet("k1", KEY_1), ISSUER, AUDIENCE, time);
+
+        TokenIntrospection introspection = validator.validate(context, rpt("k1", KEY_1, ISSUER, AUDIENCE,
+                now.get() + 60000L)).getOrThrow();
+
+        assertThat(introspection.isActive()).isTrue();
+        assertThat(introspection.getSubject()).isEqualTo("alice");
+        assertThat(introspection.getScopes("rs1")).containsOnly("read");
+    }
+
+    @Test
+    public void shouldRejectAnAlgorithmNotMatchingTheKeyType() throws Exception {
+        JwtRptValidator validator = new JwtRptValidator(jwkSet("k1", KEY_1), ISSUER, AUDIENCE, time);
+
+        // HMAC keyed with the public key, which anyone can get from the JWK set
+        SigningHandler hmac = new SigningManager().newHmacSigningHandler(KEY_1.getPublic().getEncoded());
+        String token = rpt("k1", hmac, JwsAlgorithm.HS256, ISSUER, AUDIENCE, now.get() + 60000L);
+
+        assertThat(validator.validate(context, token).getOrThrow().isActive()).isFalse();
+    }
+
+    @Test
+    public void shouldRejectAnInvalidSignature() throws Exception {
+        JwtRptValidator validator = new JwtRptValidator(jwkSet("k1", KEY_1), ISSUER, AUDIENCE, time);
+
+        // Signed with another key, under the name of the known one
+        String token = rpt("k1", KEY_2, ISSUER, AUDIENCE, now.get() + 60000L);
+
+        assertThat(validator.validate(context, token).getOrThrow().isActive()).isFalse();
+    }
+
+    @Test
+    public void shouldRejectAnExpiredToken() throws Exception {
+        JwtRptValidator validator = new JwtRptValidator(jwkSet("k1", KEY_1), ISSUER, AUDIENCE, time);
+
+        String token = rpt("k1", KEY_1, ISSUER, AUDIENCE, now.get() + 60000L);
+        now.addAndGet(60000L);
+
+        assertThat(validator.validate(context, token).getOrThrow().isActive()).isFalse();
+    }
+
+    @Test
+    public void shouldRejectAnotherIssuer() throws Exception {
+        JwtRptValidator validator = new JwtRptValidator(jwkSet("k1", KEY_1), ISSUER, AUDIENCE, time);
+
+        String token = rpt("k1", KEY_1, "https://other.example.com/uma", AUDIENCE, now.get() + 60000L);
+
+        assertThat(validator.validate(context, token).getOrThrow().isActive()).isFalse();
+    }
+
+    @Test
+    public void shouldRejectAnotherAudience() throws Exception {
+        JwtRptValidator validator = new JwtRptValidator(jwkSet("k1", KEY_1), ISSUER, AUDIENCE, time);
+
+        String token = rpt("k1", KEY_1, ISSUER, "other", now.get() + 60000L);
+
+        assertThat(validator.validate(context, token).getOrThrow().isActive()).isFalse();
+    }
+
+    @Test
+    public void shouldLeaveOpaqueTokensToIntrospection() throws Exception {
+        JwtRptValidator validator = new JwtRptValidator(jwkSet("k1", KEY_1), ISSUER, AUDIENCE, time);
+
+        assertThat(JwtRptValidator.isJwt("2c9b1f37-8e5c-4d1e-a8e5-5f1b9e3c7a10")).isFalse();
+        assertThat(JwtRptValidator.isJwt("a.b.c.d")).isFalse();
+        // Looks like a JWT, but is not one
+        assertThat(validator.validate(context, "not.a.jwt").getOrThrow()).isNull();
+    }
+
+    @Test
+    public void shouldLeaveTokensToIntrospectionWhileTheJwkSetIsUnavailable() throws Exception {
+        JwkSetEndpoint endpoint = new JwkSetEndpoint(null);
+        JwtRptValidator validator = new JwtRptValidator(endpoint, JWK_SET_URI, ISSUER, AUDIENCE,
+                TimeUnit.HOURS.toMillis(1), time);
+
+        assertThat(validator.validate(context, rpt("k1", KEY_1, ISSUER, AUDIENCE, now.get() + 60000L))
+                .getOrThrow()).isNull();
+        assertThat(endpoint.fetches.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRefreshTheJwkSetForAnUnknownKeyAtMostOnceAMinute() throws Exception {
+        JwkSetEndpoint endpoint = new JwkSetEndpoint(jwkSetJson("k1", KEY_1));
+        JwtRptValidator validator = new JwtRptValidator(endpoint, JWK_SET_URI, ISSUER, AUDIENCE,
+                TimeUnit.HOURS.toMillis(1), time);
+        String known = rpt("k1", KEY_1, ISSUER, AUDIENCE, now.get() + TimeUnit.HOURS.toMillis(1));
+        String unknown = rpt("k2", KEY_2, ISSUER, AUDIENCE, now.get() + TimeUnit.HOURS.toMillis(1));
+
+        assertThat(validator.validate(context, known).getOrThrow().isActive()).isTrue();
+        assertThat(endpoint.fetches.get()).isEqualTo(1);
+
+        // Just fetched: no refresh
+        assertThat(validator.validate(context, unknown).getOrThrow().isActive()).isFalse();
+        assertThat(endpoint.fetches.get()).isEqualTo(1);
+
+        // A minute later, one refresh, still without the key
+        now.addAndGet(TimeUnit.MINUTES.toMillis(1));
+        assertThat(validator.validate(context, unknown).getOrThrow().isActive()).isFalse();
+        assertThat(validator.validate(context, unknown).getOrThrow().isActive()).isFalse();
+        assertThat(endpoint.fetches.get()).isEqualTo(2);
+
+        // Keys rolled over
+        endpoint.keys = jwkSetJson("k1", KEY_1, "k2", KEY_2);
+        now.addAndGet(TimeUnit.SECONDS.toMillis(30));
+        assertThat(validator.validate(context, unknown).getOrThrow().isActive()).isFalse();
+        assertThat(endpoint.fetches.get()).isEqualTo(2);
+
+        now.addAndGet(TimeUnit.SECONDS.toMillis(30));
+        assertThat(validator.validate(context, unknown).getOrThrow().isActive()).isTrue();
+        assertThat(validator.validate(context, known).getOrThrow().isActive()).isTrue();
+        assertThat(endpoint.fetches.get()).isEqualTo(3);
+    }
+
+    /**
+     * Serves the JWK set, counting the fetches.
+     */
+    private static final class JwkSetEndpoint implements Handler {
+
+        private final AtomicInteger fetches = new AtomicInteger();
+        private volatile String keys;
+
+        JwkSetEndpoint(final String keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+            fetches.incrementAndGet();
+            String current = keys;
+            if (current == null) {
+                return newResultPromise(new Response(Status.INTERNAL_SERVER_ERROR));
+            }
+            Response response = new Response(Status.OK);
+            response.setEntity(current);
+            return newResultPromise(response);
+        }
+    }
+
+    static String rpt(final String keyId,
+                      final KeyPair key,
+                      final String issuer,
+                      final String audience,
+                      final long expiresAt) {
+        return rpt(keyId, new SigningManager().newRsaSigningHandler(key.getPrivate()), JwsAlgorithm.RS256,
+                issuer, audience, expiresAt);
+    }
+
+    private static String rpt(final String keyId,
+                              final SigningHandler signingHandler,
+                              final JwsAlgorithm algorithm,
+                              final String issuer,
+                              final String audience,
+                              final long expiresAt) {
+        return new JwtBuilderFactory()
+                .jws(signingHandler)
+                .headers().alg(algorithm).kid(keyId).done()
+                .claims(new JwtClaimsSetBuilder()
+                        .iss(issuer)
+                        .sub("alice")
+                        .aud(Collections.singletonList(audience))
+                        .exp(new Date(expiresAt))
+                        .claim("permissions", array(object(
+                                field("resource_set_id", "rs1"),
+                                field("scopes", array("read")))))
+                        .build())
+                .build();
+    }
+
+    /**
+     * Returns the JSON JWK set of the public keys, given as pairs of key identifier and key.
+     */
+    static String jwkSetJson(final Object... keys) {
+        StringBuilder json = new StringBuilder("{\"keys\":[");
+        for (int i = 0; i < keys.length; i += 2) {
+            RSAPublicKey key = (RSAPublicKey) ((KeyPair) keys[i + 1]).getPublic();
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"kty\":\"RSA\",\"use\":\"sig\",\"alg\":\"RS256\",\"kid\":\"").append(keys[i])
+                    .append("\",\"n\":\"").append(base64url(key.getModulus()))
+                    .append("\",\"e\":\"").append(base64url(key.getPublicExponent()))
+                    .append("\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    static JWKSet jwkSet(final String keyId, final KeyPair key) {
+        return JWKSet.parse(jwkSetJson(keyId, key));
+    }
+
+    private static String base64url(final BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        // Unsigned big-endian value, without the sign byte
+        if (bytes.length > 1 && bytes[0] == 0) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return Base64url.encode(bytes);
+    }
+
+    private static KeyPair newRsaKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            return generator.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.opendj.ldap.Connection;
+import org.forgerock.opendj.ldap.ConnectionFactory;
+import org.forgerock.opendj.ldap.Connections;
+import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.opendj.ldap.MemoryBackend;
+import org.forgerock.opendj.ldap.ResultCode;
+import org.forgerock.opendj.ldif.LDIFEntryReader;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+/**
+ * Counts the LDAP operations sent by {@link LDAPManager} to an in-memory directory, one round trip each.
+ */
+public class LDAPManagerRoundTripTest {
+
+    private static final String BASE_DN = "ou=shares,dc=example,dc=com";
+
+    /** The {@link Connection} methods sending a request to the directory. */
+    private static final Set<String> OPERATIONS = new HashSet<>(Arrays.asList(
+            "add", "bind", "compare", "delete", "extendedRequest", "modify", "modifyDN", "readEntry", "search",
+            "searchSingleEntry"));
+
+    private final List<String> operations = Collections.synchronizedList(new ArrayList<String>());
+    private ScheduledExecutorService scheduler;
+
+    @BeforeMethod
+    public void setUp() {
+        operations.clear();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void lookupShouldTakeOneSearch() throws Exception {
+        LDAPManager manager = manager(ShareLayout.USER);
+        try {
+            get(manager.addShareAsync(share("s1", "account", "/history/emp1", "alice")));
+            operations.clear();
+
+            ShareExt match = new ShareExt(null, "/history/emp1", "alice", "/", "openig");
+            assertThat(get(manager.getShareAsync(match, 2, Long.MAX_VALUE, LDAPManager.ALL_ATTRIBUTES))).hasSize(1);
+            assertThat(operations).containsExactly("search");
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void timedLookupShouldTakeOneSearch() throws Exception {
+        LDAPManager manager = manager(ShareLayout.USER);
+        try {
+            get(manager.addShareAsync(share("s1", "account", "/history/emp1", "alice")));
+            operations.clear();
+
+            ShareExt match = new ShareExt(null, "/history/emp1", "alice", "/", "openig");
+            assertThat(get(manager.getShareAsync(match, 2, 60000L, LDAPManager.LOOKUP_ATTRIBUTES))).hasSize(1);
+            assertThat(operations).containsExactly("search");
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void expiredLookupShouldNotSearch() throws Exception {
+        LDAPManager manager = manager(ShareLayout.USER);
+        try {
+            ShareExt match = new ShareExt(null, "/history/emp1", "alice", "/", "openig");
+            try {
+                get(manager.getShareAsync(match, 2, 0L, LDAPManager.LOOKUP_ATTRIBUTES));
+                fail("The lookup budget was already used up");
+            } catch (LdapException e) {
+                assertThat(e.getResult().getResultCode()).isEqualTo(ResultCode.CLIENT_SIDE_TIMEOUT);
+            }
+            assertThat(operations).isEmpty();
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void duplicateCheckShouldTakeOneSearch() throws Exception {
+        LDAPManager manager = manager(ShareLayout.USER);
+        try {
+            get(manager.addShareAsync(share("s1", "account", "/history/emp1", "alice")));
+            operations.clear();
+
+            // Same name, same URI, or neither: a single search each time
+            assertThat(get(manager.isSharedAsync(new ShareExt("account", "/other", "alice", "/", "openig"))))
+                    .isTrue();
+            assertThat(get(manager.isSharedAsync(new ShareExt("other", "/history/emp1", "alice", "/", "openig"))))
+                    .isTrue();
+            assertThat(get(manager.isSharedAsync(new ShareExt("other", "/other", "alice", "/", "openig"))))
+                    .isFalse();
+            assertThat(operations).containsExactly("search", "search", "search");
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void duplicateCheckShouldOnlyCompareTheValuesSet() throws Exception {
+        LDAPManager manager = manager(ShareLayout.USER);
+        try {
+            get(manager.addShareAsync(share("s1", "account", "/history/emp1", "alice")));
+            operations.clear();
+
+            assertThat(get(manager.isSharedAsync(new ShareExt(null, "/history/emp1", "alice", "/", "openig"))))
+                    .isTrue();
+            assertThat(get(manager.isSharedAsync(new ShareExt("account", null, "alice", "/", "openig"))))
+                    .isTrue();
+            assertThat(operations).containsExactly("search", "search");
+
+            // Nothing to compare, nothing to search
+            assertThat(get(manager.isSharedAsync(new ShareExt(null, null, "alice", "/", "openig")))).isFalse();
+            assertThat(operations).hasSize(2);
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void createShouldTakeOneSearchAndTwoAdds() throws Exception {
+        LDAPManager manager = manager(ShareLayout.FLAT);
+        try {
+            create(manager, share("s1", "account", "/history/emp1", "alice"));
+            assertThat(operations).containsExactly("search", "add", "add");
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void createOfAnotherShareShouldReplaceThePat() throws Exception {
+        LDAPManager manager = manager(ShareLayout.FLAT);
+        try {
+            create(manager, share("s1", "account", "/history/emp1", "alice"));
+            operations.clear();
+
+            // The PAT entry exists already: its add fails, and the PAT is replaced
+            create(manager, share("s2", "savings", "/history/emp2", "alice"));
+            assertThat(operations).containsExactly("search", "add", "modify", "add");
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void firstShareOfAUserShouldCreateItsContainers() throws Exception {
+        LDAPManager manager = manager(ShareLayout.USER);
+        try {
+            get(manager.addShareAsync(share("s1", "account", "/history/emp1", "alice")));
+            // Failed add, realm and user containers, add again
+            assertThat(operations).containsExactly("add", "add", "add", "add");
+            operations.clear();
+
+            get(manager.addShareAsync(share("s2", "savings", "/history/emp2", "alice")));
+            assertThat(operations).containsExactly("add");
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void patReadShouldTakeOneSearch() throws Exception {
+        LDAPManager manager = manager(ShareLayout.FLAT);
+        try {
+            SharedPat pat = get(manager.storePatAsync(new SharedPat("alice", "/", "openig", "pat", "rt", 0L)));
+            operations.clear();
+
+            assertThat(get(manager.readPatAsync(pat.getId())).getToken()).isEqualTo("pat");
+            assertThat(get(manager.readPatAsync(SharedPat.id("bob", "/", "openig")))).isNull();
+            assertThat(operations).containsExactly("search", "search");
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * Runs the store operations of a share creation, as {@link UmaSharingServiceExt} does.
+     */
+    private static void create(final LDAPManager manager, final ShareExt share) throws Exception {
+        assertThat(get(manager.isSharedAsync(new ShareExt(share.getResourceName(), share.getRequestURI(),
+                share.getUserId(), share.getRealm(), share.getClientId())))).isFalse();
+        SharedPat pat = get(manager.storePatAsync(new SharedPat(share.getUserId(), share.getRealm(),
+                share.getClientId(), share.getPAT(), "rt", 0L)));
+        share.setSharedPat(pat);
+        get(manager.addShareAsync(share));
+    }
+
+    private LDAPManager manager(final ShareLayout layout) throws IOException {
+        MemoryBackend backend = new MemoryBackend(new LDIFEntryReader(
+                "dn: dc=example,dc=com",
+                "objectClass: top",
+                "objectClass: domain",
+                "dc: example",
+                "",
+                "dn: " + BASE_DN,
+                "objectClass: top",
+                "objectClass: organizationalUnit",
+                "ou: shares"));
+        ConnectionFactory factory = counting(Connections.newInternalConnectionFactory(backend));
+        return new LDAPManager(factory, BASE_DN, 2, 1, Duration.UNLIMITED, Duration.UNLIMITED, layout, scheduler);
+    }
+
+    /**
+     * Wraps the connections of the given factory so that each operation sent is recorded, whether synchronous or
+     * asynchronous.
+     */
+    private ConnectionFactory counting(final ConnectionFactory factory) {
+        return new ConnectionFactory() {
+            @Override
+            public void close() {
+                factory.close();
+            }
+
+            @Override
+            public Promise<Connection, LdapException> getConnectionAsync() {
+                try {
+                    return newResultPromise(getConnection());
+                } catch (LdapException e) {
+                    return newExceptionPromise(e);
+                }
+            }
+
+            @Override
+            public Connection getConnection() throws LdapException {
+                final Connection connection = factory.getConnection();
+                return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                        new Class<?>[] { Connection.class }, new InvocationHandler() {
+                            @Override
+                            public Object invoke(final Object proxy, final Method method, final Object[] args)
+                                    throws Throwable {
+                                String name = method.getName();
+                                if (name.endsWith("Async")) {
+                                    name = name.substring(0, name.length() - "Async".length());
+                                }
+                                if (OPERATIONS.contains(name)) {
+                                    operations.add(name);
+                                }
+                                try {
+                                    return method.invoke(connection, args);
+                                } catch (InvocationTargetException e) {
+                                    throw e.getCause();
+                                }
+                            }
+                        });
+            }
+        };
+    }
+
+    private static ShareExt share(final String id, final String name, final String uri, final String userId) {
+        ShareExt share = new ShareExt("rs-" + id, name, "pat", uri, "/policy/" + id, userId, "/", "openig");
+        share.setId(id);
+        return share;
+    }
+
+    private static <V> V get(final Promise<V, LdapException> promise) throws Exception {
+        return promise.getOrThrow();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures the share additions and lookups of the {@link ShareStore} engines kept locally. Only run with the
+ * {@literal benchmark} Maven profile.
+ */
+@Test(groups = "benchmark")
+public class ShareStoreBenchmarkTest {
+
+    private static final int SHARES = 100000;
+    private static final int LOOKUPS = 1000000;
+
+    @DataProvider
+    public Object[][] stores() throws IOException {
+        return new Object[][] {
+            { "memory", new MemoryShareStore() },
+            { "file", new FileShareStore(newDirectory(), false) },
+            { "file-sync", new FileShareStore(newDirectory(), true) }
+        };
+    }
+
+    /** Under the build directory, removed by {@literal mvn clean}. */
+    private static Path newDirectory() throws IOException {
+        return Files.createTempDirectory(Files.createDirectories(Paths.get("target")), "share-store-benchmark");
+    }
+
+    @Test(dataProvider = "stores")
+    public void addAndLookUpShares(final String engine, final ShareStore store) throws Exception {
+        try {
+            // The synchronous file store forces every record to the disk
+            int shares = engine.equals("file-sync") ? SHARES / 100 : SHARES;
+            long start = System.nanoTime();
+            for (int i = 0; i < shares; i++) {
+                store.addShareAsync(new ShareExt("rs" + i, "share" + i, "pat", "/history/emp" + i, "policy",
+                        "user" + (i % 1000), "/", "openig")).getOrThrow();
+            }
+            long addNanos = System.nanoTime() - start;
+
+            int found = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                ShareExt match = new ShareExt(null, "/history/emp" + (i % shares), null, "/", "openig");
+                found += store.getShareAsync(match, 2, Long.MAX_VALUE, LDAPManager.LOOKUP_ATTRIBUTES)
+                        .getOrThrow().size();
+            }
+            long lookupNanos = System.nanoTime() - start;
+
+            assertThat(found).isEqualTo(LOOKUPS);
+            System.out.printf("%s: %d adds in %d ms (%d ns/add), %d lookups in %d ms (%d ns/lookup)%n",
+                    engine,
+                    shares, TimeUnit.NANOSECONDS.toMillis(addNanos), addNanos / shares,
+                    LOOKUPS, TimeUnit.NANOSECONDS.toMillis(lookupNanos), lookupNanos / LOOKUPS);
+        } finally {
+            store.close();
+        }
+    }
+}
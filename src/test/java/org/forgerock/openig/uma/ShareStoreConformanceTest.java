@@ -0,0 +1,439 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.opendj.ldap.ByteString;
+import org.forgerock.opendj.ldap.Filter;
+import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.opendj.ldap.ResultCode;
+import org.forgerock.opendj.ldap.SortKey;
+import org.forgerock.util.promise.Promise;
+import org.testng.SkipException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Checks that every {@link ShareStore} engine kept locally behaves like the directory: the same checks run against
+ * {@link MemoryShareStore} and {@link FileShareStore}, then the durability of the {@link FileShareStore} log is checked
+ * on its own.
+ */
+public class ShareStoreConformanceTest {
+
+    private static final String REALM = "/";
+    private static final String CLIENT_ID = "openig";
+
+    private final List<ShareStore> stores = new ArrayList<>();
+    private final List<Path> directories = new ArrayList<>();
+
+    @DataProvider
+    public Object[][] stores() throws IOException {
+        return new Object[][] {
+            { open(new MemoryShareStore()) },
+            { open(new FileShareStore(newDirectory(), false)) }
+        };
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        for (ShareStore store : stores) {
+            store.close();
+        }
+        for (Path directory : directories) {
+            delete(directory);
+        }
+    }
+
+    @Test(dataProvider = "stores")
+    public void shouldAddGetAndRemoveShares(final ShareStore store) throws Exception {
+        ShareExt share = share("emp1", "/history/emp1", "alice");
+        store.addShareAsync(share).getOrThrow();
+
+        Set<ShareExt> found = store.getShareAsync(match("/history/emp1", null), 2, Long.MAX_VALUE).getOrThrow();
+        assertThat(found).hasSize(1);
+        ShareExt stored = found.iterator().next();
+        assertThat(stored.getId()).isEqualTo(share.getId());
+        assertThat(stored.getResourceSetId()).isEqualTo(share.getResourceSetId());
+        assertThat(stored.getPolicyURI()).isEqualTo(share.getPolicyURI());
+
+        // Share attributes are matched ignoring case, like in the directory
+        assertThat(store.getShare(match("/HISTORY/emp1", "ALICE"), 0)).hasSize(1);
+        assertThat(store.getShare(match("/history/emp1", "bob"), 0)).isEmpty();
+
+        store.removeShare(share);
+        assertThat(store.getShare(match("/history/emp1", null), 0)).isEmpty();
+    }
+
+    @Test(dataProvider = "stores")
+    public void shouldRejectDuplicateIdentifiers(final ShareStore store) throws Exception {
+        ShareExt share = share("emp1", "/history/emp1", "alice");
+        store.addShareAsync(share).getOrThrow();
+
+        ShareExt duplicate = share("other", "/history/other", "alice");
+        duplicate.setId(share.getId());
+        assertResultCode(store.addShareAsync(duplicate), ResultCode.ENTRY_ALREADY_EXISTS);
+    }
+
+    @Test(dataProvider = "stores")
+    public void shouldFailToRemoveUnknownShares(final ShareStore store) throws Exception {
+        try {
+            store.removeShare(share("emp1", "/history/emp1", "alice"));
+            fail("Expected NO_SUCH_OBJECT");
+        } catch (LdapException e) {
+            assertThat(e.getResult().getResultCode()).isEqualTo(ResultCode.NO_SUCH_OBJECT);
+        }
+        try {
+            store.removeShareAsync(share("emp1", "/history/emp1", "alice")).getOrThrow();
+            fail("Expected NO_SUCH_OBJECT");
+        } catch (LdapException e) {
+            assertThat(e.getResult().getResultCode()).isEqualTo(ResultCode.NO_SUCH_OBJECT);
+        }
+    }
+
+    @Test(dataProvider = "stores")
+    public void shouldHonourSizeLimits(final ShareStore store) throws Exception {
+        for (int i = 0; i < 3; i++) {
+            store.addShareAsync(share("emp" + i, "/history/emp" + i, "alice")).getOrThrow();
+        }
+        assertThat(store.getShare(match(null, "alice"), 0)).hasSize(3);
+        assertThat(store.getShare(match(null, "alice"), 2)).hasSize(2);
+        assertThat(store.getShareAsync(match(null, "alice"), 1, Long.MAX_VALUE).getOrThrow()).hasSize(1);
+    }
+
+    @Test(dataProvider = "stores")
+    public void shouldDetectSharesWithTheSameNameOrUri(final ShareStore store) throws Exception {
+        store.addShareAsync(share("emp1", "/history/emp1", "alice")).getOrThrow();
+
+        assertThat(store.isSharedAsync(share("emp1", "/history/other", "alice")).getOrThrow()).isTrue();
+        assertThat(store.isSharedAsync(share("other", "/history/emp1", "alice")).getOrThrow()).isTrue();
+        assertThat(store.isSharedAsync(share("other", "/history/other", "alice")).getOrThrow()).isFalse();
+        // Only the shares of the same user count
+        assertThat(store.isSharedAsync(share("emp1", "/history/emp1", "bob")).getOrThrow()).isFalse();
+    }
+
+    @Test(dataProvider = "stores")
+    public void shouldReadTemplateAndPrefixShares(final ShareStore store) throws Exception {
+        store.addShareAsync(share("template", "/history/{accountId}", "alice")).getOrThrow();
+        store.addShareAsync(share("prefix", "/reports/*", "alice")).getOrThrow();
+        store.addShareAsync(share("exact", "/history/emp1", "alice")).getOrThrow();
+
+        Collector patterns = new Collector();
+        store.readPatternShares(patterns, 10);
+        assertThat(patterns.uris()).containsOnly("/history/{accountId}", "/reports/*");
+
+        Collector all = new Collector();
+        store.readAllShares(all, 1);
+        assertThat(all.uris()).containsOnly("/history/{accountId}", "/reports/*", "/history/emp1");
+
+        Collector uris = new Collector();
+        store.readShareUris(uris, 10);
+        assertThat(uris.uris()).containsOnly("/history/{accountId}", "/reports/*", "/history/emp1");
+    }
+
+    @Test(dataProvider = "stores")
+    public void shouldFilterAndSortQueriedShares(final ShareStore store) throws Exception {
+        for (String name : asList("charlie", "alpha", "bravo", "delta")) {
+            store.addShareAsync(share(name, "/history/" + name, "alice")).getOrThrow();
+        }
+        store.addShareAsync(share("echo", "/history/echo", "bob")).getOrThrow();
+
+        Collector found = new Collector();
+        Filter filter = Filter.not(Filter.substrings("umaResourceURI", null, null, "/DELTA"));
+        SharePage page = store.streamSharesAsync(match(null, "alice"), filter,
+                Collections.singletonList(new SortKey("umaResourceName", true)), 0, null, found).getOrThrow();
+
+        assertThat(found.names()).containsExactly("charlie", "bravo", "alpha");
+        assertThat(page.getPagedResultsCookie()).isNull();
+    }
+
+    @Test(dataProvider = "stores")
+    public void shouldPageQueriedShares(final ShareStore store) throws Exception {
+        for (String name : asList("charlie", "alpha", "echo", "bravo", "delta")) {
+            store.addShareAsync(share(name, "/history/" + name, "alice")).getOrThrow();
+        }
+        List<SortKey> byName = Collections.singletonList(new SortKey("umaResourceName"));
+
+        List<String> names = new ArrayList<>();
+        List<Integer> pageSizes = new ArrayList<>();
+        ByteString cookie = null;
+        do {
+            Collector found = new Collector();
+            SharePage page = store.streamSharesAsync(match(null, "alice"), null, byName, 2, cookie, found)
+                    .getOrThrow();
+            names.addAll(found.names());
+            pageSizes.add(found.shares.size());
+            assertThat(page.getEstimatedTotal()).isEqualTo(5);
+            cookie = page.getPagedResultsCookie() != null
+                    ? ByteString.valueOfBase64(page.getPagedResultsCookie())
+                    : null;
+        } while (cookie != null);
+
+        assertThat(pageSizes).containsExactly(2, 2, 1);
+        assertThat(names).containsExactly("alpha", "bravo", "charlie", "delta", "echo");
+    }
+
+    @Test(dataProvider = "stores")
+    public void shouldStoreAndRotatePats(final ShareStore store) throws Exception {
+        assertThat(store.readPatAsync(SharedPat.id("alice", REALM, CLIENT_ID)).getOrThrow()).isNull();
+
+        SharedPat pat = new SharedPat("alice", REALM, CLIENT_ID, "token1", "refresh1", 1000L);
+        store.storePatAsync(pat).getOrThrow();
+        SharedPat read = store.readPatAsync(pat.getId()).getOrThrow();
+        assertThat(read.getToken()).isEqualTo("token1");
+        assertThat(read.getRefreshToken()).isEqualTo("refresh1");
+        assertThat(read.getExpiresAt()).isEqualTo(1000L);
+
+        // Storing again replaces the PAT of the user
+        store.storePatAsync(new SharedPat("alice", REALM, CLIENT_ID, "token2", "refresh2", 2000L)).getOrThrow();
+        assertThat(store.readPatAsync(pat.getId()).getOrThrow().getToken()).isEqualTo("token2");
+
+        // Rotations only apply to the current token
+        SharedPat rotated = new SharedPat("alice", REALM, CLIENT_ID, "token3", "refresh3", 3000L);
+        assertResultCode(store.updatePatAsync(pat, rotated), ResultCode.NO_SUCH_ATTRIBUTE);
+        store.updatePatAsync(store.readPatAsync(pat.getId()).getOrThrow(), rotated).getOrThrow();
+        read = store.readPatAsync(pat.getId()).getOrThrow();
+        assertThat(read.getToken()).isEqualTo("token3");
+        assertThat(read.getExpiresAt()).isEqualTo(3000L);
+    }
+
+    @Test(dataProvider = "stores")
+    public void shouldReadExpiringPats(final ShareStore store) throws Exception {
+        store.storePatAsync(new SharedPat("alice", REALM, CLIENT_ID, "token", "refresh", 1000L)).getOrThrow();
+        store.storePatAsync(new SharedPat("bob", REALM, CLIENT_ID, "token", "refresh", 5000L)).getOrThrow();
+        // Without refresh token, a PAT cannot be refreshed
+        store.storePatAsync(new SharedPat("carol", REALM, CLIENT_ID, "token", null, 1000L)).getOrThrow();
+
+        List<SharedPat> expiring = store.readExpiringPats(2000L, 10);
+        assertThat(expiring).hasSize(1);
+        assertThat(expiring.get(0).getUserId()).isEqualTo("alice");
+    }
+
+    @Test(dataProvider = "stores")
+    public void shouldKeepShareReferencingPatWithoutToken(final ShareStore store) throws Exception {
+        SharedPat pat = new SharedPat("alice", REALM, CLIENT_ID, "token", null, 0L);
+        ShareExt share = share("emp1", "/history/emp1", "alice");
+        share.setPatId(pat.getId());
+        store.addShareAsync(share).getOrThrow();
+
+        ShareExt stored = store.getShare(match("/history/emp1", null), 0).iterator().next();
+        assertThat(stored.getPatId()).isEqualTo(pat.getId());
+        assertThat(stored.getPAT()).isNull();
+    }
+
+    @Test
+    public void shouldReplayTheLog() throws Exception {
+        Path directory = newDirectory();
+        FileShareStore store = new FileShareStore(directory, true);
+        ShareExt kept = share("emp1", "/history/emp1", "alice");
+        ShareExt removed = share("emp2", "/history/emp2", "alice");
+        store.addShareAsync(kept).getOrThrow();
+        store.addShareAsync(removed).getOrThrow();
+        store.removeShare(removed);
+        store.storePatAsync(new SharedPat("alice", REALM, CLIENT_ID, "token", "refresh", 1000L)).getOrThrow();
+        store.close();
+
+        FileShareStore reopened = open(new FileShareStore(directory, false));
+        assertThat(reopened.getShare(match(null, "alice"), 0)).extracting("id").containsOnly(kept.getId());
+        assertThat(reopened.readPatAsync(SharedPat.id("alice", REALM, CLIENT_ID)).getOrThrow().getToken())
+                .isEqualTo("token");
+    }
+
+    @Test
+    public void shouldTruncateAnIncompleteRecord() throws Exception {
+        Path directory = newDirectory();
+        Path log = directory.resolve(FileShareStore.LOG_FILE);
+        FileShareStore store = new FileShareStore(directory, false);
+        ShareExt first = share("emp1", "/history/emp1", "alice");
+        store.addShareAsync(first).getOrThrow();
+        long firstRecordEnd = Files.size(log);
+        store.addShareAsync(share("emp2", "/history/emp2", "alice")).getOrThrow();
+        store.close();
+
+        // A crash while the second record was written
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(log) - 3);
+        }
+
+        FileShareStore reopened = open(new FileShareStore(directory, false));
+        assertThat(reopened.getShare(match(null, "alice"), 0)).extracting("id").containsOnly(first.getId());
+        assertThat(Files.size(log)).isEqualTo(firstRecordEnd);
+
+        // New records follow the last valid one
+        ShareExt added = share("emp3", "/history/emp3", "alice");
+        reopened.addShareAsync(added).getOrThrow();
+        reopened.close();
+        FileShareStore again = open(new FileShareStore(directory, false));
+        assertThat(again.getShare(match(null, "alice"), 0)).extracting("id")
+                .containsOnly(first.getId(), added.getId());
+    }
+
+    @Test
+    public void shouldTruncateACorruptedRecord() throws Exception {
+        Path directory = newDirectory();
+        Path log = directory.resolve(FileShareStore.LOG_FILE);
+        FileShareStore store = new FileShareStore(directory, false);
+        ShareExt first = share("emp1", "/history/emp1", "alice");
+        store.addShareAsync(first).getOrThrow();
+        long firstRecordEnd = Files.size(log);
+        store.addShareAsync(share("emp2", "/history/emp2", "alice")).getOrThrow();
+        store.addShareAsync(share("emp3", "/history/emp3", "alice")).getOrThrow();
+        store.close();
+
+        // Flip a payload byte of the second record: its CRC no longer matches, the records after it are dropped
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer octet = ByteBuffer.allocate(1);
+            long position = firstRecordEnd + 1 + 4 + 2;
+            channel.read(octet, position);
+            octet.put(0, (byte) ~octet.get(0));
+            octet.rewind();
+            channel.write(octet, position);
+        }
+
+        FileShareStore reopened = open(new FileShareStore(directory, false));
+        assertThat(reopened.getShare(match(null, "alice"), 0)).extracting("id").containsOnly(first.getId());
+        assertThat(Files.size(log)).isEqualTo(firstRecordEnd);
+    }
+
+    @Test
+    public void shouldCompactTheLog() throws Exception {
+        Path directory = newDirectory();
+        Path log = directory.resolve(FileShareStore.LOG_FILE);
+        FileShareStore store = open(new FileShareStore(directory, false));
+        ShareExt share = share("emp1", "/history/emp1", "alice");
+        store.addShareAsync(share).getOrThrow();
+        for (int i = 0; i <= 1000; i++) {
+            store.storePatAsync(new SharedPat("alice", REALM, CLIENT_ID, "token" + i, "refresh", i)).getOrThrow();
+        }
+        long uncompacted = Files.size(log);
+        // Compaction happens before appending a record
+        store.storePatAsync(new SharedPat("alice", REALM, CLIENT_ID, "last", "refresh", 0L)).getOrThrow();
+
+        assertThat(store.getStatistics().get("log").get("compactions").asLong()).isEqualTo(1L);
+        assertThat(Files.size(log)).isLessThan(uncompacted / 100);
+        assertThat(Files.exists(directory.resolve(FileShareStore.LOG_FILE + ".compact"))).isFalse();
+        store.close();
+
+        FileShareStore reopened = open(new FileShareStore(directory, false));
+        assertThat(reopened.getShare(match(null, "alice"), 0)).extracting("id").containsOnly(share.getId());
+        assertThat(reopened.readPatAsync(SharedPat.id("alice", REALM, CLIENT_ID)).getOrThrow().getToken())
+                .isEqualTo("last");
+    }
+
+    @Test
+    public void shouldRestrictTheLogToItsOwner() throws Exception {
+        Path directory = newDirectory();
+        if (!directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            throw new SkipException("POSIX permissions not supported");
+        }
+        FileShareStore store = open(new FileShareStore(directory, false));
+        store.storePatAsync(new SharedPat("alice", REALM, CLIENT_ID, "token", "refresh", 0L)).getOrThrow();
+
+        assertThat(Files.getPosixFilePermissions(directory.resolve(FileShareStore.LOG_FILE)))
+                .containsOnly(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+    }
+
+    private static ShareExt share(final String name, final String uri, final String userId) {
+        return new ShareExt("rs-" + name, name, "pat-" + userId, uri, "https://as/policy/" + name, userId, REALM,
+                CLIENT_ID);
+    }
+
+    private static ShareExt match(final String uri, final String userId) {
+        return new ShareExt(null, uri, userId, REALM, CLIENT_ID);
+    }
+
+    private static <V> void assertResultCode(final Promise<V, LdapException> promise,
+                                             final ResultCode expected) throws InterruptedException {
+        try {
+            promise.getOrThrow();
+            fail("Expected " + expected);
+        } catch (LdapException e) {
+            assertThat(e.getResult().getResultCode()).isEqualTo(expected);
+        }
+    }
+
+    private <S extends ShareStore> S open(final S store) {
+        stores.add(store);
+        return store;
+    }
+
+    private Path newDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("share-store");
+        directories.add(directory);
+        return directory;
+    }
+
+    private static void delete(final Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Collects the shares handed to a {@link ShareListener}, in order.
+     */
+    private static final class Collector implements ShareListener {
+        private final List<ShareExt> shares = new ArrayList<>();
+
+        @Override
+        public void shareAdded(final ShareExt share) {
+            shares.add(share);
+        }
+
+        @Override
+        public void shareRemoved(final String shareId) {
+            // Not notified by a plain search
+        }
+
+        List<String> names() {
+            List<String> names = new ArrayList<>();
+            for (ShareExt share : shares) {
+                names.add(share.getResourceName());
+            }
+            return names;
+        }
+
+        List<String> uris() {
+            List<String> uris = new ArrayList<>();
+            for (ShareExt share : shares) {
+                uris.add(share.getRequestURI());
+            }
+            return uris;
+        }
+    }
+}
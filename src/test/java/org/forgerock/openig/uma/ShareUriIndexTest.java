@@ -0,0 +1,150 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ShareUriIndexTest {
+
+    private static final ShareUriIndex.Selector ANY = new ShareUriIndex.Selector() {
+        @Override
+        public boolean accept(final ShareExt share) {
+            return true;
+        }
+    };
+
+    @Test
+    public void shouldPreferLiteralsOverTemplatesOverPrefixes() {
+        ShareUriIndex index = new ShareUriIndex();
+        ShareExt exact = add(index, "/history/emp1");
+        ShareExt template = add(index, "/history/{accountId}");
+        ShareExt prefix = add(index, "/history/*");
+
+        assertThat(match(index, "/history/emp1")).containsExactly(exact);
+        assertThat(match(index, "/history/emp2")).containsExactly(template);
+        assertThat(match(index, "/history/emp2/2017")).containsExactly(prefix);
+    }
+
+    @Test
+    public void shouldPreferLiteralSegmentsAtEveryLevel() {
+        ShareUriIndex index = new ShareUriIndex();
+        ShareExt literalFirst = add(index, "/history/emp1/{year}");
+        ShareExt templateFirst = add(index, "/history/{accountId}/2017");
+
+        assertThat(match(index, "/history/emp1/2017")).containsExactly(literalFirst);
+        assertThat(match(index, "/history/emp2/2017")).containsExactly(templateFirst);
+        assertThat(match(index, "/history/emp2/2018")).isEmpty();
+    }
+
+    @Test
+    public void shouldPreferTheLongestPrefix() {
+        ShareUriIndex index = new ShareUriIndex();
+        ShareExt shorter = add(index, "/history/*");
+        ShareExt longer = add(index, "/history/emp1/*");
+
+        assertThat(match(index, "/history/emp1/2017")).containsExactly(longer);
+        assertThat(match(index, "/history/emp2/2017")).containsExactly(shorter);
+        // A prefix needs at least one more segment: /history/emp1 falls back to the shorter prefix
+        assertThat(match(index, "/history/emp1")).containsExactly(shorter);
+    }
+
+    @Test
+    public void shouldNotMatchThePrefixItself() {
+        ShareUriIndex index = new ShareUriIndex();
+        add(index, "/history/*");
+
+        assertThat(match(index, "/history")).isEmpty();
+        assertThat(match(index, "/history/")).isEmpty();
+        assertThat(match(index, "/history/emp1")).hasSize(1);
+    }
+
+    @Test
+    public void shouldOnlyTreatWholeSegmentsAsPatterns() {
+        assertThat(ShareUriIndex.isPattern("/history/{accountId}")).isTrue();
+        assertThat(ShareUriIndex.isPattern("/history/*")).isTrue();
+        assertThat(ShareUriIndex.isPattern("/history/emp{id}")).isFalse();
+        assertThat(ShareUriIndex.isPattern("/history/emp*")).isFalse();
+        assertThat(ShareUriIndex.isPattern("/history/emp1")).isFalse();
+        assertThat(ShareUriIndex.isPattern(null)).isFalse();
+
+        ShareUriIndex index = new ShareUriIndex();
+        ShareExt literal = add(index, "/history/emp*");
+        assertThat(match(index, "/history/emp*")).containsExactly(literal);
+        assertThat(match(index, "/history/emp1")).isEmpty();
+    }
+
+    @Test
+    public void shouldFallBackAndPruneOnRemoval() {
+        ShareUriIndex index = new ShareUriIndex();
+        ShareExt exact = add(index, "/history/emp1/2017");
+        ShareExt template = add(index, "/history/{accountId}/2017");
+        ShareExt prefix = add(index, "/history/*");
+
+        index.remove(exact);
+        assertThat(match(index, "/history/emp1/2017")).containsExactly(template);
+        index.remove(template);
+        assertThat(match(index, "/history/emp1/2017")).containsExactly(prefix);
+        index.remove(prefix);
+        assertThat(match(index, "/history/emp1/2017")).isEmpty();
+        assertThat(index.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldKeepSiblingsOnRemoval() {
+        ShareUriIndex index = new ShareUriIndex();
+        ShareExt removed = add(index, "/history/emp1/2017");
+        ShareExt sibling = add(index, "/history/emp1/2018");
+
+        index.remove(removed);
+        assertThat(match(index, "/history/emp1/2018")).containsExactly(sibling);
+        assertThat(index.isEmpty()).isFalse();
+    }
+
+    @Test
+    public void shouldOnlyReturnSelectedShares() {
+        ShareUriIndex index = new ShareUriIndex();
+        ShareExt alice = add(index, "/history/{accountId}");
+        alice.setUserId("alice");
+        ShareExt bob = add(index, "/history/*");
+        bob.setUserId("bob");
+
+        List<ShareExt> found = index.match("/history/emp1", new ShareUriIndex.Selector() {
+            @Override
+            public boolean accept(final ShareExt share) {
+                return "bob".equals(share.getUserId());
+            }
+        });
+        assertThat(found).containsExactly(bob);
+    }
+
+    private static ShareExt add(final ShareUriIndex index, final String uri) {
+        ShareExt share = new ShareExt(uri);
+        share.setRequestURI(uri);
+        index.add(share);
+        return share;
+    }
+
+    private static List<ShareExt> match(final ShareUriIndex index, final String path) {
+        return index.match(path, ANY);
+    }
+}
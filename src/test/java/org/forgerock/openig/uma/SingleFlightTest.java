@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SingleFlightTest {
+
+    @Test
+    public void shouldCoalesceConcurrentCalls() throws Exception {
+        SingleFlight<String, String, IOException> flight = new SingleFlight<>();
+        Call call = new Call();
+
+        Promise<String, IOException> first = flight.execute("key", call);
+        Promise<String, IOException> second = flight.execute("key", call);
+        assertThat(call.started.get()).isEqualTo(1);
+        assertThat(first).isNotSameAs(second);
+
+        call.pending.handleResult("result");
+        assertThat(first.getOrThrow()).isEqualTo("result");
+        assertThat(second.getOrThrow()).isEqualTo("result");
+        assertThat(flight.getStatistics().get("inFlight").asLong()).isEqualTo(0L);
+    }
+
+    @Test
+    public void shouldForgetACallFailingWithARuntimeException() throws Exception {
+        SingleFlight<String, String, IOException> flight = new SingleFlight<>();
+        Call call = new Call();
+
+        Promise<String, IOException> first = flight.execute("key", call);
+        call.pending.handleRuntimeException(new IllegalStateException());
+        assertThat(first.isDone()).isTrue();
+        assertThat(flight.getStatistics().get("inFlight").asLong()).isEqualTo(0L);
+
+        // The next caller starts a new call instead of getting the failed one
+        Promise<String, IOException> next = flight.execute("key", call);
+        assertThat(call.started.get()).isEqualTo(2);
+        call.pending.handleResult("result");
+        assertThat(next.getOrThrow()).isEqualTo("result");
+    }
+
+    @Test
+    public void shouldForgetACallThrowingARuntimeException() throws Exception {
+        SingleFlight<String, String, IOException> flight = new SingleFlight<>();
+        try {
+            flight.execute("key", new AsyncFunction<String, String, IOException>() {
+                @Override
+                public Promise<String, IOException> apply(final String key) {
+                    throw new IllegalStateException();
+                }
+            });
+        } catch (IllegalStateException expected) {
+            // Thrown to the caller starting the call
+        }
+        assertThat(flight.getStatistics().get("inFlight").asLong()).isEqualTo(0L);
+    }
+
+    /**
+     * Call completed by the test.
+     */
+    private static final class Call implements AsyncFunction<String, String, IOException> {
+
+        private final AtomicInteger started = new AtomicInteger();
+        private PromiseImpl<String, IOException> pending;
+
+        @Override
+        public Promise<String, IOException> apply(final String key) {
+            started.incrementAndGet();
+            pending = PromiseImpl.create();
+            return pending;
+        }
+    }
+}
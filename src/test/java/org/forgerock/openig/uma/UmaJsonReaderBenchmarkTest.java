@@ -0,0 +1,139 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.protocol.Entity;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the time and the memory allocated to read an introspection response with {@link UmaJsonReader}, and with
+ * the whole JSON tree of the response. Only run with the {@literal benchmark} Maven profile, on a JVM reporting the
+ * memory allocated by each thread.
+ */
+@Test(groups = "benchmark")
+public class UmaJsonReaderBenchmarkTest {
+
+    private static final int WARM_UP = 20000;
+    private static final int READS = 200000;
+
+    /** An AM introspection response: most fields are not used. */
+    private static final String INTROSPECTION = "{"
+            + "\"active\":true,"
+            + "\"permissions\":[{\"resource_set_id\":\"0d7790de-9066-4bb6-8e81-25b6f9d0b8853\","
+            + "\"scopes\":[\"http://photoz.example.com/dev/scopes/view\",\"http://photoz.example.com/dev/scopes/all\"],"
+            + "\"exp\":1499999999}],"
+            + "\"token_type\":\"access_token\","
+            + "\"exp\":1499999999,"
+            + "\"sub\":\"alice\","
+            + "\"iss\":\"https://as.example.com/openam/oauth2/realms/root/realms/uma\","
+            + "\"auditTrackingId\":\"8d8a3a0e-2f9c-4ac4-a5a1-7e1c3fa4e8d1-2231\","
+            + "\"client_id\":\"openig\","
+            + "\"scope\":\"uma_authorization\","
+            + "\"user_id\":\"alice\","
+            + "\"realm\":\"/uma\","
+            + "\"expires_in\":3599,"
+            + "\"token_name\":\"access_token\""
+            + "}";
+
+    private interface Reader {
+        TokenIntrospection read(Entity entity) throws IOException;
+    }
+
+    @Test
+    public void readIntrospectionResponses() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            throw new SkipException("The JVM does not report the memory allocated by each thread");
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        Reader none = new Reader() {
+            @Override
+            public TokenIntrospection read(final Entity entity) {
+                return null;
+            }
+        };
+        Reader streaming = new Reader() {
+            @Override
+            public TokenIntrospection read(final Entity entity) throws IOException {
+                return UmaJsonReader.readIntrospection(entity);
+            }
+        };
+        Reader tree = new Reader() {
+            @Override
+            public TokenIntrospection read(final Entity entity) throws IOException {
+                return TokenIntrospection.fromJson(new JsonValue(entity.getJson()));
+            }
+        };
+
+        // The response entity is created for each read in all cases: measured alone, then subtracted
+        long[] baseline = measure(allocations, none);
+        long[] streamed = measure(allocations, streaming);
+        long[] parsed = measure(allocations, tree);
+
+        System.out.printf("streaming: %d bytes/read, %d ns/read; tree: %d bytes/read, %d ns/read%n",
+                streamed[0] - baseline[0], streamed[1] - baseline[1],
+                parsed[0] - baseline[0], parsed[1] - baseline[1]);
+    }
+
+    /**
+     * Returns the bytes allocated and the time spent per read.
+     */
+    private static long[] measure(final com.sun.management.ThreadMXBean allocations, final Reader reader)
+            throws IOException {
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < WARM_UP; i++) {
+            check(reader.read(entity()));
+        }
+        long allocated = allocations.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            check(reader.read(entity()));
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = allocations.getThreadAllocatedBytes(threadId) - allocated;
+        return new long[] { allocated / READS, nanos / READS };
+    }
+
+    private static void check(final TokenIntrospection introspection) {
+        if (introspection != null) {
+            assertThat(introspection.isActive()).isTrue();
+            assertThat(introspection.getScopes("0d7790de-9066-4bb6-8e81-25b6f9d0b8853")).hasSize(2);
+        }
+    }
+
+    private static Entity entity() {
+        Response response = new Response(Status.OK);
+        response.setEntity(INTROSPECTION);
+        return response.getEntity();
+    }
+}